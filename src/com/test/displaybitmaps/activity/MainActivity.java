@@ -77,6 +77,14 @@ public class MainActivity extends Activity {
 		mImageFetcher.getImageCache().clearMemoryCache();
 	}
 
+	@Override
+	public void onTrimMemory(int level) {
+		super.onTrimMemory(level);
+		if (mImageFetcher.getImageCache() != null) {
+			mImageFetcher.getImageCache().onTrimMemory(level);
+		}
+	}
+
 	/**
 	 * Initialize views
 	 */
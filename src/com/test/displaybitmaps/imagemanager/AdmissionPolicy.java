@@ -0,0 +1,45 @@
+package com.test.displaybitmaps.imagemanager;
+
+/**
+ * Decides whether a {@link DiskLruCache} stores an entry at all. An edit of
+ * an entry that isn't admitted is discarded on commit, along with the
+ * previous values of the entry. Without a policy every entry is admitted.
+ */
+public interface AdmissionPolicy {
+
+	/**
+	 * @param key
+	 *            The entry key
+	 * @param size
+	 *            The total length of the entry values in bytes
+	 * @param maxSize
+	 *            The maximum size of the cache in bytes
+	 * @return true if the entry may be stored
+	 */
+	boolean admit(String key, long size, long maxSize);
+
+	/**
+	 * Rejects entries that would take more than a fraction of the cache, so
+	 * that storing a single huge image can't evict hundreds of small ones.
+	 */
+	public static final class MaxEntryFraction implements AdmissionPolicy {
+		private final float mFraction;
+
+		/**
+		 * @param fraction
+		 *            The largest share of the maximum size a single entry may
+		 *            take, between 0 and 1
+		 */
+		public MaxEntryFraction(float fraction) {
+			if (fraction <= 0 || fraction > 1) {
+				throw new IllegalArgumentException("fraction");
+			}
+			mFraction = fraction;
+		}
+
+		@Override
+		public boolean admit(String key, long size, long maxSize) {
+			return size <= maxSize * mFraction;
+		}
+	}
+}
@@ -0,0 +1,253 @@
+package com.test.displaybitmaps.imagemanager;
+
+import java.lang.ref.SoftReference;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Set;
+
+import android.annotation.TargetApi;
+import android.graphics.Bitmap;
+import android.graphics.Bitmap.Config;
+import android.graphics.BitmapFactory;
+import android.os.Build;
+import android.os.Build.VERSION_CODES;
+
+/**
+ * A set of bitmaps that are no longer cached and can be populated into the
+ * inBitmap field of {@link BitmapFactory.Options}. A pool can be private to an
+ * {@link ImageCache} or shared between several named caches.
+ * <p>
+ * Bitmaps released by a {@link RecyclingBitmapDrawable} once it is neither
+ * cached nor displayed are known to be unused, so they are held strongly up to
+ * a byte budget and are therefore still around when the next decode needs
+ * them. Other bitmaps, and released bitmaps over the budget, are held by soft
+ * references.
+ */
+public class BitmapPool {
+
+	private static BitmapPool sSharedPool;
+
+	// Note that the set is of SoftReferences which will actually not be very
+	// effective due to the garbage collector being aggressive clearing
+	// Soft/WeakReferences, hence the strongly referenced bitmaps below. From
+	// Honeycomb to JellyBean the size of a re-used bitmap must be precise,
+	// from KitKat onward the size just needs to be the upper bound (due to
+	// changes in how inBitmap can re-use bitmaps).
+	private final Set<SoftReference<Bitmap>> mReusableBitmaps = Collections
+			.synchronizedSet(new HashSet<SoftReference<Bitmap>>());
+
+	// Released bitmaps, oldest first, and their total size in bytes
+	private final LinkedList<Bitmap> mReleasedBitmaps = new LinkedList<Bitmap>();
+	private int mReleasedSize;
+	private int mMaxReleasedSize;
+
+	/**
+	 * @param maxSize
+	 *            The maximum number of bytes held by strongly referenced
+	 *            released bitmaps
+	 */
+	public BitmapPool(int maxSize) {
+		mMaxReleasedSize = maxSize;
+	}
+
+	/**
+	 * @param maxSize
+	 *            The minimum budget of strongly referenced bitmaps in bytes;
+	 *            the budget of the shared pool is the largest one requested
+	 * @return The process wide pool shared by all caches created with
+	 *         {@link ImageCacheParams#shareBitmapPool} set
+	 */
+	public static synchronized BitmapPool getSharedPool(int maxSize) {
+		if (sSharedPool == null) {
+			sSharedPool = new BitmapPool(maxSize);
+		}
+		synchronized (sSharedPool.mReleasedBitmaps) {
+			sSharedPool.mMaxReleasedSize = Math.max(
+					sSharedPool.mMaxReleasedSize, maxSize);
+		}
+		return sSharedPool;
+	}
+
+	/**
+	 * Adds a bitmap that may still be referenced elsewhere to the pool. It is
+	 * only held by a soft reference.
+	 * 
+	 * @param bitmap
+	 *            The bitmap to make available for re-use
+	 */
+	public void put(Bitmap bitmap) {
+		mReusableBitmaps.add(new SoftReference<Bitmap>(bitmap));
+	}
+
+	/**
+	 * Adds a bitmap that is no longer referenced anywhere to the pool. It is
+	 * held strongly, evicting the oldest released bitmaps if the budget is
+	 * exceeded.
+	 * 
+	 * @param bitmap
+	 *            The bitmap to make available for re-use
+	 */
+	public void release(Bitmap bitmap) {
+		if (bitmap == null || bitmap.isRecycled() || !bitmap.isMutable()) {
+			return;
+		}
+		final int size = ImageCache.getBitmapSize(bitmap);
+		if (size > mMaxReleasedSize) {
+			put(bitmap);
+			return;
+		}
+		synchronized (mReleasedBitmaps) {
+			mReleasedBitmaps.addLast(bitmap);
+			mReleasedSize += size;
+			while (mReleasedSize > mMaxReleasedSize) {
+				final Bitmap oldest = mReleasedBitmaps.removeFirst();
+				mReleasedSize -= ImageCache.getBitmapSize(oldest);
+				// Demote rather than drop, the GC may leave it around
+				put(oldest);
+			}
+		}
+	}
+
+	/**
+	 * @param options
+	 *            - BitmapFactory.Options with out* options populated
+	 * @return Bitmap that case be used for inBitmap
+	 */
+	public Bitmap get(BitmapFactory.Options options) {
+		// BEGIN_INCLUDE(get_bitmap_from_reusable_set)
+		Bitmap bitmap = null;
+
+		// Prefer released bitmaps, most recently released first
+		synchronized (mReleasedBitmaps) {
+			final Iterator<Bitmap> iterator = mReleasedBitmaps
+					.descendingIterator();
+			while (iterator.hasNext()) {
+				final Bitmap item = iterator.next();
+				if (canUseForInBitmap(item, options)) {
+					iterator.remove();
+					mReleasedSize -= ImageCache.getBitmapSize(item);
+					return item;
+				}
+			}
+		}
+
+		if (!mReusableBitmaps.isEmpty()) {
+			synchronized (mReusableBitmaps) {
+				final Iterator<SoftReference<Bitmap>> iterator = mReusableBitmaps
+						.iterator();
+				Bitmap item;
+
+				while (iterator.hasNext()) {
+					item = iterator.next().get();
+
+					if (null != item && item.isMutable()) {
+						// Check to see it the item can be used for inBitmap
+						if (canUseForInBitmap(item, options)) {
+							bitmap = item;
+
+							// Remove from reusable set so it can't be used
+							// again
+							iterator.remove();
+							break;
+						}
+					} else {
+						// Remove from the set if the reference has been
+						// cleared.
+						iterator.remove();
+					}
+				}
+			}
+		}
+
+		return bitmap;
+		// END_INCLUDE(get_bitmap_from_reusable_set)
+	}
+
+	/**
+	 * Drops bitmaps from the pool so that only the given fraction remains.
+	 * 
+	 * @param keepFraction
+	 *            The fraction of the pooled bitmaps to keep, between 0 and 1
+	 */
+	public void trim(float keepFraction) {
+		synchronized (mReleasedBitmaps) {
+			final int keepSize = (int) (mReleasedSize * keepFraction);
+			while (mReleasedSize > keepSize && !mReleasedBitmaps.isEmpty()) {
+				mReleasedSize -= ImageCache.getBitmapSize(mReleasedBitmaps
+						.removeFirst());
+			}
+		}
+		synchronized (mReusableBitmaps) {
+			int toRemove = mReusableBitmaps.size()
+					- (int) (mReusableBitmaps.size() * keepFraction);
+			final Iterator<SoftReference<Bitmap>> iterator = mReusableBitmaps
+					.iterator();
+			while (toRemove-- > 0 && iterator.hasNext()) {
+				iterator.next();
+				iterator.remove();
+			}
+		}
+	}
+
+	/**
+	 * Removes all bitmaps from the pool.
+	 */
+	public void clear() {
+		trim(0f);
+		mReusableBitmaps.clear();
+	}
+
+	/**
+	 * @param candidate
+	 *            - Bitmap to check
+	 * @param targetOptions
+	 *            - Options that have the out* value populated
+	 * @return true if <code>candidate</code> can be used for inBitmap re-use
+	 *         with <code>targetOptions</code>
+	 */
+	@TargetApi(VERSION_CODES.KITKAT)
+	private static boolean canUseForInBitmap(Bitmap candidate,
+			BitmapFactory.Options targetOptions) {
+		// BEGIN_INCLUDE(can_use_for_inbitmap)
+		if (Build.VERSION.SDK_INT < VERSION_CODES.KITKAT) {
+			// On earlier versions, the dimensions and config must match exactly
+			// and the inSampleSize must be 1
+			return candidate.getWidth() == targetOptions.outWidth
+					&& candidate.getHeight() == targetOptions.outHeight
+					&& candidate.getConfig() == targetOptions.inPreferredConfig
+					&& targetOptions.inSampleSize == 1;
+		}
+
+		// From Android 4.4 (KitKat) onward we can re-use if the byte size of
+		// the new bitmap, in the config it will be decoded with,
+		// is smaller than the reusable bitmap candidate allocation byte count.
+		int width = targetOptions.outWidth / targetOptions.inSampleSize;
+		int height = targetOptions.outHeight / targetOptions.inSampleSize;
+		int byteCount = width * height
+				* getBytesPerPixel(targetOptions.inPreferredConfig);
+		return byteCount <= candidate.getAllocationByteCount();
+		// END_INCLUDE(can_use_for_inbitmap)
+	}
+
+	/**
+	 * Return the byte usage per pixel of a bitmap based on its configuration.
+	 * 
+	 * @param config
+	 *            The bitmap configuration.
+	 * @return The byte usage per pixel.
+	 */
+	static int getBytesPerPixel(Config config) {
+		if (config == Config.ARGB_8888) {
+			return 4;
+		} else if (config == Config.RGB_565) {
+			return 2;
+		} else if (config == Config.ARGB_4444) {
+			return 2;
+		} else if (config == Config.ALPHA_8) {
+			return 1;
+		}
+		return 1;
+	}
+}
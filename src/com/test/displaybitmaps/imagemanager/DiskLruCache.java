@@ -17,14 +17,16 @@
 package com.test.displaybitmaps.imagemanager;
 
 import java.io.BufferedInputStream;
-import java.io.BufferedWriter;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.Closeable;
+import java.io.DataInputStream;
 import java.io.EOFException;
 import java.io.File;
+import java.io.FileDescriptor;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
-import java.io.FileWriter;
 import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
@@ -33,19 +35,29 @@ import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.Reader;
 import java.io.StringWriter;
+import java.io.UnsupportedEncodingException;
 import java.io.Writer;
 import java.lang.reflect.Array;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Comparator;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Random;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
 
 /**
  ****************************************************************************** 
@@ -91,8 +103,35 @@ import java.util.concurrent.TimeUnit;
  * 
  * <p>
  * Clients call {@link #get} to read a snapshot of an entry. The read will
- * observe the value at the time that {@link #get} was called. Updates and
- * removals after the call do not impact ongoing reads.
+ * observe the value at the time that {@link #get} was called. Values are
+ * opened when the snapshot first reads them, so a snapshot that is only used
+ * to check for an entry costs no file handle. Updates and removals after the
+ * call do not impact values that are already open; values that aren't become
+ * unavailable.
+ * 
+ * <p>
+ * Operations on different entries run in parallel. The index is guarded by
+ * the cache's monitor, which is only held for in-memory bookkeeping, and file
+ * access happens under the monitor of the entry concerned. Journal records are
+ * queued and written to the journal in batches by a background thread, so
+ * callers never wait for journal I/O; call {@link #flush} to make sure queued
+ * records have reached the file. Locks are always taken in the order entry,
+ * index, journal.
+ * 
+ * <p>
+ * Besides its values, each entry has a small metadata record kept in the
+ * index and the journal: when it was committed and last read, its content
+ * type, its pixel dimensions, a tag for the caller's use and its expiry time.
+ * Editors set it along with the values and snapshots read it without opening
+ * any file.
+ * 
+ * <p>
+ * Commits are not durable by default: a crash may lose recent entries, which
+ * are dropped on open if their files or records are incomplete. With a sync
+ * window set by {@link #setSyncWindow}, {@link Editor#commit} returns only
+ * once the committed values and their journal record have been synced to the
+ * storage device. Commits made within the same window share a single sync of
+ * the journal, trading commit latency for fewer syncs under load.
  * 
  * <p>
  * This class is tolerant of some I/O errors. If files are missing from the
@@ -104,45 +143,102 @@ import java.util.concurrent.TimeUnit;
 public final class DiskLruCache implements Closeable {
 	static final String JOURNAL_FILE = "journal";
 	static final String JOURNAL_FILE_TMP = "journal.tmp";
+	static final String CHECKPOINT_FILE = "checkpoint";
+	static final String CHECKPOINT_FILE_TMP = "checkpoint.tmp";
 	static final String MAGIC = "libcore.io.DiskLruCache";
 	static final String VERSION_1 = "1";
+	static final int BINARY_MAGIC = 0x444c524a; // "DLRJ"
+	static final int VERSION_2 = 2;
+	static final int VERSION_3 = 3;
+	static final int VERSION_4 = 4;
+	static final int CHECKPOINT_MAGIC = 0x444c5249; // "DLRI"
+	static final int CHECKPOINT_VERSION = 2;
 	static final long ANY_SEQUENCE_NUMBER = -1;
+	static final long ANY_EXPIRY = -1;
+
+	/** Sync window that turns group commit off, see {@link #setSyncWindow}. */
+	public static final long SYNC_DISABLED = -1;
 	private static final String CLEAN = "CLEAN";
 	private static final String DIRTY = "DIRTY";
 	private static final String REMOVE = "REMOVE";
 	private static final String READ = "READ";
+	private static final int OP_CLEAN = 1;
+	private static final int OP_DIRTY = 2;
+	private static final int OP_REMOVE = 3;
+	private static final int OP_READ = 4;
+
+	// Longer keys in the journal can only come from corruption
+	private static final int MAX_KEY_LENGTH = 1024;
 
-	private static final Charset UTF_8 = Charset.forName("UTF-8");
+	/** Content types are short MIME types, longer ones are rejected. */
+	private static final int MAX_CONTENT_TYPE_LENGTH = 255;
+
+	// Keys made of these characters only, like hashed keys, are packed into
+	// 5 bits per character in the journal
+	private static final String KEY_ALPHABET = "abcdefghijklmnopqrstuvwxyz234567";
+
+	// A checkpoint is taken once this many journal bytes were appended since
+	// the last one
+	private static final int CHECKPOINT_INTERVAL_BYTES = 64 * 1024;
+
+	private static final String UTF_8_NAME = "UTF-8";
+	private static final Charset UTF_8 = Charset.forName(UTF_8_NAME);
 	private static final int IO_BUFFER_SIZE = 8 * 1024;
 
 	/*
-	 * This cache uses a journal file named "journal". A typical journal file
-	 * looks like this: libcore.io.DiskLruCache 1 100 2
+	 * This cache uses a binary journal file named "journal". Its header is the
+	 * magic number "DLRJ", the journal version as a single byte, then the
+	 * application's version and the value count as varints, then a random
+	 * 64-bit id given to each new journal file.
+	 * 
+	 * Each of the subsequent records is the state of a cache entry: an
+	 * operation byte, the key, optional
+	 * state-specific values, and the CRC32 of all of the record's preceding
+	 * bytes as a big endian int. Varints are unsigned LEB128. o DIRTY records
+	 * track that an entry is actively being created or updated. Every
+	 * successful DIRTY action should be followed by a CLEAN or REMOVE action.
+	 * DIRTY records without a matching CLEAN or REMOVE indicate that temporary
+	 * files may need to be deleted. o CLEAN records track a cache entry that
+	 * has been successfully published and may be read. A publish record is
+	 * followed by the lengths of each of its values as varints and the
+	 * metadata of the entry. o READ records track accesses for LRU and are
+	 * followed by the time of the access. o REMOVE records track entries that
+	 * have been deleted.
 	 * 
-	 * CLEAN 3400330d1dfc7f3f7f4b8d4d803dfcf6 832 21054 DIRTY
-	 * 335c4c6028171cfddfbaae1a9c313c52 CLEAN 335c4c6028171cfddfbaae1a9c313c52
-	 * 3934 2342 REMOVE 335c4c6028171cfddfbaae1a9c313c52 DIRTY
-	 * 1ab96a171faeeee38496d8b330771a7a CLEAN 1ab96a171faeeee38496d8b330771a7a
-	 * 1600 234 READ 335c4c6028171cfddfbaae1a9c313c52 READ
-	 * 3400330d1dfc7f3f7f4b8d4d803dfcf6
+	 * The metadata of an entry is the time at which it expires, 0 if it never
+	 * does, the time its values were committed and the time it was last read,
+	 * 0 if unknown, all in milliseconds since the epoch, then its pixel width
+	 * and height and its tag, all varints, and its content type as a varint
+	 * byte length followed by the UTF-8 bytes, empty if unknown. Times are
+	 * varints too.
 	 * 
-	 * The first five lines of the journal form its header. They are the
-	 * constant string "libcore.io.DiskLruCache", the disk cache's version, the
-	 * application's version, the value count, and a blank line.
+	 * Keys are a varint holding the key length shifted left by one, followed
+	 * by the key's UTF-8 bytes if the low bit is clear. If it is set the key
+	 * only has characters of the base32 alphabet "a-z2-7" and they are packed
+	 * 5 bits each, most significant first, so a 26 character hashed key takes
+	 * 17 bytes.
 	 * 
-	 * Each of the subsequent lines in the file is a record of the state of a
-	 * cache entry. Each line contains space-separated values: a state, a key,
-	 * and optional state-specific values. o DIRTY lines track that an entry is
-	 * actively being created or updated. Every successful DIRTY action should
-	 * be followed by a CLEAN or REMOVE action. DIRTY lines without a matching
-	 * CLEAN or REMOVE indicate that temporary files may need to be deleted. o
-	 * CLEAN lines track a cache entry that has been successfully published and
-	 * may be read. A publish line is followed by the lengths of each of its
-	 * values. o READ lines track accesses for LRU. o REMOVE lines track entries
-	 * that have been deleted.
+	 * Replay stops at the first truncated record or record with a bad
+	 * checksum, as left by a crash in the middle of an append, and the journal
+	 * is then rewritten from what was read.
+	 * 
+	 * Journals of the previous text format, "libcore.io.DiskLruCache 1
+	 * appVersion valueCount" followed by lines like "CLEAN key 832 21054",
+	 * version 2 journals without an id and version 3 journals, whose metadata
+	 * is only the expiry time and whose READ records have no time, are still
+	 * read and are rewritten in the current format on open.
+	 * 
+	 * So that open doesn't have to replay the whole journal, the index is
+	 * periodically written to a file named "checkpoint": the magic number
+	 * "DLRI", the checkpoint version byte, the application's version and value
+	 * count, the id of the journal and the number of journal bytes the
+	 * checkpoint covers, the entry count, then the key, value lengths and
+	 * metadata of each readable entry in LRU order, and the CRC32 of the whole
+	 * file. On open the checkpoint is loaded if it was taken from the
+	 * current journal, and only the journal records after it are replayed.
 	 * 
 	 * The journal file is appended to as cache operations occur. The journal
-	 * may occasionally be compacted by dropping redundant lines. A temporary
+	 * may occasionally be compacted by dropping redundant records. A temporary
 	 * file named "journal.tmp" will be used during compaction; that file should
 	 * be deleted if it exists when the cache is opened.
 	 */
@@ -150,15 +246,88 @@ public final class DiskLruCache implements Closeable {
 	private final File directory;
 	private final File journalFile;
 	private final File journalFileTmp;
+	private final File checkpointFile;
+	private final File checkpointFileTmp;
 	private final int appVersion;
-	private final long maxSize;
+	private long maxSize;
 	private final int valueCount;
+
+	/**
+	 * The eviction order, or null to evict in the access order of
+	 * {@link #lruEntries}. Guarded by the index lock.
+	 */
+	private final EvictionPolicy evictionPolicy;
+	private final AdmissionPolicy admissionPolicy;
 	private long size = 0;
-	private Writer journalWriter;
 	private final LinkedHashMap<String, Entry> lruEntries = new LinkedHashMap<String, Entry>(
 			0, 0.75f, true);
 	private int redundantOpCount;
 
+	/**
+	 * Guards the queued journal records, held while a record is queued. Only
+	 * short in-memory work is done under it.
+	 */
+	private final Object journalLock = new Object();
+	private final RecordBuffer journalRecord = new RecordBuffer();
+	private RecordBuffer queuedRecords = new RecordBuffer();
+	private RecordBuffer spareRecords = new RecordBuffer();
+	private boolean journalAppendScheduled;
+
+	/**
+	 * The id of the journal file, and the number of bytes queued to it with
+	 * its header. Guarded by {@link #journalLock}.
+	 */
+	private long journalId;
+	private long journalSize;
+
+	/**
+	 * The journal size covered by the last checkpoint, or by the journal file
+	 * itself if it was written since. Guarded by {@link #journalLock}.
+	 */
+	private long checkpointedSize;
+	private boolean checkpointScheduled;
+
+	/**
+	 * While the journal is being compacted, a copy of every record queued
+	 * since the index was captured. Guarded by {@link #journalLock}.
+	 */
+	private RecordBuffer compactionTail;
+
+	/**
+	 * Guards the journal writer, held while a batch of records is written.
+	 * Taken before {@link #journalLock} when both are needed.
+	 */
+	private final Object journalWriteLock = new Object();
+	private volatile OutputStream journalWriter;
+
+	/**
+	 * Keys read since they were last recorded in the journal, least recently
+	 * read first. READ records only matter for the LRU order after a restart,
+	 * so they are written in batches of distinct keys rather than one per
+	 * get. Guarded by the index lock.
+	 */
+	private final LinkedHashMap<String, Entry> unjournaledReads = new LinkedHashMap<String, Entry>();
+	private static final int READ_BATCH_SIZE = 256;
+
+	/** Set when the journal read on open has to be rewritten. */
+	private boolean journalRebuildOnOpen;
+
+	/**
+	 * Entries with an expiry time ordered by that time, so expired entries can
+	 * be swept without scanning the whole index. Records are not removed when
+	 * their entry is removed or re-committed; stale records are skipped when
+	 * they reach the head of the queue.
+	 */
+	private final PriorityQueue<ExpiryRecord> expiryQueue = new PriorityQueue<ExpiryRecord>(
+			11, new Comparator<ExpiryRecord>() {
+				@Override
+				public int compare(ExpiryRecord lhs, ExpiryRecord rhs) {
+					return lhs.expiresAt < rhs.expiresAt ? -1
+							: (lhs.expiresAt == rhs.expiresAt ? 0 : 1);
+				}
+			});
+	private boolean expirySweepScheduled;
+
 	/**
 	 * To differentiate between old and current snapshots, each entry is given a
 	 * sequence number each time an edit is committed. A snapshot is stale if
@@ -166,6 +335,25 @@ public final class DiskLruCache implements Closeable {
 	 */
 	private long nextSequenceNumber = 0;
 
+	/**
+	 * How long the first commit of a sync group waits for others to join it
+	 * before the group is synced, or {@link #SYNC_DISABLED}.
+	 */
+	private volatile long syncWindowMillis = SYNC_DISABLED;
+
+	/**
+	 * The group that commits currently join. Guarded by {@link #syncLock},
+	 * which is also notified when a group has been synced.
+	 */
+	private final Object syncLock = new Object();
+	private SyncGroup openSyncGroup = new SyncGroup();
+
+	/**
+	 * Held while a group is synced, so groups complete in order and the next
+	 * group gathers commits meanwhile. Taken before {@link #journalWriteLock}.
+	 */
+	private final Object syncWriteLock = new Object();
+
 	/* From java.util.Arrays */
 	@SuppressWarnings("unchecked")
 	private static <T> T[] copyOfRange(T[] original, int start, int end) {
@@ -267,31 +455,69 @@ public final class DiskLruCache implements Closeable {
 	/** This cache uses a single background thread to evict entries. */
 	private final ExecutorService executorService = new ThreadPoolExecutor(0,
 			1, 60L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+
+	/** And another one to append records to the journal. */
+	private final ExecutorService journalExecutor = new ThreadPoolExecutor(0,
+			1, 60L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+	private final Runnable journalAppender = new Runnable() {
+		@Override
+		public void run() {
+			try {
+				writeQueuedRecords();
+			} catch (IOException ignored) {
+				// The records are lost, which costs at most a few entries after
+				// a restart
+			}
+		}
+	};
 	private final Callable<Void> cleanupCallable = new Callable<Void>() {
+		@Override
+		public Void call() throws Exception {
+			if (journalWriter == null) {
+				return null; // closed
+			}
+			trimToSize();
+			compactJournal();
+			return null;
+		}
+	};
+	private final Callable<Void> checkpointCallable = new Callable<Void>() {
+		@Override
+		public Void call() throws Exception {
+			if (journalWriter == null) {
+				return null; // closed
+			}
+			writeCheckpoint();
+			return null;
+		}
+	};
+	private final Callable<Void> expiryCallable = new Callable<Void>() {
 		@Override
 		public Void call() throws Exception {
 			synchronized (DiskLruCache.this) {
-				if (journalWriter == null) {
-					return null; // closed
-				}
-				trimToSize();
-				if (journalRebuildRequired()) {
-					rebuildJournal();
-					redundantOpCount = 0;
-				}
+				expirySweepScheduled = false;
+			}
+			if (journalWriter == null) {
+				return null; // closed
 			}
+			evictExpired();
 			return null;
 		}
 	};
 
 	private DiskLruCache(File directory, int appVersion, int valueCount,
-			long maxSize) {
+			long maxSize, EvictionPolicy evictionPolicy,
+			AdmissionPolicy admissionPolicy) {
 		this.directory = directory;
 		this.appVersion = appVersion;
 		this.journalFile = new File(directory, JOURNAL_FILE);
 		this.journalFileTmp = new File(directory, JOURNAL_FILE_TMP);
+		this.checkpointFile = new File(directory, CHECKPOINT_FILE);
+		this.checkpointFileTmp = new File(directory, CHECKPOINT_FILE_TMP);
 		this.valueCount = valueCount;
 		this.maxSize = maxSize;
+		this.evictionPolicy = evictionPolicy;
+		this.admissionPolicy = admissionPolicy;
 	}
 
 	/**
@@ -310,6 +536,23 @@ public final class DiskLruCache implements Closeable {
 	 */
 	public static DiskLruCache open(File directory, int appVersion,
 			int valueCount, long maxSize) throws IOException {
+		return open(directory, appVersion, valueCount, maxSize, null, null);
+	}
+
+	/**
+	 * Opens the cache in {@code directory} with custom eviction and admission
+	 * policies, creating a cache if none exists there.
+	 * 
+	 * @param evictionPolicy
+	 *            the order in which entries are evicted, or null to evict the
+	 *            least recently used entries first
+	 * @param admissionPolicy
+	 *            the entries that may be stored, or null to store all of them
+	 * @see #open(File, int, int, long)
+	 */
+	public static DiskLruCache open(File directory, int appVersion,
+			int valueCount, long maxSize, EvictionPolicy evictionPolicy,
+			AdmissionPolicy admissionPolicy) throws IOException {
 		if (maxSize <= 0) {
 			throw new IllegalArgumentException("maxSize <= 0");
 		}
@@ -319,13 +562,19 @@ public final class DiskLruCache implements Closeable {
 
 		// prefer to pick up where we left off
 		DiskLruCache cache = new DiskLruCache(directory, appVersion,
-				valueCount, maxSize);
+				valueCount, maxSize, evictionPolicy, admissionPolicy);
 		if (cache.journalFile.exists()) {
 			try {
 				cache.readJournal();
 				cache.processJournal();
-				cache.journalWriter = new BufferedWriter(new FileWriter(
-						cache.journalFile, true), IO_BUFFER_SIZE);
+				if (cache.journalRebuildOnOpen) {
+					cache.rebuildJournal();
+				} else {
+					cache.journalWriter = new BufferedOutputStream(
+							new FileOutputStream(cache.journalFile, true),
+							IO_BUFFER_SIZE);
+					cache.journalSize = cache.journalFile.length();
+				}
 				return cache;
 			} catch (IOException journalIsCorrupt) {
 				// System.logW("DiskLruCache " + directory + " is corrupt: "
@@ -336,7 +585,8 @@ public final class DiskLruCache implements Closeable {
 
 		// create a new empty cache
 		directory.mkdirs();
-		cache = new DiskLruCache(directory, appVersion, valueCount, maxSize);
+		cache = new DiskLruCache(directory, appVersion, valueCount, maxSize,
+				evictionPolicy, admissionPolicy);
 		cache.rebuildJournal();
 		return cache;
 	}
@@ -345,58 +595,313 @@ public final class DiskLruCache implements Closeable {
 		InputStream in = new BufferedInputStream(new FileInputStream(
 				journalFile), IO_BUFFER_SIZE);
 		try {
-			String magic = readAsciiLine(in);
-			String version = readAsciiLine(in);
-			String appVersionString = readAsciiLine(in);
-			String valueCountString = readAsciiLine(in);
-			String blank = readAsciiLine(in);
-			if (!MAGIC.equals(magic) || !VERSION_1.equals(version)
-					|| !Integer.toString(appVersion).equals(appVersionString)
-					|| !Integer.toString(valueCount).equals(valueCountString)
-					|| !"".equals(blank)) {
-				throw new IOException("unexpected journal header: [" + magic
-						+ ", " + version + ", " + valueCountString + ", "
-						+ blank + "]");
-			}
-
-			while (true) {
-				try {
-					readJournalLine(readAsciiLine(in));
-				} catch (EOFException endOfJournal) {
-					break;
+			in.mark(4);
+			final DataInputStream dataIn = new DataInputStream(in);
+			if (dataIn.readInt() == BINARY_MAGIC) {
+				readBinaryJournal(in);
+			} else {
+				in.reset();
+				readTextJournal(in);
+				// Migrate to the binary format
+				journalRebuildOnOpen = true;
+			}
+		} finally {
+			closeQuietly(in);
+		}
+	}
+
+	/**
+	 * Reads a journal in the binary format, positioned after its magic number.
+	 */
+	private void readBinaryJournal(InputStream in) throws IOException {
+		final int version = in.read();
+		final long appVersionValue = readVarLong(in);
+		final long valueCountValue = readVarLong(in);
+		if (version < VERSION_2 || version > VERSION_4
+				|| appVersionValue != appVersion
+				|| valueCountValue != valueCount) {
+			throw new IOException("unexpected journal header: [" + version
+					+ ", " + appVersionValue + ", " + valueCountValue + "]");
+		}
+		final DataInputStream dataIn = new DataInputStream(in);
+		if (version >= VERSION_3) {
+			journalId = dataIn.readLong();
+		}
+		if (version == VERSION_4) {
+			// Only replay what was appended after the last checkpoint
+			checkpointedSize = readCheckpoint();
+			if (checkpointedSize > 0) {
+				final RecordBuffer header = new RecordBuffer();
+				writeJournalHeader(header, journalId);
+				skipFully(in, checkpointedSize - header.size());
+			}
+		} else {
+			// Give the journal an id and the full metadata
+			journalRebuildOnOpen = true;
+		}
+
+		final CRC32 checksum = new CRC32();
+		final CheckedInputStream checkedIn = new CheckedInputStream(in,
+				checksum);
+		final DataInputStream checkedDataIn = new DataInputStream(checkedIn);
+		while (true) {
+			checksum.reset();
+			final int op = checkedIn.read();
+			if (op == -1) {
+				return; // end of journal
+			}
+			try {
+				final String key = readKey(checkedDataIn);
+
+				// The record is only applied once its checksum is verified
+				Entry record = null;
+				long accessedAt = 0;
+				if (op == OP_CLEAN) {
+					record = new Entry(key);
+					for (int i = 0; i < valueCount; i++) {
+						record.lengths[i] = readVarLong(checkedIn);
+					}
+					if (version == VERSION_4) {
+						readMetadata(checkedDataIn, record);
+					} else {
+						record.expiresAt = readVarLong(checkedIn);
+					}
+				} else if (op == OP_READ) {
+					if (version == VERSION_4) {
+						accessedAt = readVarLong(checkedIn);
+					}
+				} else if (op != OP_DIRTY && op != OP_REMOVE) {
+					throw new IOException("unexpected journal op: " + op);
+				}
+
+				final int expected = (int) checksum.getValue();
+				if (dataIn.readInt() != expected) {
+					throw new IOException("journal checksum mismatch");
+				}
+
+				final Entry entry = replayRecord(op, key);
+				if (op == OP_CLEAN) {
+					System.arraycopy(record.lengths, 0, entry.lengths, 0,
+							valueCount);
+					entry.copyMetadataFrom(record);
+				} else if (op == OP_READ && entry != null && accessedAt != 0) {
+					entry.lastAccessedAt = accessedAt;
+				}
+			} catch (IOException truncatedOrCorrupt) {
+				// Keep what was read so far and start over with a new journal
+				journalRebuildOnOpen = true;
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Loads the index from the checkpoint file if it was taken from the
+	 * current journal, which must have been read up to its id.
+	 * 
+	 * @return the journal size covered by the checkpoint, from which the
+	 *         journal is to be replayed, or 0 if there is no usable checkpoint
+	 */
+	private long readCheckpoint() {
+		if (!checkpointFile.exists()) {
+			return 0;
+		}
+		InputStream in = null;
+		try {
+			in = new BufferedInputStream(new FileInputStream(checkpointFile),
+					IO_BUFFER_SIZE);
+			final CRC32 checksum = new CRC32();
+			final CheckedInputStream checkedIn = new CheckedInputStream(in,
+					checksum);
+			final DataInputStream checkedDataIn = new DataInputStream(
+					checkedIn);
+			if (checkedDataIn.readInt() != CHECKPOINT_MAGIC
+					|| checkedIn.read() != CHECKPOINT_VERSION
+					|| readVarLong(checkedIn) != appVersion
+					|| readVarLong(checkedIn) != valueCount
+					|| checkedDataIn.readLong() != journalId) {
+				return 0; // taken from another journal
+			}
+			final long journalOffset = readVarLong(checkedIn);
+			if (journalOffset > journalFile.length()) {
+				// The journal lost records the checkpoint covers in a crash
+				return 0;
+			}
+
+			final long entryCount = readVarLong(checkedIn);
+			for (long n = 0; n < entryCount; n++) {
+				final Entry entry = new Entry(readKey(checkedDataIn));
+				for (int i = 0; i < valueCount; i++) {
+					entry.lengths[i] = readVarLong(checkedIn);
 				}
+				readMetadata(checkedDataIn, entry);
+				entry.readable = true;
+				lruEntries.put(entry.key, entry);
 			}
+
+			final int expected = (int) checksum.getValue();
+			if (new DataInputStream(in).readInt() != expected) {
+				throw new IOException("checkpoint checksum mismatch");
+			}
+			return journalOffset;
+		} catch (IOException truncatedOrCorrupt) {
+			// Replay the whole journal instead
+			lruEntries.clear();
+			return 0;
 		} finally {
 			closeQuietly(in);
 		}
 	}
 
-	private void readJournalLine(String line) throws IOException {
-		String[] parts = line.split(" ");
-		if (parts.length < 2) {
-			throw new IOException("unexpected journal line: " + line);
+	/**
+	 * Writes the readable entries of the index to the checkpoint file. Like
+	 * compaction, this only copies the list of entries under the index lock.
+	 * Entries may change while they are written, but each change is followed
+	 * by a journal record queued after the checkpoint's journal offset, which
+	 * is replayed over the checkpoint on open.
+	 */
+	private void writeCheckpoint() throws IOException {
+		final List<Entry> entries;
+		final long id;
+		final long journalOffset;
+		synchronized (this) {
+			synchronized (journalLock) {
+				checkpointScheduled = false;
+				if (journalWriter == null) {
+					return; // closed
+				}
+				entries = new ArrayList<Entry>(lruEntries.size());
+				for (Entry entry : lruEntries.values()) {
+					if (entry.readable) {
+						entries.add(entry);
+					}
+				}
+				id = journalId;
+				journalOffset = journalSize;
+				// Pending reads stay queued: if the checkpoint never makes it
+				// to disk, the journal is all there is
+			}
 		}
 
-		String key = parts[1];
-		if (parts[0].equals(REMOVE) && parts.length == 2) {
+		OutputStream out = null;
+		try {
+			final CRC32 checksum = new CRC32();
+			out = new CheckedOutputStream(new BufferedOutputStream(
+					new FileOutputStream(checkpointFileTmp), IO_BUFFER_SIZE),
+					checksum);
+			final RecordBuffer record = new RecordBuffer();
+			record.writeInt(CHECKPOINT_MAGIC);
+			record.write(CHECKPOINT_VERSION);
+			record.writeVarLong(appVersion);
+			record.writeVarLong(valueCount);
+			record.writeLong(id);
+			record.writeVarLong(journalOffset);
+			record.writeVarLong(entries.size());
+			record.writeTo(out);
+			for (Entry entry : entries) {
+				record.reset();
+				record.writeKey(entry.key);
+				for (int i = 0; i < valueCount; i++) {
+					record.writeVarLong(entry.lengths[i]);
+				}
+				record.writeMetadata(entry);
+				record.writeTo(out);
+			}
+			record.reset();
+			record.writeInt((int) checksum.getValue());
+			record.writeTo(out);
+			out.close();
+			out = null;
+			if (!checkpointFileTmp.renameTo(checkpointFile)) {
+				throw new IOException("failed to rename " + checkpointFileTmp);
+			}
+		} finally {
+			closeQuietly(out);
+		}
+
+		synchronized (journalLock) {
+			if (journalId == id && checkpointedSize < journalOffset) {
+				checkpointedSize = journalOffset;
+			}
+		}
+	}
+
+	/**
+	 * Applies a journal record to the index.
+	 * 
+	 * @return the entry of the record, or null for a REMOVE record
+	 */
+	private Entry replayRecord(int op, String key) {
+		if (op == OP_REMOVE) {
 			lruEntries.remove(key);
-			return;
+			return null;
 		}
 
+		// For READ records the work is done by calling lruEntries.get()
 		Entry entry = lruEntries.get(key);
+		if (entry == null && op == OP_READ) {
+			return null; // read before a REMOVE that was written earlier
+		}
 		if (entry == null) {
 			entry = new Entry(key);
 			lruEntries.put(key, entry);
 		}
 
-		if (parts[0].equals(CLEAN) && parts.length == 2 + valueCount) {
+		if (op == OP_CLEAN) {
 			entry.readable = true;
 			entry.currentEditor = null;
-			entry.setLengths(copyOfRange(parts, 2, parts.length));
-		} else if (parts[0].equals(DIRTY) && parts.length == 2) {
+		} else if (op == OP_DIRTY) {
 			entry.currentEditor = new Editor(entry);
+		}
+		return entry;
+	}
+
+	/**
+	 * Reads a journal in the previous text format.
+	 */
+	private void readTextJournal(InputStream in) throws IOException {
+		String magic = readAsciiLine(in);
+		String version = readAsciiLine(in);
+		String appVersionString = readAsciiLine(in);
+		String valueCountString = readAsciiLine(in);
+		String blank = readAsciiLine(in);
+		if (!MAGIC.equals(magic) || !VERSION_1.equals(version)
+				|| !Integer.toString(appVersion).equals(appVersionString)
+				|| !Integer.toString(valueCount).equals(valueCountString)
+				|| !"".equals(blank)) {
+			throw new IOException("unexpected journal header: [" + magic
+					+ ", " + version + ", " + valueCountString + ", "
+					+ blank + "]");
+		}
+
+		while (true) {
+			try {
+				readJournalLine(readAsciiLine(in));
+			} catch (EOFException endOfJournal) {
+				break;
+			}
+		}
+	}
+
+	private void readJournalLine(String line) throws IOException {
+		String[] parts = line.split(" ");
+		if (parts.length < 2) {
+			throw new IOException("unexpected journal line: " + line);
+		}
+
+		String key = parts[1];
+		if (parts[0].equals(REMOVE) && parts.length == 2) {
+			replayRecord(OP_REMOVE, key);
+		} else if (parts[0].equals(CLEAN)
+				&& (parts.length == 2 + valueCount || parts.length == 3 + valueCount)) {
+			final Entry entry = replayRecord(OP_CLEAN, key);
+			entry.setLengths(copyOfRange(parts, 2, 2 + valueCount));
+			entry.setExpiresAt(parts.length > 2 + valueCount ? parts[2 + valueCount]
+					: null);
+		} else if (parts[0].equals(DIRTY) && parts.length == 2) {
+			replayRecord(OP_DIRTY, key);
 		} else if (parts[0].equals(READ) && parts.length == 2) {
-			// this work was already done by calling lruEntries.get()
+			replayRecord(OP_READ, key);
 		} else {
 			throw new IOException("unexpected journal line: " + line);
 		}
@@ -407,12 +912,23 @@ public final class DiskLruCache implements Closeable {
 	 * cache. Dirty entries are assumed to be inconsistent and will be deleted.
 	 */
 	private void processJournal() throws IOException {
-		deleteIfExists(journalFileTmp);
+		// Dirty files may be created before their DIRTY record reaches the
+		// journal, so delete every temporary file a crash left behind
+		final File[] files = directory.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				if (file.getName().endsWith(".tmp")) {
+					deleteIfExists(file);
+				}
+			}
+		}
 		for (Iterator<Entry> i = lruEntries.values().iterator(); i.hasNext();) {
 			Entry entry = i.next();
 			if (entry.currentEditor == null) {
-				for (int t = 0; t < valueCount; t++) {
-					size += entry.lengths[t];
+				size += entry.getLength();
+				scheduleExpiry(entry);
+				if (evictionPolicy != null) {
+					evictionPolicy.onAdd(entry.key, entry.getLength());
 				}
 			} else {
 				entry.currentEditor = null;
@@ -427,38 +943,257 @@ public final class DiskLruCache implements Closeable {
 
 	/**
 	 * Creates a new journal that omits redundant information. This replaces the
-	 * current journal if it exists.
-	 */
-	private synchronized void rebuildJournal() throws IOException {
-		if (journalWriter != null) {
-			journalWriter.close();
-		}
-
-		Writer writer = new BufferedWriter(new FileWriter(journalFileTmp),
-				IO_BUFFER_SIZE);
-		writer.write(MAGIC);
-		writer.write("\n");
-		writer.write(VERSION_1);
-		writer.write("\n");
-		writer.write(Integer.toString(appVersion));
-		writer.write("\n");
-		writer.write(Integer.toString(valueCount));
-		writer.write("\n");
-		writer.write("\n");
-
-		for (Entry entry : lruEntries.values()) {
-			if (entry.currentEditor != null) {
-				writer.write(DIRTY + ' ' + entry.key + '\n');
-			} else {
-				writer.write(CLEAN + ' ' + entry.key + entry.getLengths()
-						+ '\n');
+	 * current journal if it exists. Only used while the cache is being opened,
+	 * see {@link #compactJournal()} otherwise.
+	 */
+	private void rebuildJournal() throws IOException {
+		final long id = new Random().nextLong();
+		OutputStream writer = new BufferedOutputStream(new FileOutputStream(
+				journalFileTmp), IO_BUFFER_SIZE);
+		try {
+			writeJournal(writer, id, new ArrayList<Entry>(lruEntries.values()));
+		} finally {
+			writer.close();
+		}
+		journalFileTmp.renameTo(journalFile);
+		journalWriter = new BufferedOutputStream(new FileOutputStream(
+				journalFile, true), IO_BUFFER_SIZE);
+		journalId = id;
+		journalSize = journalFile.length();
+		checkpointedSize = journalSize;
+	}
+
+	/**
+	 * Writes the journal header, see the format above.
+	 */
+	private void writeJournalHeader(RecordBuffer record, long id) {
+		record.reset();
+		record.writeInt(BINARY_MAGIC);
+		record.write(VERSION_4);
+		record.writeVarLong(appVersion);
+		record.writeVarLong(valueCount);
+		record.writeLong(id);
+	}
+
+	/**
+	 * Writes the journal header and a CLEAN record for each readable entry.
+	 * Entries being edited keep their last published values; their dirty
+	 * files are deleted on open if the edit never completes.
+	 * 
+	 * @param id
+	 *            the id of the new journal
+	 * @param entries
+	 *            the entries in LRU order
+	 */
+	private void writeJournal(OutputStream out, long id, List<Entry> entries)
+			throws IOException {
+		final RecordBuffer record = new RecordBuffer();
+		writeJournalHeader(record, id);
+		record.writeTo(out);
+
+		for (Entry entry : entries) {
+			if (entry.readable) {
+				writeRecord(record, out, OP_CLEAN, entry.key, entry);
 			}
 		}
+	}
 
-		writer.close();
-		journalFileTmp.renameTo(journalFile);
-		journalWriter = new BufferedWriter(new FileWriter(journalFile, true),
-				IO_BUFFER_SIZE);
+	/**
+	 * Rewrites the journal without its redundant records while the cache stays
+	 * in use. Only the list of entries is copied under the index lock. The new
+	 * journal is written without holding any lock, from entries that may
+	 * change meanwhile, so every record queued after the copy is also kept
+	 * aside; that tail brings the new journal up to date before it replaces
+	 * the old one. Only the last part of the tail is copied under the journal
+	 * locks.
+	 */
+	private void compactJournal() throws IOException {
+		final List<Entry> entries;
+		synchronized (this) {
+			synchronized (journalLock) {
+				if (journalWriter == null || compactionTail != null
+						|| !journalRebuildRequired()) {
+					return;
+				}
+				entries = new ArrayList<Entry>(lruEntries.values());
+				compactionTail = new RecordBuffer();
+				// The copy is in LRU order, so pending reads are covered
+				unjournaledReads.clear();
+				redundantOpCount = 0;
+			}
+		}
+
+		final long id = new Random().nextLong();
+		OutputStream writer = null;
+		try {
+			writer = new BufferedOutputStream(new FileOutputStream(
+					journalFileTmp), IO_BUFFER_SIZE);
+			writeJournal(writer, id, entries);
+
+			RecordBuffer tail;
+			synchronized (journalLock) {
+				tail = compactionTail;
+				compactionTail = new RecordBuffer();
+			}
+			tail.writeTo(writer);
+
+			synchronized (journalWriteLock) {
+				synchronized (journalLock) {
+					if (journalWriter == null) {
+						return; // closed
+					}
+					compactionTail.writeTo(writer);
+					writer.close();
+					writer = null;
+					if (!journalFileTmp.renameTo(journalFile)) {
+						throw new IOException("failed to rename "
+								+ journalFileTmp);
+					}
+
+					// Queued records are either reflected by the entries or in
+					// the tail
+					final OutputStream oldWriter = journalWriter;
+					journalWriter = new BufferedOutputStream(
+							new FileOutputStream(journalFile, true),
+							IO_BUFFER_SIZE);
+					queuedRecords.reset();
+					closeQuietly(oldWriter);
+					journalId = id;
+					journalSize = journalFile.length();
+					checkpointedSize = journalSize;
+				}
+			}
+		} finally {
+			closeQuietly(writer);
+			synchronized (journalLock) {
+				compactionTail = null;
+			}
+		}
+	}
+
+	/**
+	 * Writes a journal record, see the format above.
+	 * 
+	 * @param record
+	 *            the buffer to assemble the record in
+	 * @param entry
+	 *            the entry whose value lengths and metadata a CLEAN record
+	 *            holds, or whose access time a READ record holds, ignored
+	 *            otherwise
+	 */
+	private void writeRecord(RecordBuffer record, OutputStream out, int op,
+			String key, Entry entry) throws IOException {
+		record.reset();
+		record.write(op);
+		record.writeKey(key);
+		if (op == OP_CLEAN) {
+			for (int i = 0; i < valueCount; i++) {
+				record.writeVarLong(entry.lengths[i]);
+			}
+			record.writeMetadata(entry);
+		} else if (op == OP_READ) {
+			record.writeVarLong(entry.lastAccessedAt);
+		}
+		record.writeChecksum();
+		record.writeTo(out);
+	}
+
+	/**
+	 * Reads a key written by {@link RecordBuffer#writeKey(String)}.
+	 */
+	private static String readKey(DataInputStream in) throws IOException {
+		final long header = readVarLong(in);
+		final int length = (int) (header >>> 1);
+		if (length <= 0 || length > MAX_KEY_LENGTH) {
+			throw new IOException("unexpected journal key length");
+		}
+		if ((header & 1) == 0) {
+			final byte[] keyBytes = new byte[length];
+			in.readFully(keyBytes);
+			return decodeUtf8(keyBytes);
+		}
+
+		final byte[] packed = new byte[(length * 5 + 7) / 8];
+		in.readFully(packed);
+		final char[] chars = new char[length];
+		int bits = 0;
+		int bitCount = 0;
+		int next = 0;
+		for (int i = 0; i < length; i++) {
+			if (bitCount < 5) {
+				bits = bits << 8 | packed[next++] & 0xff;
+				bitCount += 8;
+			}
+			bitCount -= 5;
+			chars[i] = KEY_ALPHABET.charAt(bits >>> bitCount & 31);
+		}
+		return new String(chars);
+	}
+
+	/**
+	 * Reads metadata written by {@link RecordBuffer#writeMetadata(Entry)}
+	 * into an entry.
+	 */
+	private static void readMetadata(DataInputStream in, Entry entry)
+			throws IOException {
+		entry.expiresAt = readVarLong(in);
+		entry.createdAt = readVarLong(in);
+		entry.lastAccessedAt = readVarLong(in);
+		entry.width = (int) readVarLong(in);
+		entry.height = (int) readVarLong(in);
+		entry.tag = readVarLong(in);
+		final int length = (int) readVarLong(in);
+		if (length < 0 || length > MAX_CONTENT_TYPE_LENGTH) {
+			throw new IOException("unexpected content type length");
+		}
+		if (length == 0) {
+			entry.contentType = null;
+		} else {
+			final byte[] bytes = new byte[length];
+			in.readFully(bytes);
+			entry.contentType = decodeUtf8(bytes);
+		}
+	}
+
+	/**
+	 * Encodes a string as UTF-8. String.getBytes(Charset) is only available
+	 * from API 9.
+	 */
+	private static byte[] encodeUtf8(String string) {
+		try {
+			return string.getBytes(UTF_8_NAME);
+		} catch (UnsupportedEncodingException e) {
+			throw new AssertionError(e);
+		}
+	}
+
+	/**
+	 * Decodes UTF-8 bytes, see {@link #encodeUtf8(String)}.
+	 */
+	private static String decodeUtf8(byte[] bytes) {
+		try {
+			return new String(bytes, UTF_8_NAME);
+		} catch (UnsupportedEncodingException e) {
+			throw new AssertionError(e);
+		}
+	}
+
+	/**
+	 * Reads an unsigned LEB128 varint.
+	 */
+	private static long readVarLong(InputStream in) throws IOException {
+		long value = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			final int b = in.read();
+			if (b == -1) {
+				throw new EOFException();
+			}
+			value |= (long) (b & 0x7f) << shift;
+			if ((b & 0x80) == 0) {
+				return value;
+			}
+		}
+		throw new IOException("malformed varint");
 	}
 
 	private static void deleteIfExists(File file) throws IOException {
@@ -474,45 +1209,75 @@ public final class DiskLruCache implements Closeable {
 		}
 	}
 
+	private static void skipFully(InputStream in, long byteCount)
+			throws IOException {
+		while (byteCount > 0) {
+			final long skipped = in.skip(byteCount);
+			if (skipped > 0) {
+				byteCount -= skipped;
+			} else if (in.read() != -1) {
+				byteCount--;
+			} else {
+				throw new EOFException();
+			}
+		}
+	}
+
 	/**
 	 * Returns a snapshot of the entry named {@code key}, or null if it doesn't
 	 * exist is not currently readable. If a value is returned, it is moved to
 	 * the head of the LRU queue.
 	 */
-	public synchronized Snapshot get(String key) throws IOException {
+	public Snapshot get(String key) throws IOException {
 		checkNotClosed();
 		validateKey(key);
-		Entry entry = lruEntries.get(key);
+		final Entry entry;
+		synchronized (this) {
+			entry = lruEntries.get(key);
+		}
 		if (entry == null) {
 			return null;
 		}
 
-		if (!entry.readable) {
-			return null;
-		}
+		final Snapshot snapshot;
+		synchronized (entry) {
+			if (!entry.readable || entry.removed) {
+				return null;
+			}
 
-		/*
-		 * Open all streams eagerly to guarantee that we see a single published
-		 * snapshot. If we opened streams lazily then the streams could come
-		 * from different edits.
-		 */
-		InputStream[] ins = new InputStream[valueCount];
-		try {
-			for (int i = 0; i < valueCount; i++) {
-				ins[i] = new FileInputStream(entry.getCleanFile(i));
+			// Lazily evict the entry if it has expired
+			final long now = System.currentTimeMillis();
+			if (entry.isExpired(now) && entry.currentEditor == null) {
+				removeEntry(entry, ANY_EXPIRY, false);
+				return null;
 			}
-		} catch (FileNotFoundException e) {
-			// a file must have been deleted manually!
-			return null;
+
+			/*
+			 * The snapshot opens its values lazily and only while the entry
+			 * still has this sequence number, so all of its values come from
+			 * the same published edit.
+			 */
+			snapshot = new Snapshot(entry);
+			entry.lastAccessedAt = now;
 		}
 
-		redundantOpCount++;
-		journalWriter.append(READ + ' ' + key + '\n');
-		if (journalRebuildRequired()) {
-			executorService.submit(cleanupCallable);
+		Entry[] reads = null;
+		synchronized (this) {
+			if (evictionPolicy != null) {
+				evictionPolicy.onAccess(key);
+			}
+			unjournaledReads.remove(key);
+			unjournaledReads.put(key, entry);
+			if (unjournaledReads.size() >= READ_BATCH_SIZE) {
+				reads = takeUnjournaledReads();
+			}
+			scheduleExpirySweepIfNeeded();
+		}
+		if (reads != null) {
+			journalReads(reads);
 		}
 
-		return new Snapshot(key, entry.sequenceNumber, ins);
+		return snapshot;
 	}
 
 	/**
@@ -523,151 +1288,612 @@ public final class DiskLruCache implements Closeable {
 		return edit(key, ANY_SEQUENCE_NUMBER);
 	}
 
-	private synchronized Editor edit(String key, long expectedSequenceNumber)
+	private Editor edit(String key, long expectedSequenceNumber)
 			throws IOException {
 		checkNotClosed();
 		validateKey(key);
-		Entry entry = lruEntries.get(key);
-		if (expectedSequenceNumber != ANY_SEQUENCE_NUMBER
-				&& (entry == null || entry.sequenceNumber != expectedSequenceNumber)) {
-			return null; // snapshot is stale
+		while (true) {
+			Entry entry;
+			synchronized (this) {
+				entry = lruEntries.get(key);
+				if (entry == null) {
+					if (expectedSequenceNumber != ANY_SEQUENCE_NUMBER) {
+						return null; // snapshot is stale
+					}
+					entry = new Entry(key);
+					lruEntries.put(key, entry);
+				}
+			}
+
+			synchronized (entry) {
+				if (entry.removed) {
+					continue; // removed since the lookup, look it up again
+				}
+				if (expectedSequenceNumber != ANY_SEQUENCE_NUMBER
+						&& entry.sequenceNumber != expectedSequenceNumber) {
+					return null; // snapshot is stale
+				}
+				if (entry.currentEditor != null) {
+					return null; // another edit is in progress
+				}
+
+				Editor editor = new Editor(entry);
+				entry.currentEditor = editor;
+
+				// files created before this record is written are deleted on
+				// open if it never is
+				appendJournal(OP_DIRTY, key, null);
+				return editor;
+			}
+		}
+	}
+
+	/**
+	 * Returns the directory where this cache stores its data.
+	 */
+	public File getDirectory() {
+		return directory;
+	}
+
+	/**
+	 * Returns the maximum number of bytes that this cache should use to store
+	 * its data.
+	 */
+	public synchronized long maxSize() {
+		return maxSize;
+	}
+
+	/**
+	 * Changes the maximum number of bytes the cache should use to store its
+	 * data. Entries are evicted in the background if it is now exceeded.
+	 */
+	public void setMaxSize(long maxSize) {
+		if (maxSize <= 0) {
+			throw new IllegalArgumentException("maxSize <= 0");
+		}
+		synchronized (this) {
+			this.maxSize = maxSize;
+			if (size <= maxSize) {
+				return;
+			}
+		}
+		executorService.submit(cleanupCallable);
+	}
+
+	/**
+	 * Returns the number of bytes currently being used to store the values in
+	 * this cache. This may be greater than the max size if a background
+	 * deletion is pending.
+	 */
+	public synchronized long size() {
+		return size;
+	}
+
+	private void completeEdit(Editor editor, boolean success)
+			throws IOException {
+		final Entry entry = editor.entry;
+		final boolean cleanup;
+		synchronized (entry) {
+			if (entry.currentEditor != editor) {
+				throw new IllegalStateException();
+			}
+
+			// if this edit is creating the entry for the first time, every
+			// index must have a value
+			if (success && !entry.readable) {
+				for (int i = 0; i < valueCount; i++) {
+					if (!entry.getDirtyFile(i).exists()) {
+						editor.abort();
+						throw new IllegalStateException(
+								"edit didn't create file " + i);
+					}
+				}
+			}
+
+			final boolean sync = success && syncWindowMillis != SYNC_DISABLED;
+			long sizeDelta = 0;
+			for (int i = 0; i < valueCount; i++) {
+				File dirty = entry.getDirtyFile(i);
+				if (success) {
+					if (dirty.exists()) {
+						File clean = entry.getCleanFile(i);
+						dirty.renameTo(clean);
+						if (sync) {
+							editor.committedFiles.add(clean);
+						}
+						long oldLength = entry.lengths[i];
+						long newLength = clean.length();
+						entry.lengths[i] = newLength;
+						sizeDelta += newLength - oldLength;
+					}
+				} else {
+					deleteIfExists(dirty);
+				}
+			}
+
+			final boolean publish = entry.readable | success;
+			if (publish) {
+				entry.readable = true;
+				if (success) {
+					if (editor.expiresAt != ANY_EXPIRY) {
+						entry.expiresAt = editor.expiresAt;
+					}
+					entry.createdAt = System.currentTimeMillis();
+					entry.contentType = editor.contentType;
+					entry.width = editor.width;
+					entry.height = editor.height;
+					entry.tag = editor.tag;
+				}
+			} else {
+				entry.removed = true;
+			}
+
+			synchronized (this) {
+				size += sizeDelta;
+				redundantOpCount++;
+				if (publish) {
+					if (success) {
+						entry.sequenceNumber = nextSequenceNumber++;
+						if (editor.expiresAt != ANY_EXPIRY) {
+							scheduleExpiry(entry);
+						}
+						if (evictionPolicy != null) {
+							evictionPolicy.onAdd(entry.key, entry.getLength());
+						}
+					}
+				} else if (lruEntries.get(entry.key) == entry) {
+					lruEntries.remove(entry.key);
+					if (evictionPolicy != null) {
+						evictionPolicy.onRemove(entry.key, false);
+					}
+				}
+				cleanup = size > maxSize || journalRebuildRequired();
+				scheduleExpirySweepIfNeeded();
+			}
+
+			// The record is appended before the editor is released, so the
+			// journal sees the records of one key in order
+			if (publish) {
+				appendJournal(OP_CLEAN, entry.key, entry);
+			} else {
+				appendJournal(OP_REMOVE, entry.key, null);
+			}
+			entry.currentEditor = null;
+		}
+
+		if (cleanup) {
+			executorService.submit(cleanupCallable);
+		}
+	}
+
+	/**
+	 * Queues an entry's expiry time for the background sweep. The caller must
+	 * hold the index lock.
+	 */
+	private void scheduleExpiry(Entry entry) {
+		if (entry.expiresAt != 0) {
+			expiryQueue.add(new ExpiryRecord(entry, entry.expiresAt));
+		}
+	}
+
+	/**
+	 * Submits a background sweep if the earliest expiry time has passed. This
+	 * only looks at the head of the expiry queue. The caller must hold the
+	 * index lock.
+	 */
+	private void scheduleExpirySweepIfNeeded() {
+		if (!expirySweepScheduled && !expiryQueue.isEmpty()
+				&& expiryQueue.peek().expiresAt <= System.currentTimeMillis()) {
+			expirySweepScheduled = true;
+			executorService.submit(expiryCallable);
+		}
+	}
+
+	/**
+	 * Removes every entry whose expiry time has passed. Only the expired head
+	 * of the expiry queue is visited, not the whole index.
+	 * 
+	 * @return the number of entries removed
+	 */
+	public int evictExpired() throws IOException {
+		checkNotClosed();
+		final long now = System.currentTimeMillis();
+		int removed = 0;
+		while (true) {
+			final ExpiryRecord record;
+			synchronized (this) {
+				if (expiryQueue.isEmpty()
+						|| expiryQueue.peek().expiresAt > now) {
+					return removed;
+				}
+				record = expiryQueue.poll();
+			}
+			// Records of entries that were removed or re-committed with
+			// another expiry time since they were queued are skipped
+			if (removeEntry(record.entry, record.expiresAt, false)) {
+				removed++;
+			}
+		}
+	}
+
+	/**
+	 * We only rebuild the journal when it will halve the size of the journal
+	 * and eliminate at least 2000 ops.
+	 */
+	private boolean journalRebuildRequired() {
+		final int REDUNDANT_OP_COMPACT_THRESHOLD = 2000;
+		return redundantOpCount >= REDUNDANT_OP_COMPACT_THRESHOLD
+				&& redundantOpCount >= lruEntries.size();
+	}
+
+	/**
+	 * Drops the entry for {@code key} if it exists and can be removed. Entries
+	 * actively being edited cannot be removed.
+	 * 
+	 * @return true if an entry was removed.
+	 */
+	public boolean remove(String key) throws IOException {
+		checkNotClosed();
+		validateKey(key);
+		final Entry entry;
+		synchronized (this) {
+			entry = lruEntries.get(key);
+		}
+		return entry != null && removeEntry(entry, ANY_EXPIRY, false);
+	}
+
+	/**
+	 * Drops an entry if it is still in the index and can be removed.
+	 * 
+	 * @param expectedExpiresAt
+	 *            the expiry time the entry must still have, or
+	 *            {@link #ANY_EXPIRY}
+	 * @param evicted
+	 *            true if the entry is removed because the cache is full
+	 * @return true if the entry was removed.
+	 */
+	private boolean removeEntry(Entry entry, long expectedExpiresAt,
+			boolean evicted) throws IOException {
+		final boolean rebuild;
+		synchronized (entry) {
+			if (entry.removed || !entry.readable
+					|| entry.currentEditor != null) {
+				return false;
+			}
+			if (expectedExpiresAt != ANY_EXPIRY
+					&& entry.expiresAt != expectedExpiresAt) {
+				return false;
+			}
+
+			long removedSize = 0;
+			for (int i = 0; i < valueCount; i++) {
+				File file = entry.getCleanFile(i);
+				if (!file.delete()) {
+					throw new IOException("failed to delete " + file);
+				}
+				removedSize += entry.lengths[i];
+				entry.lengths[i] = 0;
+			}
+			entry.removed = true;
+			entry.expiresAt = 0; // invalidates any queued expiry record
+
+			synchronized (this) {
+				size -= removedSize;
+				redundantOpCount++;
+				lruEntries.remove(entry.key);
+				unjournaledReads.remove(entry.key);
+				if (evictionPolicy != null) {
+					evictionPolicy.onRemove(entry.key, evicted);
+				}
+				rebuild = journalRebuildRequired();
+			}
+			appendJournal(OP_REMOVE, entry.key, null);
+		}
+
+		if (rebuild) {
+			executorService.submit(cleanupCallable);
+		}
+
+		return true;
+	}
+
+	/**
+	 * Moves the entry for {@code key} to {@code newKey}, keeping its values and
+	 * expiry time. The moved entry becomes the most recently used one. Entries
+	 * actively being edited cannot be moved.
+	 * 
+	 * @return true if the entry was moved, false if there is no readable entry
+	 *         for {@code key} or there already is one for {@code newKey}.
+	 */
+	public boolean rename(String key, String newKey) throws IOException {
+		checkNotClosed();
+		validateKey(key);
+		validateKey(newKey);
+		final Entry entry;
+		synchronized (this) {
+			entry = lruEntries.get(key);
 		}
 		if (entry == null) {
-			entry = new Entry(key);
-			lruEntries.put(key, entry);
-		} else if (entry.currentEditor != null) {
-			return null; // another edit is in progress
+			return false;
+		}
+
+		final boolean rebuild;
+		synchronized (entry) {
+			if (entry.removed || !entry.readable
+					|| entry.currentEditor != null) {
+				return false;
+			}
+
+			final Entry renamed = new Entry(newKey);
+			// Nobody else can hold the lock of an entry that is not in the
+			// index yet
+			synchronized (renamed) {
+				synchronized (this) {
+					if (lruEntries.containsKey(newKey)) {
+						return false;
+					}
+					lruEntries.put(newKey, renamed);
+				}
+
+				for (int i = 0; i < valueCount; i++) {
+					final File clean = entry.getCleanFile(i);
+					if (!clean.renameTo(renamed.getCleanFile(i))) {
+						// Move back what was moved so the entry stays intact
+						for (int j = 0; j < i; j++) {
+							renamed.getCleanFile(j).renameTo(
+									entry.getCleanFile(j));
+						}
+						renamed.removed = true;
+						synchronized (this) {
+							lruEntries.remove(newKey);
+						}
+						throw new IOException("failed to rename " + clean);
+					}
+				}
+				System.arraycopy(entry.lengths, 0, renamed.lengths, 0,
+						valueCount);
+				renamed.copyMetadataFrom(entry);
+				renamed.readable = true;
+				entry.removed = true;
+				entry.expiresAt = 0; // invalidates any queued expiry record
+
+				synchronized (this) {
+					lruEntries.remove(key);
+					unjournaledReads.remove(key);
+					scheduleExpiry(renamed);
+					if (evictionPolicy != null) {
+						evictionPolicy.onRemove(key, false);
+						evictionPolicy.onAdd(newKey, renamed.getLength());
+					}
+					redundantOpCount++;
+					rebuild = journalRebuildRequired();
+				}
+				appendJournal(OP_REMOVE, key, null);
+				appendJournal(OP_CLEAN, newKey, renamed);
+			}
+		}
+
+		if (rebuild) {
+			executorService.submit(cleanupCallable);
+		}
+
+		return true;
+	}
+
+	/**
+	 * Queues a record to be appended to the journal by the journal thread.
+	 * 
+	 * @see #writeRecord(RecordBuffer, OutputStream, int, String, Entry)
+	 */
+	private void appendJournal(int op, String key, Entry entry)
+			throws IOException {
+		synchronized (journalLock) {
+			checkNotClosed();
+			writeRecord(journalRecord, queuedRecords, op, key, entry);
+			if (compactionTail != null) {
+				journalRecord.writeTo(compactionTail);
+			}
+			journalSize += journalRecord.size();
+			if (!checkpointScheduled
+					&& journalSize - checkpointedSize >= CHECKPOINT_INTERVAL_BYTES) {
+				checkpointScheduled = true;
+				executorService.submit(checkpointCallable);
+			}
+			if (!journalAppendScheduled) {
+				journalAppendScheduled = true;
+				journalExecutor.execute(journalAppender);
+			}
+		}
+	}
+
+	/**
+	 * Writes all queued records to the journal file in one batch. Records
+	 * queued meanwhile go to the other buffer and make up the next batch.
+	 */
+	private void writeQueuedRecords() throws IOException {
+		synchronized (journalWriteLock) {
+			final RecordBuffer batch;
+			synchronized (journalLock) {
+				journalAppendScheduled = false;
+				if (journalWriter == null || queuedRecords.size() == 0) {
+					return;
+				}
+				batch = queuedRecords;
+				queuedRecords = spareRecords;
+			}
+			try {
+				batch.writeTo(journalWriter);
+				journalWriter.flush();
+			} finally {
+				batch.reset();
+				synchronized (journalLock) {
+					spareRecords = batch;
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return the entries read since they were last journaled, in access
+	 *         order. The caller must hold the index lock.
+	 */
+	private Entry[] takeUnjournaledReads() {
+		final Entry[] reads = unjournaledReads.values().toArray(
+				new Entry[unjournaledReads.size()]);
+		unjournaledReads.clear();
+		redundantOpCount += reads.length;
+		return reads;
+	}
+
+	/**
+	 * Queues READ records for keys taken from {@link #unjournaledReads}.
+	 */
+	private void journalReads(Entry[] reads) throws IOException {
+		for (Entry entry : reads) {
+			appendJournal(OP_READ, entry.key, entry);
+		}
+		final boolean rebuild;
+		synchronized (this) {
+			rebuild = journalRebuildRequired();
+		}
+		if (rebuild) {
+			executorService.submit(cleanupCallable);
 		}
-
-		Editor editor = new Editor(entry);
-		entry.currentEditor = editor;
-
-		// flush the journal before creating files to prevent file leaks
-		journalWriter.write(DIRTY + ' ' + key + '\n');
-		journalWriter.flush();
-		return editor;
 	}
 
 	/**
-	 * Returns the directory where this cache stores its data.
+	 * Queues READ records for every key read since the last batch.
 	 */
-	public File getDirectory() {
-		return directory;
+	private void journalPendingReads() throws IOException {
+		final Entry[] reads;
+		synchronized (this) {
+			reads = takeUnjournaledReads();
+		}
+		if (reads.length > 0) {
+			journalReads(reads);
+		}
 	}
 
 	/**
-	 * Returns the maximum number of bytes that this cache should use to store
-	 * its data.
+	 * Turns group commit on or off. While it is on, each commit blocks until
+	 * its values and journal record are durable. The first commit of a group
+	 * waits for the window to pass, every commit made meanwhile joins it, and
+	 * the whole group is made durable with a single sync of the journal; the
+	 * value files are synced one by one. A longer window means fewer syncs and
+	 * more commits per second under concurrent writers, at the cost of the
+	 * latency of each commit. Commits made before group commit was turned on
+	 * are only durable once synced by the filesystem.
+	 * <p>
+	 * Renames are only durable once the directory is synced, which Java can't
+	 * do; a value whose rename is lost is dropped on open like any missing
+	 * file.
+	 * 
+	 * @param windowMillis
+	 *            how long a group gathers commits in milliseconds, 0 to sync
+	 *            commits as they come, or {@link #SYNC_DISABLED}
 	 */
-	public long maxSize() {
-		return maxSize;
+	public void setSyncWindow(long windowMillis) {
+		if (windowMillis < 0 && windowMillis != SYNC_DISABLED) {
+			throw new IllegalArgumentException("windowMillis < 0");
+		}
+		syncWindowMillis = windowMillis;
 	}
 
 	/**
-	 * Returns the number of bytes currently being used to store the values in
-	 * this cache. This may be greater than the max size if a background
-	 * deletion is pending.
+	 * Joins the open sync group and waits until it has been synced. The first
+	 * commit of a group syncs it once the window has passed.
 	 */
-	public synchronized long size() {
-		return size;
-	}
-
-	private synchronized void completeEdit(Editor editor, boolean success)
-			throws IOException {
-		Entry entry = editor.entry;
-		if (entry.currentEditor != editor) {
-			throw new IllegalStateException();
+	private void awaitSync(List<File> files) throws IOException {
+		final SyncGroup group;
+		final boolean leader;
+		synchronized (syncLock) {
+			group = openSyncGroup;
+			group.files.addAll(files);
+			leader = !group.hasLeader;
+			group.hasLeader = true;
 		}
 
-		// if this edit is creating the entry for the first time, every index
-		// must have a value
-		if (success && !entry.readable) {
-			for (int i = 0; i < valueCount; i++) {
-				if (!entry.getDirtyFile(i).exists()) {
-					editor.abort();
-					throw new IllegalStateException("edit didn't create file "
-							+ i);
+		boolean interrupted = false;
+		if (leader) {
+			final long window = syncWindowMillis;
+			if (window > 0) {
+				try {
+					Thread.sleep(window);
+				} catch (InterruptedException e) {
+					interrupted = true;
 				}
 			}
-		}
-
-		for (int i = 0; i < valueCount; i++) {
-			File dirty = entry.getDirtyFile(i);
-			if (success) {
-				if (dirty.exists()) {
-					File clean = entry.getCleanFile(i);
-					dirty.renameTo(clean);
-					long oldLength = entry.lengths[i];
-					long newLength = clean.length();
-					entry.lengths[i] = newLength;
-					size = size - oldLength + newLength;
-				}
-			} else {
-				deleteIfExists(dirty);
+			synchronized (syncLock) {
+				// Later commits start the next group
+				openSyncGroup = new SyncGroup();
 			}
-		}
-
-		redundantOpCount++;
-		entry.currentEditor = null;
-		if (entry.readable | success) {
-			entry.readable = true;
-			journalWriter.write(CLEAN + ' ' + entry.key + entry.getLengths()
-					+ '\n');
-			if (success) {
-				entry.sequenceNumber = nextSequenceNumber++;
+			IOException failure = null;
+			try {
+				syncGroup(group);
+			} catch (IOException e) {
+				failure = e;
+			}
+			synchronized (syncLock) {
+				group.synced = true;
+				group.failure = failure;
+				syncLock.notifyAll();
 			}
 		} else {
-			lruEntries.remove(entry.key);
-			journalWriter.write(REMOVE + ' ' + entry.key + '\n');
+			synchronized (syncLock) {
+				while (!group.synced) {
+					try {
+						syncLock.wait();
+					} catch (InterruptedException e) {
+						// The commit has already happened, it can't be undone
+						interrupted = true;
+					}
+				}
+			}
 		}
-
-		if (size > maxSize || journalRebuildRequired()) {
-			executorService.submit(cleanupCallable);
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+		if (group.failure != null) {
+			throw group.failure;
 		}
 	}
 
 	/**
-	 * We only rebuild the journal when it will halve the size of the journal
-	 * and eliminate at least 2000 ops.
+	 * Syncs the value files of a group, then writes the queued journal
+	 * records, which include those of the group, and syncs the journal.
 	 */
-	private boolean journalRebuildRequired() {
-		final int REDUNDANT_OP_COMPACT_THRESHOLD = 2000;
-		return redundantOpCount >= REDUNDANT_OP_COMPACT_THRESHOLD
-				&& redundantOpCount >= lruEntries.size();
+	private void syncGroup(SyncGroup group) throws IOException {
+		synchronized (syncWriteLock) {
+			for (File file : group.files) {
+				try {
+					syncFile(file);
+				} catch (FileNotFoundException removed) {
+					// Removed or replaced since; a replacement is synced by
+					// its own commit
+				}
+			}
+			synchronized (journalWriteLock) {
+				writeQueuedRecords();
+				if (journalWriter != null) {
+					// Compaction swaps the file under the same lock, so this
+					// is the file the records went to
+					syncFile(journalFile);
+				}
+			}
+		}
 	}
 
 	/**
-	 * Drops the entry for {@code key} if it exists and can be removed. Entries
-	 * actively being edited cannot be removed.
-	 * 
-	 * @return true if an entry was removed.
+	 * Flushes a file's data to the storage device. Linux, which Android runs
+	 * on, syncs the file through any descriptor, including a read-only one.
 	 */
-	public synchronized boolean remove(String key) throws IOException {
-		checkNotClosed();
-		validateKey(key);
-		Entry entry = lruEntries.get(key);
-		if (entry == null || entry.currentEditor != null) {
-			return false;
-		}
-
-		for (int i = 0; i < valueCount; i++) {
-			File file = entry.getCleanFile(i);
-			if (!file.delete()) {
-				throw new IOException("failed to delete " + file);
-			}
-			size -= entry.lengths[i];
-			entry.lengths[i] = 0;
-		}
-
-		redundantOpCount++;
-		journalWriter.append(REMOVE + ' ' + key + '\n');
-		lruEntries.remove(key);
-
-		if (journalRebuildRequired()) {
-			executorService.submit(cleanupCallable);
+	private static void syncFile(File file) throws IOException {
+		final FileInputStream in = new FileInputStream(file);
+		try {
+			in.getFD().sync();
+		} finally {
+			in.close();
 		}
-
-		return true;
 	}
 
 	/**
@@ -684,39 +1910,119 @@ public final class DiskLruCache implements Closeable {
 	}
 
 	/**
-	 * Force buffered operations to the filesystem.
+	 * Force buffered operations to the filesystem. This includes the LRU order
+	 * of recently read entries. With group commit on, the journal is synced
+	 * too.
 	 */
-	public synchronized void flush() throws IOException {
+	public void flush() throws IOException {
 		checkNotClosed();
+		evictExpired();
 		trimToSize();
-		journalWriter.flush();
+		journalPendingReads();
+		synchronized (journalWriteLock) {
+			writeQueuedRecords();
+			if (syncWindowMillis != SYNC_DISABLED && journalWriter != null) {
+				syncFile(journalFile);
+			}
+		}
 	}
 
 	/**
 	 * Closes this cache. Stored values will remain on the filesystem.
 	 */
 	@Override
-	public synchronized void close() throws IOException {
+	public void close() throws IOException {
 		if (journalWriter == null) {
 			return; // already closed
 		}
-		for (Entry entry : new ArrayList<Entry>(lruEntries.values())) {
-			if (entry.currentEditor != null) {
-				entry.currentEditor.abort();
+		final ArrayList<Editor> editors = new ArrayList<Editor>();
+		synchronized (this) {
+			for (Entry entry : lruEntries.values()) {
+				final Editor editor = entry.currentEditor;
+				if (editor != null) {
+					editors.add(editor);
+				}
+			}
+		}
+		for (Editor editor : editors) {
+			try {
+				editor.abort();
+			} catch (IllegalStateException alreadyCompleted) {
 			}
 		}
 		trimToSize();
-		journalWriter.close();
-		journalWriter = null;
+		journalPendingReads();
+		synchronized (journalWriteLock) {
+			writeQueuedRecords();
+			synchronized (journalLock) {
+				if (journalWriter != null) {
+					if (syncWindowMillis != SYNC_DISABLED) {
+						// Commits waiting for their group may find it closed
+						syncFile(journalFile);
+					}
+					journalWriter.close();
+					journalWriter = null;
+				}
+			}
+		}
 	}
 
 	private void trimToSize() throws IOException {
-		while (size > maxSize) {
-			// Map.Entry<String, Entry> toEvict = lruEntries.eldest();
-			final Map.Entry<String, Entry> toEvict = lruEntries.entrySet()
-					.iterator().next();
-			remove(toEvict.getKey());
+		while (true) {
+			Entry toEvict = null;
+			synchronized (this) {
+				if (size <= maxSize) {
+					return;
+				}
+				// Map.Entry<String, Entry> toEvict = lruEntries.eldest();
+				// Entries being edited can't be removed, skip them
+				if (evictionPolicy == null) {
+					for (Entry entry : lruEntries.values()) {
+						if (entry.readable && entry.currentEditor == null) {
+							toEvict = entry;
+							break;
+						}
+					}
+				} else {
+					toEvict = nextPolicyVictim();
+				}
+			}
+			if (toEvict == null) {
+				return;
+			}
+			removeEntry(toEvict, ANY_EXPIRY, true);
+		}
+	}
+
+	/**
+	 * Picks the first entry in the eviction policy's order that can be
+	 * removed. The caller must hold the index lock.
+	 */
+	private Entry nextPolicyVictim() {
+		ArrayList<String> unknownKeys = null;
+		Entry toEvict = null;
+		for (Iterator<String> i = evictionPolicy.evictionOrder(); i.hasNext();) {
+			final String key = i.next();
+			// This touches the access order of the index, but only for
+			// entries that are evicted or being edited
+			final Entry entry = lruEntries.get(key);
+			if (entry == null) {
+				// Left over from a failed open, dropped after the iteration
+				if (unknownKeys == null) {
+					unknownKeys = new ArrayList<String>();
+				}
+				unknownKeys.add(key);
+			} else if (entry.readable && entry.currentEditor == null) {
+				toEvict = entry;
+				break;
+			}
+		}
+		if (unknownKeys != null) {
+			for (String key : unknownKeys) {
+				evictionPolicy.onRemove(key, false);
+			}
 		}
+		return toEvict;
 	}
 
 	/**
@@ -745,14 +2051,60 @@ public final class DiskLruCache implements Closeable {
 	 * A snapshot of the values for an entry.
 	 */
 	public final class Snapshot implements Closeable {
-		private final String key;
+		private final Entry entry;
 		private final long sequenceNumber;
-		private final InputStream[] ins;
+		private final long[] lengths;
+		private final long expiresAt;
+		private final long createdAt;
+		private final long lastAccessedAt;
+		private final String contentType;
+		private final int width;
+		private final int height;
+		private final long tag;
+		private final FileInputStream[] ins;
+		private final MappedByteBuffer[] buffers;
+		private boolean closed;
 
-		private Snapshot(String key, long sequenceNumber, InputStream[] ins) {
-			this.key = key;
-			this.sequenceNumber = sequenceNumber;
-			this.ins = ins;
+		/**
+		 * Captures the state of an entry. The caller must hold the entry
+		 * lock.
+		 */
+		private Snapshot(Entry entry) {
+			this.entry = entry;
+			this.sequenceNumber = entry.sequenceNumber;
+			this.lengths = entry.lengths.clone();
+			this.expiresAt = entry.expiresAt;
+			this.createdAt = entry.createdAt;
+			this.lastAccessedAt = entry.lastAccessedAt;
+			this.contentType = entry.contentType;
+			this.width = entry.width;
+			this.height = entry.height;
+			this.tag = entry.tag;
+			this.ins = new FileInputStream[valueCount];
+			this.buffers = new MappedByteBuffer[valueCount];
+		}
+
+		/**
+		 * Opens the value for {@code index} if it isn't open yet, provided
+		 * the entry is still as it was when this snapshot was taken.
+		 */
+		private synchronized FileInputStream open(int index) {
+			if (ins[index] == null && !closed) {
+				synchronized (entry) {
+					if (entry.removed
+							|| entry.sequenceNumber != sequenceNumber) {
+						return null;
+					}
+					try {
+						ins[index] = new FileInputStream(
+								entry.getCleanFile(index));
+					} catch (FileNotFoundException e) {
+						// a file must have been deleted manually!
+						return null;
+					}
+				}
+			}
+			return ins[index];
 		}
 
 		/**
@@ -761,25 +2113,129 @@ public final class DiskLruCache implements Closeable {
 		 * is in progress.
 		 */
 		public Editor edit() throws IOException {
-			return DiskLruCache.this.edit(key, sequenceNumber);
+			return DiskLruCache.this.edit(entry.key, sequenceNumber);
+		}
+
+		/**
+		 * Returns the time at which this snapshot's entry expires in
+		 * milliseconds since the epoch, or 0 if it never expires.
+		 */
+		public long getExpiresAt() {
+			return expiresAt;
+		}
+
+		/**
+		 * Returns the time at which the values of this snapshot were
+		 * committed in milliseconds since the epoch, or 0 if unknown.
+		 */
+		public long getCreatedAt() {
+			return createdAt;
+		}
+
+		/**
+		 * Returns the time at which the entry was last read before this
+		 * snapshot was taken in milliseconds since the epoch, or 0 if unknown.
+		 * Reads are journaled in batches, so after a restart the time may be
+		 * that of an earlier read.
+		 */
+		public long getLastAccessedAt() {
+			return lastAccessedAt;
+		}
+
+		/**
+		 * Returns the content type set by the editor, or null if none was
+		 * set.
+		 */
+		public String getContentType() {
+			return contentType;
+		}
+
+		/**
+		 * Returns the pixel width set by the editor, or 0 if none was set.
+		 */
+		public int getWidth() {
+			return width;
+		}
+
+		/**
+		 * Returns the pixel height set by the editor, or 0 if none was set.
+		 */
+		public int getHeight() {
+			return height;
+		}
+
+		/**
+		 * Returns the tag set by the editor, or 0 if none was set.
+		 */
+		public long getTag() {
+			return tag;
+		}
+
+		/**
+		 * Returns the length in bytes of the value for {@code index}.
+		 */
+		public long getLength(int index) {
+			return lengths[index];
 		}
 
 		/**
-		 * Returns the unbuffered stream with the value for {@code index}.
+		 * Returns the unbuffered stream with the value for {@code index}, or
+		 * null if the value wasn't opened before the entry was changed or
+		 * removed. Every call returns the same stream.
 		 */
 		public InputStream getInputStream(int index) {
-			return ins[index];
+			return open(index);
+		}
+
+		/**
+		 * Returns the channel of the value for {@code index}, or null if the
+		 * value is no longer available. It shares its position with the
+		 * stream of {@link #getInputStream(int)}.
+		 */
+		public FileChannel getChannel(int index) {
+			final FileInputStream in = open(index);
+			return in != null ? in.getChannel() : null;
+		}
+
+		/**
+		 * Returns the file descriptor of the value for {@code index}, or null
+		 * if the value is no longer available. It is closed with this
+		 * snapshot.
+		 */
+		public FileDescriptor getFileDescriptor(int index) throws IOException {
+			final FileInputStream in = open(index);
+			return in != null ? in.getFD() : null;
+		}
+
+		/**
+		 * Returns a read-only memory map of the value for {@code index}, or
+		 * null if the value is no longer available. Every call returns the
+		 * same buffer, which stays valid after this snapshot is closed.
+		 */
+		public synchronized MappedByteBuffer map(int index) throws IOException {
+			if (buffers[index] == null) {
+				final FileChannel channel = getChannel(index);
+				if (channel == null) {
+					return null;
+				}
+				buffers[index] = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+						channel.size());
+			}
+			return buffers[index];
 		}
 
 		/**
-		 * Returns the string value for {@code index}.
+		 * Returns the string value for {@code index}, or null if the value is
+		 * no longer available.
 		 */
 		public String getString(int index) throws IOException {
-			return inputStreamToString(getInputStream(index));
+			final InputStream in = getInputStream(index);
+			return in != null ? inputStreamToString(in) : null;
 		}
 
 		@Override
-		public void close() {
+		public synchronized void close() {
+			closed = true;
 			for (InputStream in : ins) {
 				closeQuietly(in);
 			}
@@ -792,9 +2248,25 @@ public final class DiskLruCache implements Closeable {
 	public final class Editor {
 		private final Entry entry;
 		private boolean hasErrors;
+		private long expiresAt = ANY_EXPIRY;
+		private String contentType;
+		private int width;
+		private int height;
+		private long tag;
+
+		/** Values renamed into place by a commit that must be synced. */
+		private final List<File> committedFiles = new ArrayList<File>();
 
+		/**
+		 * Starts with the metadata of the entry. The caller must hold the
+		 * entry lock.
+		 */
 		private Editor(Entry entry) {
 			this.entry = entry;
+			this.contentType = entry.contentType;
+			this.width = entry.width;
+			this.height = entry.height;
+			this.tag = entry.tag;
 		}
 
 		/**
@@ -802,7 +2274,7 @@ public final class DiskLruCache implements Closeable {
 		 * or null if no value has been committed.
 		 */
 		public InputStream newInputStream(int index) throws IOException {
-			synchronized (DiskLruCache.this) {
+			synchronized (entry) {
 				if (entry.currentEditor != this) {
 					throw new IllegalStateException();
 				}
@@ -830,7 +2302,7 @@ public final class DiskLruCache implements Closeable {
 		 * IOExceptions.
 		 */
 		public OutputStream newOutputStream(int index) throws IOException {
-			synchronized (DiskLruCache.this) {
+			synchronized (entry) {
 				if (entry.currentEditor != this) {
 					throw new IllegalStateException();
 				}
@@ -852,17 +2324,98 @@ public final class DiskLruCache implements Closeable {
 			}
 		}
 
+		/**
+		 * Sets the time at which the entry expires once this edit is
+		 * committed. Expired entries are removed when they are next read or by
+		 * a background sweep. If this is not called the entry keeps its
+		 * previous expiry time.
+		 * 
+		 * @param expiresAt
+		 *            the expiry time in milliseconds since the epoch, or 0 if
+		 *            the entry never expires
+		 */
+		public void setExpiresAt(long expiresAt) {
+			if (expiresAt < 0) {
+				throw new IllegalArgumentException("expiresAt < 0");
+			}
+			this.expiresAt = expiresAt;
+		}
+
+		/**
+		 * Sets the content type stored with the entry, such as a MIME type.
+		 * If this is not called the entry keeps its previous content type.
+		 * 
+		 * @param contentType
+		 *            the content type of at most 255 UTF-8 bytes, or null if
+		 *            unknown
+		 */
+		public void setContentType(String contentType) {
+			if (contentType != null
+					&& encodeUtf8(contentType).length > MAX_CONTENT_TYPE_LENGTH) {
+				throw new IllegalArgumentException("contentType too long");
+			}
+			this.contentType = contentType != null && contentType.length() > 0 ? contentType
+					: null;
+		}
+
+		/**
+		 * Sets the pixel dimensions stored with the entry. If this is not
+		 * called the entry keeps its previous dimensions.
+		 * 
+		 * @param width
+		 *            the width, or 0 if unknown
+		 * @param height
+		 *            the height, or 0 if unknown
+		 */
+		public void setDimensions(int width, int height) {
+			if (width < 0 || height < 0) {
+				throw new IllegalArgumentException("width < 0 || height < 0");
+			}
+			this.width = width;
+			this.height = height;
+		}
+
+		/**
+		 * Sets a value stored with the entry for the caller's own use. If
+		 * this is not called the entry keeps its previous tag.
+		 */
+		public void setTag(long tag) {
+			this.tag = tag;
+		}
+
 		/**
 		 * Commits this edit so it is visible to readers. This releases the edit
 		 * lock so another edit may be started on the same key.
 		 */
 		public void commit() throws IOException {
-			if (hasErrors) {
+			if (hasErrors || !isAdmitted()) {
 				completeEdit(this, false);
 				remove(entry.key); // the previous entry is stale
 			} else {
 				completeEdit(this, true);
+				if (!committedFiles.isEmpty()) {
+					awaitSync(committedFiles);
+				}
+			}
+		}
+
+		/**
+		 * Returns true if the admission policy accepts the entry with the
+		 * values of this edit.
+		 */
+		private boolean isAdmitted() {
+			if (admissionPolicy == null) {
+				return true;
+			}
+			long length = 0;
+			synchronized (entry) {
+				for (int i = 0; i < valueCount; i++) {
+					final File dirty = entry.getDirtyFile(i);
+					length += dirty.exists() ? dirty.length()
+							: entry.lengths[i];
+				}
 			}
+			return admissionPolicy.admit(entry.key, length, maxSize());
 		}
 
 		/**
@@ -916,6 +2469,11 @@ public final class DiskLruCache implements Closeable {
 		}
 	}
 
+	/**
+	 * An entry of the index. Its fields are guarded by its own monitor;
+	 * {@link #readable} and {@link #currentEditor} may also be read without it
+	 * to pick eviction candidates, which are checked again under the lock.
+	 */
 	private final class Entry {
 		private final String key;
 
@@ -923,10 +2481,13 @@ public final class DiskLruCache implements Closeable {
 		private final long[] lengths;
 
 		/** True if this entry has ever been published */
-		private boolean readable;
+		private volatile boolean readable;
+
+		/** True once this entry has been dropped from the index. */
+		private boolean removed;
 
 		/** The ongoing edit or null if this entry is not being edited. */
-		private Editor currentEditor;
+		private volatile Editor currentEditor;
 
 		/**
 		 * The sequence number of the most recently committed edit to this
@@ -934,19 +2495,28 @@ public final class DiskLruCache implements Closeable {
 		 */
 		private long sequenceNumber;
 
+		/** The expiry time in milliseconds since the epoch, 0 for never. */
+		private long expiresAt;
+
+		/**
+		 * The time the values were committed and the time of the last read,
+		 * 0 if unknown. The access time may be read without the lock to
+		 * journal it.
+		 */
+		private long createdAt;
+		private volatile long lastAccessedAt;
+
+		/** Metadata set by the editor, null or 0 if unknown. */
+		private String contentType;
+		private int width;
+		private int height;
+		private long tag;
+
 		private Entry(String key) {
 			this.key = key;
 			this.lengths = new long[valueCount];
 		}
 
-		public String getLengths() throws IOException {
-			StringBuilder result = new StringBuilder();
-			for (long size : lengths) {
-				result.append(' ').append(size);
-			}
-			return result.toString();
-		}
-
 		/**
 		 * Set lengths using decimal numbers like "10123".
 		 */
@@ -964,6 +2534,45 @@ public final class DiskLruCache implements Closeable {
 			}
 		}
 
+		/**
+		 * Set the expiry time from a decimal number, or clear it if null.
+		 */
+		private void setExpiresAt(String string) throws IOException {
+			if (string == null) {
+				expiresAt = 0;
+				return;
+			}
+			try {
+				expiresAt = Long.parseLong(string);
+			} catch (NumberFormatException e) {
+				throw new IOException("unexpected journal expiry: " + string);
+			}
+		}
+
+		/** Copies the metadata of another entry, including its expiry time. */
+		private void copyMetadataFrom(Entry other) {
+			expiresAt = other.expiresAt;
+			createdAt = other.createdAt;
+			lastAccessedAt = other.lastAccessedAt;
+			contentType = other.contentType;
+			width = other.width;
+			height = other.height;
+			tag = other.tag;
+		}
+
+		/** Returns the total length of this entry's files. */
+		private long getLength() {
+			long length = 0;
+			for (int i = 0; i < valueCount; i++) {
+				length += lengths[i];
+			}
+			return length;
+		}
+
+		private boolean isExpired(long now) {
+			return expiresAt != 0 && expiresAt <= now;
+		}
+
 		private IOException invalidLengths(String[] strings) throws IOException {
 			throw new IOException("unexpected journal line: "
 					+ Arrays.toString(strings));
@@ -977,4 +2586,118 @@ public final class DiskLruCache implements Closeable {
 			return new File(directory, key + "." + i + ".tmp");
 		}
 	}
+
+	/**
+	 * Commits that are made durable by the same sync. Guarded by
+	 * {@link #syncLock}, except for the files, which are only read by the
+	 * group's leader once the group is closed.
+	 */
+	private static final class SyncGroup {
+		private final List<File> files = new ArrayList<File>();
+		private boolean hasLeader;
+		private boolean synced;
+		private IOException failure;
+	}
+
+	private static final class ExpiryRecord {
+		private final Entry entry;
+		private final long expiresAt;
+
+		private ExpiryRecord(Entry entry, long expiresAt) {
+			this.entry = entry;
+			this.expiresAt = expiresAt;
+		}
+	}
+
+	/**
+	 * A reusable buffer a journal record is assembled in before it is written
+	 * in one go.
+	 */
+	private static final class RecordBuffer extends ByteArrayOutputStream {
+		private final CRC32 checksum = new CRC32();
+
+		private void writeInt(int value) {
+			write(value >>> 24);
+			write(value >>> 16);
+			write(value >>> 8);
+			write(value);
+		}
+
+		private void writeLong(long value) {
+			writeInt((int) (value >>> 32));
+			writeInt((int) value);
+		}
+
+		/**
+		 * Writes the metadata of an entry, see the journal format.
+		 */
+		private void writeMetadata(Entry entry) {
+			writeVarLong(entry.expiresAt);
+			writeVarLong(entry.createdAt);
+			writeVarLong(entry.lastAccessedAt);
+			writeVarLong(entry.width);
+			writeVarLong(entry.height);
+			writeVarLong(entry.tag);
+			if (entry.contentType == null) {
+				writeVarLong(0);
+			} else {
+				final byte[] bytes = encodeUtf8(entry.contentType);
+				writeVarLong(bytes.length);
+				write(bytes, 0, bytes.length);
+			}
+		}
+
+		/**
+		 * Writes a key, packed if it only has characters of
+		 * {@link DiskLruCache#KEY_ALPHABET}.
+		 */
+		private void writeKey(String key) {
+			final int length = key.length();
+			boolean packable = true;
+			for (int i = 0; i < length && packable; i++) {
+				packable = KEY_ALPHABET.indexOf(key.charAt(i)) >= 0;
+			}
+			if (!packable) {
+				final byte[] keyBytes = encodeUtf8(key);
+				writeVarLong((long) keyBytes.length << 1);
+				write(keyBytes, 0, keyBytes.length);
+				return;
+			}
+
+			writeVarLong((long) length << 1 | 1);
+			int bits = 0;
+			int bitCount = 0;
+			for (int i = 0; i < length; i++) {
+				bits = bits << 5 | KEY_ALPHABET.indexOf(key.charAt(i));
+				bitCount += 5;
+				if (bitCount >= 8) {
+					bitCount -= 8;
+					write(bits >>> bitCount);
+				}
+			}
+			if (bitCount > 0) {
+				write(bits << (8 - bitCount));
+			}
+		}
+
+		/**
+		 * Writes an unsigned LEB128 varint.
+		 */
+		private void writeVarLong(long value) {
+			while ((value & ~0x7fL) != 0) {
+				write((int) (value & 0x7f) | 0x80);
+				value >>>= 7;
+			}
+			write((int) value);
+		}
+
+		/**
+		 * Writes the CRC32 of everything written since the last reset.
+		 */
+		private void writeChecksum() {
+			checksum.reset();
+			checksum.update(buf, 0, count);
+			writeInt((int) checksum.getValue());
+		}
+	}
 }
@@ -0,0 +1,350 @@
+package com.test.displaybitmaps.imagemanager;
+
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import android.graphics.drawable.BitmapDrawable;
+import android.os.Build;
+import android.os.Build.VERSION_CODES;
+import android.os.Process;
+
+/**
+ * A bounded write-behind queue of bitmaps waiting to be encoded and written to
+ * the disk cache. Writes are performed on low priority threads, one at a time
+ * by default, so the JPEG compress and file write no longer delay the worker
+ * that produced the bitmap. With several threads, writes of different keys
+ * run concurrently, which lets their disk cache commits share a sync when
+ * group commit is on; a single thread commits one entry per group.
+ * <p>
+ * A key that is queued again before it has been written replaces the pending
+ * write rather than adding a second one. Once the queue is full the oldest
+ * pending write is dropped. Until a write completes its bitmap can be read
+ * back with {@link #get(String)}.
+ */
+public class DiskWriteQueue {
+
+	/**
+	 * Performs the actual disk write of a queued bitmap.
+	 */
+	public interface Writer {
+		/**
+		 * @param key
+		 *            The memory cache key of the bitmap
+		 * @param imageSize
+		 *            The image size the bitmap was processed for
+		 * @param value
+		 *            The bitmap drawable to write
+		 * @param expiresAt
+		 *            The expiry time in milliseconds since the epoch, or 0 if
+		 *            the entry never expires
+		 */
+		void write(String key, ImageSize imageSize, BitmapDrawable value,
+				long expiresAt);
+	}
+
+	private static final ThreadFactory sThreadFactory = new ThreadFactory() {
+		@Override
+		public Thread newThread(final Runnable r) {
+			return new Thread(new Runnable() {
+				@Override
+				public void run() {
+					Process.setThreadPriority(Process.THREAD_PRIORITY_LOWEST);
+					r.run();
+				}
+			}, "DiskWriteQueue");
+		}
+	};
+
+	private final int mMaxSize;
+	private final int mThreadCount;
+	private final Writer mWriter;
+	private final ImageCacheStats mStats;
+	private final ThreadPoolExecutor mExecutor;
+
+	// Pending writes, oldest first. Also notified when a write completes
+	private final LinkedHashMap<String, PendingWrite> mPending = new LinkedHashMap<String, PendingWrite>();
+
+	// Keys being written, so that no two threads write the same key at once,
+	// and the number of background drains started. Guarded by mPending
+	private final HashSet<String> mWriting = new HashSet<String>();
+	private int mDrainsScheduled;
+
+	private final Runnable mDrainRunnable = new Runnable() {
+		@Override
+		public void run() {
+			drain(false);
+		}
+	};
+
+	/**
+	 * @param maxSize
+	 *            The maximum number of pending writes
+	 * @param writer
+	 *            The writer performing the disk writes
+	 * @param stats
+	 *            The statistics to record queue activity in
+	 */
+	public DiskWriteQueue(int maxSize, Writer writer, ImageCacheStats stats) {
+		this(maxSize, 1, writer, stats);
+	}
+
+	/**
+	 * @param maxSize
+	 *            The maximum number of pending writes
+	 * @param threadCount
+	 *            The number of threads writing concurrently
+	 * @param writer
+	 *            The writer performing the disk writes
+	 * @param stats
+	 *            The statistics to record queue activity in
+	 */
+	public DiskWriteQueue(int maxSize, int threadCount, Writer writer,
+			ImageCacheStats stats) {
+		if (threadCount <= 0) {
+			throw new IllegalArgumentException("threadCount <= 0");
+		}
+		mMaxSize = maxSize;
+		mThreadCount = threadCount;
+		mWriter = writer;
+		mStats = stats;
+		mExecutor = new ThreadPoolExecutor(threadCount, threadCount, 60L,
+				TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+				sThreadFactory);
+		if (Build.VERSION.SDK_INT >= VERSION_CODES.GINGERBREAD) {
+			// So that an idle queue holds no threads
+			mExecutor.allowCoreThreadTimeOut(true);
+		}
+	}
+
+	/**
+	 * Queues a bitmap to be written to disk.
+	 * 
+	 * @param key
+	 *            The memory cache key of the bitmap
+	 * @param imageSize
+	 *            The image size the bitmap was processed for
+	 * @param value
+	 *            The bitmap drawable to write
+	 * @param expiresAt
+	 *            The expiry time in milliseconds since the epoch, or 0 if the
+	 *            entry never expires
+	 */
+	public void enqueue(String key, ImageSize imageSize, BitmapDrawable value,
+			long expiresAt) {
+		final PendingWrite write = new PendingWrite(imageSize, value,
+				expiresAt);
+		write.retain();
+
+		PendingWrite replaced;
+		PendingWrite dropped = null;
+		synchronized (mPending) {
+			replaced = mPending.put(key, write);
+			if (replaced == null && mPending.size() > mMaxSize) {
+				final Iterator<PendingWrite> iterator = mPending.values()
+						.iterator();
+				dropped = iterator.next();
+				iterator.remove();
+			}
+			scheduleDrain();
+		}
+
+		mStats.increment(ImageCacheStats.DISK_WRITE_QUEUED);
+		if (replaced != null) {
+			replaced.release();
+			mStats.increment(ImageCacheStats.DISK_WRITE_COALESCED);
+		}
+		if (dropped != null) {
+			dropped.release();
+			mStats.increment(ImageCacheStats.DISK_WRITE_DROPPED);
+		}
+	}
+
+	/**
+	 * Starts one more background drain for each pending write, up to the
+	 * thread count. The caller must hold mPending.
+	 */
+	private void scheduleDrain() {
+		if (mDrainsScheduled < mThreadCount
+				&& mDrainsScheduled < mPending.size()) {
+			mDrainsScheduled++;
+			mExecutor.execute(mDrainRunnable);
+		}
+	}
+
+	/**
+	 * Makes sure the pending writes are written on the background threads,
+	 * without waiting for them. Use {@link #drain()} to wait.
+	 */
+	public void drainAsync() {
+		synchronized (mPending) {
+			while (mDrainsScheduled < mThreadCount
+					&& mDrainsScheduled < mPending.size()) {
+				scheduleDrain();
+			}
+		}
+	}
+
+	/**
+	 * @return true if the queue was created with the given settings
+	 */
+	public boolean hasSettings(int maxSize, int threadCount) {
+		return mMaxSize == maxSize && mThreadCount == threadCount;
+	}
+
+	/**
+	 * @param key
+	 *            The memory cache key
+	 * @return The bitmap drawable waiting to be written for the key, or null
+	 */
+	public BitmapDrawable get(String key) {
+		synchronized (mPending) {
+			final PendingWrite write = mPending.get(key);
+			return write != null ? write.value : null;
+		}
+	}
+
+	/**
+	 * Writes every pending bitmap on the calling thread, and waits for the
+	 * writes in progress on other threads. Note that this includes disk
+	 * access so this should not be executed on the main/UI thread.
+	 */
+	public void drain() {
+		drain(true);
+	}
+
+	/**
+	 * Writes pending bitmaps until none is left that isn't already being
+	 * written by another thread.
+	 * 
+	 * @param wait
+	 *            Whether to then wait for the writes of other threads, rather
+	 *            than return as a background drain does
+	 */
+	private void drain(boolean wait) {
+		while (true) {
+			String key = null;
+			PendingWrite write = null;
+			synchronized (mPending) {
+				while (write == null) {
+					for (Map.Entry<String, PendingWrite> pending : mPending
+							.entrySet()) {
+						if (!mWriting.contains(pending.getKey())) {
+							key = pending.getKey();
+							write = pending.getValue();
+							break;
+						}
+					}
+					if (write != null) {
+						break;
+					}
+					if (!wait) {
+						// Decided under the lock, so a write queued after
+						// this starts a new drain
+						mDrainsScheduled--;
+						return;
+					}
+					if (mPending.isEmpty()) {
+						return;
+					}
+					try {
+						mPending.wait();
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						return;
+					}
+				}
+				mWriting.add(key);
+				// Hold a reference of our own in case the entry is dropped
+				// or replaced while it is being written
+				write.retain();
+			}
+
+			// The entry stays queued while it is written so that it can still
+			// be read back
+			try {
+				mWriter.write(key, write.imageSize, write.value,
+						write.expiresAt);
+			} finally {
+				boolean removed = false;
+				synchronized (mPending) {
+					mWriting.remove(key);
+					// Unless it was replaced by a newer write in the meantime
+					if (mPending.get(key) == write) {
+						mPending.remove(key);
+						removed = true;
+					}
+					mPending.notifyAll();
+				}
+				if (removed) {
+					write.release();
+				}
+				write.release();
+			}
+		}
+	}
+
+	/**
+	 * Drops the oldest pending writes so that only the given fraction remains.
+	 * 
+	 * @param keepFraction
+	 *            The fraction of pending writes to keep, between 0 and 1
+	 */
+	public void trim(float keepFraction) {
+		int dropped = 0;
+		synchronized (mPending) {
+			int toRemove = mPending.size()
+					- (int) (mPending.size() * keepFraction);
+			final Iterator<PendingWrite> iterator = mPending.values()
+					.iterator();
+			while (toRemove-- > 0 && iterator.hasNext()) {
+				iterator.next().release();
+				iterator.remove();
+				dropped++;
+			}
+		}
+		mStats.add(ImageCacheStats.DISK_WRITE_DROPPED, dropped);
+	}
+
+	/**
+	 * Drops all pending writes.
+	 */
+	public void clear() {
+		trim(0f);
+	}
+
+	/**
+	 * A bitmap waiting to be written. A recycling drawable is marked as cached
+	 * for as long as it is queued or being written, so its bitmap is not
+	 * released to the pool before it has been written.
+	 */
+	private static class PendingWrite {
+		private final ImageSize imageSize;
+		private final BitmapDrawable value;
+		private final long expiresAt;
+
+		private PendingWrite(ImageSize imageSize, BitmapDrawable value,
+				long expiresAt) {
+			this.imageSize = imageSize;
+			this.value = value;
+			this.expiresAt = expiresAt;
+		}
+
+		private void retain() {
+			if (value instanceof RecyclingBitmapDrawable) {
+				((RecyclingBitmapDrawable) value).setIsCached(true);
+			}
+		}
+
+		private void release() {
+			if (value instanceof RecyclingBitmapDrawable) {
+				((RecyclingBitmapDrawable) value).setIsCached(false);
+			}
+		}
+	}
+}
@@ -0,0 +1,363 @@
+package com.test.displaybitmaps.imagemanager;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import android.support.v4.util.LruCache;
+import android.util.SparseArray;
+
+/**
+ * A memory cache of encoded image bytes sitting between the decoded bitmap
+ * cache and the disk cache. A hit here saves the file open and read of a disk
+ * cache hit and only pays for the decode. Encoded JPEG data is typically 5-10x
+ * smaller than the decoded pixels, so this tier holds far more entries than
+ * the bitmap cache for the same amount of memory.
+ * <p>
+ * Entries are stored in pooled {@link ByteBuffer}s, optionally allocated
+ * outside of the Java heap. Buffers are handed out with a reference count so
+ * that an entry evicted while it is being decoded is only returned to the pool
+ * once the reader has released it.
+ * <p>
+ * Entries may carry an expiry time. Expired entries are dropped when they are
+ * next read; they are otherwise evicted by size like any other entry.
+ */
+public class EncodedMemoryCache {
+
+	// Smallest buffer capacity handed out by the pool, capacities are rounded
+	// up to the next power of two from here
+	private static final int MIN_BUFFER_SIZE = 4 * 1024;
+
+	private final boolean mDirect;
+	private final int mMaxPoolSize;
+	private final LruCache<String, Entry> mCache;
+
+	// Free buffers keyed by capacity
+	private final SparseArray<List<ByteBuffer>> mPool = new SparseArray<List<ByteBuffer>>();
+	private int mPoolSize;
+
+	/**
+	 * @param maxSize
+	 *            The maximum number of bytes held by cached entries
+	 * @param direct
+	 *            Whether to allocate buffers outside of the Java heap
+	 */
+	public EncodedMemoryCache(int maxSize, boolean direct) {
+		mDirect = direct;
+		mMaxPoolSize = maxSize / 4;
+		mCache = new LruCache<String, Entry>(maxSize) {
+
+			@Override
+			protected void entryRemoved(boolean evicted, String key,
+					Entry oldValue, Entry newValue) {
+				oldValue.release();
+			}
+
+			@Override
+			protected int sizeOf(String key, Entry value) {
+				return value.buffer.capacity();
+			}
+		};
+	}
+
+	/**
+	 * Returns the encoded bytes for a key. The caller must call
+	 * {@link Entry#release()} once it has finished reading the buffer.
+	 * 
+	 * @param key
+	 *            The cache key
+	 * @return The entry, or null if the key is not cached
+	 */
+	public Entry get(String key) {
+		final Entry entry = mCache.get(key);
+		if (entry != null && entry.isExpired(System.currentTimeMillis())) {
+			mCache.remove(key);
+			return null;
+		}
+		if (entry != null && entry.acquire()) {
+			return entry;
+		}
+		return null;
+	}
+
+	/**
+	 * Copies encoded bytes into the cache.
+	 * 
+	 * @param key
+	 *            The cache key
+	 * @param data
+	 *            The encoded bytes
+	 * @param offset
+	 *            The offset of the first byte in data
+	 * @param length
+	 *            The number of bytes
+	 * @param expiresAt
+	 *            The expiry time in milliseconds since the epoch, or 0 if the
+	 *            entry never expires
+	 */
+	public void put(String key, byte[] data, int offset, int length,
+			long expiresAt) {
+		if (length > mCache.maxSize()) {
+			return;
+		}
+		final ByteBuffer buffer = obtainBuffer(length);
+		buffer.put(data, offset, length);
+		buffer.flip();
+		mCache.put(key, new Entry(buffer, expiresAt));
+	}
+
+	/**
+	 * Reads an encoded image into the cache and returns it. The caller must
+	 * call {@link Entry#release()} once it has finished reading the buffer.
+	 * 
+	 * @param key
+	 *            The cache key
+	 * @param in
+	 *            The stream holding the encoded bytes, it is not closed
+	 * @param length
+	 *            The number of bytes to read
+	 * @param expiresAt
+	 *            The expiry time in milliseconds since the epoch, or 0 if the
+	 *            entry never expires
+	 * @return The cached entry
+	 * @throws IOException
+	 *             If the stream ends early or can't be read
+	 */
+	public Entry put(String key, InputStream in, int length, long expiresAt)
+			throws IOException {
+		final ByteBuffer buffer = obtainBuffer(length);
+		final byte[] chunk = new byte[Math.min(length, 8 * 1024)];
+		int remaining = length;
+		while (remaining > 0) {
+			final int count = in.read(chunk, 0,
+					Math.min(chunk.length, remaining));
+			if (count == -1) {
+				recycleBuffer(buffer);
+				throw new IOException("unexpected end of stream");
+			}
+			buffer.put(chunk, 0, count);
+			remaining -= count;
+		}
+		buffer.flip();
+		return putBuffer(key, buffer, length, expiresAt);
+	}
+
+	/**
+	 * Reads an encoded image into the cache straight from a file, without an
+	 * intermediate copy, and returns it. The caller must call
+	 * {@link Entry#release()} once it has finished reading the buffer.
+	 * 
+	 * @param key
+	 *            The cache key
+	 * @param channel
+	 *            The file holding the encoded bytes from its start, it is
+	 *            not closed and its position is not changed
+	 * @param length
+	 *            The number of bytes to read
+	 * @param expiresAt
+	 *            The expiry time in milliseconds since the epoch, or 0 if the
+	 *            entry never expires
+	 * @return The cached entry
+	 * @throws IOException
+	 *             If the file ends early or can't be read
+	 */
+	public Entry put(String key, FileChannel channel, int length,
+			long expiresAt) throws IOException {
+		final ByteBuffer buffer = obtainBuffer(length);
+		buffer.limit(length);
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, buffer.position()) == -1) {
+				recycleBuffer(buffer);
+				throw new IOException("unexpected end of stream");
+			}
+		}
+		buffer.flip();
+		return putBuffer(key, buffer, length, expiresAt);
+	}
+
+	private Entry putBuffer(String key, ByteBuffer buffer, int length,
+			long expiresAt) {
+		// Entries too large to cache are only referenced by the caller
+		final Entry entry = new Entry(buffer, expiresAt);
+		if (length <= mCache.maxSize()) {
+			entry.acquire();
+			mCache.put(key, entry);
+		}
+		return entry;
+	}
+
+	/**
+	 * Removes the least recently used entries so that only the given fraction
+	 * of the current size remains.
+	 * 
+	 * @param keepFraction
+	 *            The fraction of the cache size to keep, between 0 and 1
+	 */
+	public void trim(float keepFraction) {
+		mCache.trimToSize((int) (mCache.size() * keepFraction));
+		if (keepFraction <= 0f) {
+			synchronized (mPool) {
+				mPool.clear();
+				mPoolSize = 0;
+			}
+		}
+	}
+
+	/**
+	 * Removes all entries.
+	 */
+	public void clear() {
+		trim(0f);
+	}
+
+	/**
+	 * @return The number of bytes held by cached entries
+	 */
+	public int size() {
+		return mCache.size();
+	}
+
+	private ByteBuffer obtainBuffer(int length) {
+		int capacity = MIN_BUFFER_SIZE;
+		while (capacity < length) {
+			capacity <<= 1;
+		}
+
+		synchronized (mPool) {
+			final List<ByteBuffer> buffers = mPool.get(capacity);
+			if (buffers != null && !buffers.isEmpty()) {
+				mPoolSize -= capacity;
+				final ByteBuffer buffer = buffers.remove(buffers.size() - 1);
+				buffer.clear();
+				return buffer;
+			}
+		}
+		return mDirect ? ByteBuffer.allocateDirect(capacity) : ByteBuffer
+				.allocate(capacity);
+	}
+
+	private void recycleBuffer(ByteBuffer buffer) {
+		final int capacity = buffer.capacity();
+		synchronized (mPool) {
+			if (mPoolSize + capacity > mMaxPoolSize) {
+				return;
+			}
+			List<ByteBuffer> buffers = mPool.get(capacity);
+			if (buffers == null) {
+				buffers = new ArrayList<ByteBuffer>();
+				mPool.put(capacity, buffers);
+			}
+			buffers.add(buffer);
+			mPoolSize += capacity;
+		}
+	}
+
+	/**
+	 * Encoded bytes held by the cache. The buffer is positioned at the first
+	 * byte and limited to the encoded length.
+	 */
+	public class Entry {
+		private final ByteBuffer buffer;
+		private final long expiresAt;
+
+		// One reference is held by the cache while the entry is cached
+		private int mRefCount = 1;
+
+		private Entry(ByteBuffer buffer, long expiresAt) {
+			this.buffer = buffer;
+			this.expiresAt = expiresAt;
+		}
+
+		/**
+		 * @return A view of the encoded bytes which must not be modified
+		 */
+		public ByteBuffer getBuffer() {
+			return buffer.duplicate();
+		}
+
+		private boolean isExpired(long now) {
+			return expiresAt != 0 && expiresAt <= now;
+		}
+
+		private synchronized boolean acquire() {
+			if (mRefCount <= 0) {
+				return false;
+			}
+			mRefCount++;
+			return true;
+		}
+
+		/**
+		 * Releases a reference to the entry. The buffer is returned to the
+		 * pool once it is neither cached nor being read.
+		 */
+		public void release() {
+			final boolean recycle;
+			synchronized (this) {
+				recycle = --mRefCount == 0;
+			}
+			if (recycle) {
+				recycleBuffer(buffer);
+			}
+		}
+	}
+
+	/**
+	 * @param buffer
+	 *            The buffer to read
+	 * @return A stream reading the remaining bytes of the buffer, for use with
+	 *         {@link android.graphics.BitmapFactory#decodeStream}
+	 */
+	static InputStream newInputStream(ByteBuffer buffer) {
+		return new ByteBufferInputStream(buffer);
+	}
+
+	/**
+	 * An InputStream reading the remaining bytes of a ByteBuffer.
+	 */
+	private static class ByteBufferInputStream extends InputStream {
+		private final ByteBuffer mBuffer;
+
+		private ByteBufferInputStream(ByteBuffer buffer) {
+			mBuffer = buffer;
+		}
+
+		@Override
+		public int read() {
+			return mBuffer.hasRemaining() ? mBuffer.get() & 0xFF : -1;
+		}
+
+		@Override
+		public int read(byte[] buffer, int offset, int length) {
+			if (!mBuffer.hasRemaining()) {
+				return -1;
+			}
+			length = Math.min(length, mBuffer.remaining());
+			mBuffer.get(buffer, offset, length);
+			return length;
+		}
+
+		@Override
+		public int available() {
+			return mBuffer.remaining();
+		}
+
+		@Override
+		public boolean markSupported() {
+			return true;
+		}
+
+		@Override
+		public synchronized void mark(int readLimit) {
+			mBuffer.mark();
+		}
+
+		@Override
+		public synchronized void reset() {
+			mBuffer.reset();
+		}
+	}
+}
@@ -0,0 +1,306 @@
+package com.test.displaybitmaps.imagemanager;
+
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.TreeSet;
+
+/**
+ * Decides which entries a {@link DiskLruCache} evicts first once it is over
+ * its maximum size. Without a policy the cache evicts the least recently used
+ * entry, following the access order of its index.
+ * <p>
+ * The cache calls the policy with its index lock held, so implementations
+ * need no synchronization of their own, but they must be fast and must not
+ * call back into the cache. A policy instance belongs to a single cache.
+ */
+public interface EvictionPolicy {
+
+	/**
+	 * Called when an entry is published, or re-published with new values,
+	 * and for each entry in LRU order when the cache is opened.
+	 *
+	 * @param key
+	 *            The entry key
+	 * @param size
+	 *            The total length of the entry values in bytes
+	 */
+	void onAdd(String key, long size);
+
+	/**
+	 * Called when an entry is read.
+	 *
+	 * @param key
+	 *            The entry key
+	 */
+	void onAccess(String key);
+
+	/**
+	 * Called when an entry is removed. The key may not have been added, e.g.
+	 * for an entry whose first edit failed.
+	 *
+	 * @param key
+	 *            The entry key
+	 * @param evicted
+	 *            true if the entry is removed because the cache is full
+	 */
+	void onRemove(String key, boolean evicted);
+
+	/**
+	 * @return The keys in the order they should be evicted. Entries being
+	 *         edited are skipped by the cache, so the iterator is only read as
+	 *         far as the first entry that can be removed.
+	 */
+	Iterator<String> evictionOrder();
+
+	/**
+	 * The available policies, for configuration.
+	 */
+	enum Type {
+		/** Least recently used first, the index order of the cache. */
+		LRU,
+		/** See {@link SegmentedLru}. */
+		SEGMENTED_LRU,
+		/** See {@link Gdsf}. */
+		GDSF;
+
+		/**
+		 * @return A new policy of this type, or null for {@link #LRU} which
+		 *         needs none
+		 */
+		public EvictionPolicy newPolicy() {
+			switch (this) {
+			case SEGMENTED_LRU:
+				return new SegmentedLru(SegmentedLru.DEFAULT_PROTECTED_FRACTION);
+			case GDSF:
+				return new Gdsf();
+			default:
+				return null;
+			}
+		}
+	}
+
+	/**
+	 * Segmented LRU: entries start in a probation segment and move to a
+	 * protected segment when they are read again. Entries read only once are
+	 * evicted before any protected entry, so a burst of one-off images can't
+	 * flush the images that are viewed repeatedly. When the protected segment
+	 * outgrows its share of the bytes, its least recently used entries go back
+	 * to probation.
+	 */
+	public static final class SegmentedLru implements EvictionPolicy {
+		public static final float DEFAULT_PROTECTED_FRACTION = 0.8f;
+
+		private final float mProtectedFraction;
+
+		// Key to size, least recently used first
+		private final LinkedHashMap<String, Long> mProbation = new LinkedHashMap<String, Long>();
+		private final LinkedHashMap<String, Long> mProtected = new LinkedHashMap<String, Long>();
+		private long mProbationBytes;
+		private long mProtectedBytes;
+
+		/**
+		 * @param protectedFraction
+		 *            The largest share of the bytes kept in the protected
+		 *            segment, between 0 and 1
+		 */
+		public SegmentedLru(float protectedFraction) {
+			if (protectedFraction < 0 || protectedFraction > 1) {
+				throw new IllegalArgumentException("protectedFraction");
+			}
+			mProtectedFraction = protectedFraction;
+		}
+
+		@Override
+		public void onAdd(String key, long size) {
+			final Long protectedSize = mProtected.remove(key);
+			if (protectedSize != null) {
+				// A rewrite counts as another use
+				mProtectedBytes += size - protectedSize;
+				mProtected.put(key, size);
+				demote();
+				return;
+			}
+			final Long probationSize = mProbation.remove(key);
+			if (probationSize != null) {
+				mProbationBytes -= probationSize;
+			}
+			mProbation.put(key, size);
+			mProbationBytes += size;
+		}
+
+		@Override
+		public void onAccess(String key) {
+			final Long protectedSize = mProtected.remove(key);
+			if (protectedSize != null) {
+				mProtected.put(key, protectedSize);
+				return;
+			}
+			final Long probationSize = mProbation.remove(key);
+			if (probationSize != null) {
+				mProbationBytes -= probationSize;
+				mProtected.put(key, probationSize);
+				mProtectedBytes += probationSize;
+				demote();
+			}
+		}
+
+		@Override
+		public void onRemove(String key, boolean evicted) {
+			final Long protectedSize = mProtected.remove(key);
+			if (protectedSize != null) {
+				mProtectedBytes -= protectedSize;
+			}
+			final Long probationSize = mProbation.remove(key);
+			if (probationSize != null) {
+				mProbationBytes -= probationSize;
+			}
+		}
+
+		/**
+		 * Moves the least recently used protected entries to probation until
+		 * the protected segment is within its share.
+		 */
+		private void demote() {
+			final long maxProtectedBytes = (long) ((mProbationBytes + mProtectedBytes) * mProtectedFraction);
+			final Iterator<Map.Entry<String, Long>> i = mProtected.entrySet()
+					.iterator();
+			while (mProtectedBytes > maxProtectedBytes && i.hasNext()) {
+				final Map.Entry<String, Long> eldest = i.next();
+				i.remove();
+				mProtectedBytes -= eldest.getValue();
+				mProbation.put(eldest.getKey(), eldest.getValue());
+				mProbationBytes += eldest.getValue();
+			}
+		}
+
+		@Override
+		public Iterator<String> evictionOrder() {
+			final Iterator<String> probation = mProbation.keySet().iterator();
+			final Iterator<String> protectedKeys = mProtected.keySet()
+					.iterator();
+			return new Iterator<String>() {
+				@Override
+				public boolean hasNext() {
+					return probation.hasNext() || protectedKeys.hasNext();
+				}
+
+				@Override
+				public String next() {
+					return probation.hasNext() ? probation.next()
+							: protectedKeys.next();
+				}
+
+				@Override
+				public void remove() {
+					throw new UnsupportedOperationException();
+				}
+			};
+		}
+	}
+
+	/**
+	 * Greedy-Dual-Size-Frequency: each entry has the priority L + frequency /
+	 * size, where L is the priority of the last evicted entry, and the lowest
+	 * priority is evicted first. Small and frequently read entries are kept
+	 * over large ones, so one large original doesn't displace hundreds of
+	 * thumbnails, and L ages out entries that were popular long ago. This
+	 * favors the object hit ratio over the byte hit ratio.
+	 */
+	public static final class Gdsf implements EvictionPolicy {
+		private final HashMap<String, Node> mNodes = new HashMap<String, Node>();
+		private final TreeSet<Node> mQueue = new TreeSet<Node>(
+				new Comparator<Node>() {
+					@Override
+					public int compare(Node lhs, Node rhs) {
+						if (lhs.priority != rhs.priority) {
+							return lhs.priority < rhs.priority ? -1 : 1;
+						}
+						return lhs.order < rhs.order ? -1
+								: (lhs.order == rhs.order ? 0 : 1);
+					}
+				});
+		private double mInflation;
+		private long mNextOrder;
+
+		@Override
+		public void onAdd(String key, long size) {
+			Node node = mNodes.get(key);
+			if (node == null) {
+				node = new Node(key);
+				mNodes.put(key, node);
+			} else {
+				mQueue.remove(node);
+			}
+			node.size = Math.max(size, 1);
+			update(node);
+		}
+
+		@Override
+		public void onAccess(String key) {
+			final Node node = mNodes.get(key);
+			if (node != null) {
+				mQueue.remove(node);
+				update(node);
+			}
+		}
+
+		private void update(Node node) {
+			node.frequency++;
+			node.priority = mInflation + (double) node.frequency / node.size;
+			// Ties are broken by recency
+			node.order = mNextOrder++;
+			mQueue.add(node);
+		}
+
+		@Override
+		public void onRemove(String key, boolean evicted) {
+			final Node node = mNodes.remove(key);
+			if (node != null) {
+				mQueue.remove(node);
+				if (evicted) {
+					mInflation = node.priority;
+				}
+			}
+		}
+
+		@Override
+		public Iterator<String> evictionOrder() {
+			final Iterator<Node> nodes = mQueue.iterator();
+			return new Iterator<String>() {
+				@Override
+				public boolean hasNext() {
+					return nodes.hasNext();
+				}
+
+				@Override
+				public String next() {
+					if (!nodes.hasNext()) {
+						throw new NoSuchElementException();
+					}
+					return nodes.next().key;
+				}
+
+				@Override
+				public void remove() {
+					throw new UnsupportedOperationException();
+				}
+			};
+		}
+
+		private static final class Node {
+			private final String key;
+			private long size;
+			private long frequency;
+			private double priority;
+			private long order;
+
+			private Node(String key) {
+				this.key = key;
+			}
+		}
+	}
+}
@@ -0,0 +1,241 @@
+package com.test.displaybitmaps.imagemanager;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import android.graphics.Bitmap;
+import android.graphics.Bitmap.Config;
+import android.graphics.drawable.BitmapDrawable;
+
+/**
+ * A snapshot of the most recently used memory cache entries, stored as raw
+ * pixels in a single file so the first screen after a cold start can be shown
+ * without decoding or waiting for the disk cache journal to be replayed.
+ * <p>
+ * The file starts with a header and an index of keys, dimensions, configs and
+ * expiry times followed by the pixel data of each entry. It is read back through a
+ * memory-mapped buffer, so only the pages of entries that are actually
+ * requested are loaded. Each entry can be restored once.
+ */
+public class HotSnapshot {
+	private static final int MAGIC = 0x484f5432; // "HOT2"
+
+	private final MappedByteBuffer mBuffer;
+	private final Map<String, Entry> mEntries;
+
+	private HotSnapshot(MappedByteBuffer buffer, Map<String, Entry> entries) {
+		mBuffer = buffer;
+		mEntries = entries;
+	}
+
+	/**
+	 * Writes the most recently used entries of a memory cache snapshot to a
+	 * file, replacing any previous snapshot.
+	 * 
+	 * @param file
+	 *            The file to write
+	 * @param entries
+	 *            The memory cache entries in access order, least recently used
+	 *            first, as returned by
+	 *            {@link android.support.v4.util.LruCache#snapshot()}
+	 * @param expiryTimes
+	 *            The expiry times of entries that have one, in milliseconds
+	 *            since the epoch; entries that have already expired are skipped
+	 * @param maxBytes
+	 *            The maximum number of pixel bytes to write
+	 * @return The number of entries written
+	 * @throws IOException
+	 *             If the file can't be written
+	 */
+	public static int write(File file, Map<String, BitmapDrawable> entries,
+			Map<String, Long> expiryTimes, int maxBytes) throws IOException {
+		final long now = System.currentTimeMillis();
+		// Walk from the most recently used entry until the budget is spent
+		final List<Map.Entry<String, BitmapDrawable>> all = new ArrayList<Map.Entry<String, BitmapDrawable>>(
+				entries.entrySet());
+		final List<String> keys = new ArrayList<String>();
+		final List<Bitmap> bitmaps = new ArrayList<Bitmap>();
+		final List<Long> expiries = new ArrayList<Long>();
+		int totalBytes = 0;
+		int maxLength = 0;
+		for (int i = all.size() - 1; i >= 0; i--) {
+			final String key = all.get(i).getKey();
+			final Bitmap bitmap = all.get(i).getValue().getBitmap();
+			if (bitmap == null || bitmap.isRecycled()
+					|| bitmap.getConfig() == null) {
+				continue;
+			}
+			final Long expiresAt = expiryTimes.get(key);
+			if (expiresAt != null && expiresAt <= now) {
+				continue;
+			}
+			final int length = bitmap.getRowBytes() * bitmap.getHeight();
+			if (totalBytes + length > maxBytes) {
+				break;
+			}
+			totalBytes += length;
+			maxLength = Math.max(maxLength, length);
+			keys.add(key);
+			bitmaps.add(bitmap);
+			expiries.add(expiresAt != null ? expiresAt : 0L);
+		}
+
+		final File tmpFile = new File(file.getPath() + ".tmp");
+		final DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream(new FileOutputStream(tmpFile)));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(keys.size());
+			for (int i = 0; i < keys.size(); i++) {
+				final Bitmap bitmap = bitmaps.get(i);
+				out.writeUTF(keys.get(i));
+				out.writeInt(bitmap.getWidth());
+				out.writeInt(bitmap.getHeight());
+				out.writeUTF(bitmap.getConfig().name());
+				out.writeInt(bitmap.getRowBytes() * bitmap.getHeight());
+				out.writeLong(expiries.get(i));
+			}
+
+			final ByteBuffer pixels = ByteBuffer.allocate(maxLength);
+			for (Bitmap bitmap : bitmaps) {
+				pixels.clear();
+				bitmap.copyPixelsToBuffer(pixels);
+				out.write(pixels.array(), 0, pixels.position());
+			}
+		} finally {
+			out.close();
+		}
+
+		if (!tmpFile.renameTo(file)) {
+			tmpFile.delete();
+			throw new IOException("failed to rename " + tmpFile);
+		}
+		return keys.size();
+	}
+
+	/**
+	 * Maps a snapshot written by {@link #write(File, Map, Map, int)} and reads its
+	 * index. The file is deleted once it is mapped, so a snapshot is never
+	 * restored twice.
+	 * 
+	 * @param file
+	 *            The snapshot file
+	 * @return The snapshot, or null if there is no snapshot file
+	 * @throws IOException
+	 *             If the file can't be read or is corrupt
+	 */
+	public static HotSnapshot open(File file) throws IOException {
+		if (!file.exists()) {
+			return null;
+		}
+
+		final RandomAccessFile randomAccessFile = new RandomAccessFile(file,
+				"r");
+		final MappedByteBuffer buffer;
+		try {
+			final FileChannel channel = randomAccessFile.getChannel();
+			buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+					channel.size());
+		} finally {
+			randomAccessFile.close();
+			file.delete();
+		}
+
+		final ByteBuffer index = buffer.duplicate();
+		final DataInputStream in = new DataInputStream(
+				EncodedMemoryCache.newInputStream(index));
+		if (in.readInt() != MAGIC) {
+			throw new IOException("unexpected snapshot header");
+		}
+		final int count = in.readInt();
+		final Map<String, Entry> entries = new HashMap<String, Entry>(count);
+		final List<Entry> ordered = new ArrayList<Entry>(count);
+		for (int i = 0; i < count; i++) {
+			final String key = in.readUTF();
+			final Entry entry = new Entry(in.readInt(), in.readInt(),
+					Config.valueOf(in.readUTF()), in.readInt(), in.readLong());
+			entries.put(key, entry);
+			ordered.add(entry);
+		}
+
+		// The pixel data follows the index in the same order
+		int offset = index.position();
+		for (Entry entry : ordered) {
+			entry.offset = offset;
+			offset += entry.length;
+		}
+		if (offset > buffer.capacity()) {
+			throw new IOException("truncated snapshot");
+		}
+		return new HotSnapshot(buffer, entries);
+	}
+
+	/**
+	 * Restores an entry from the snapshot. An entry can only be restored once.
+	 * 
+	 * @param key
+	 *            The memory cache key of the entry
+	 * @param pool
+	 *            The pool to take a bitmap to copy the pixels into from, or
+	 *            null
+	 * @return The restored bitmap, or null if the key is not in the snapshot
+	 *         or has expired since it was written
+	 */
+	public Bitmap get(String key, BitmapPool pool) {
+		final Entry entry;
+		synchronized (mEntries) {
+			entry = mEntries.remove(key);
+		}
+		if (entry == null || entry.expiresAt != 0
+				&& entry.expiresAt <= System.currentTimeMillis()) {
+			return null;
+		}
+
+		final Bitmap bitmap = RawBitmapFormat.obtainBitmap(entry.width,
+				entry.height, entry.config, pool);
+		final ByteBuffer pixels = mBuffer.duplicate();
+		pixels.position(entry.offset);
+		pixels.limit(entry.offset + entry.length);
+		bitmap.copyPixelsFromBuffer(pixels);
+		return bitmap;
+	}
+
+	/**
+	 * @return true if every entry has been restored
+	 */
+	public boolean isEmpty() {
+		synchronized (mEntries) {
+			return mEntries.isEmpty();
+		}
+	}
+
+	private static class Entry {
+		private final int width;
+		private final int height;
+		private final Config config;
+		private final int length;
+		private final long expiresAt;
+		private int offset;
+
+		private Entry(int width, int height, Config config, int length,
+				long expiresAt) {
+			this.width = width;
+			this.height = height;
+			this.config = config;
+			this.length = length;
+			this.expiresAt = expiresAt;
+		}
+	}
+}
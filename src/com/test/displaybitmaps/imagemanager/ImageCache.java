@@ -16,70 +16,114 @@
 
 package com.test.displaybitmaps.imagemanager;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileDescriptor;
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.lang.ref.SoftReference;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Iterator;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import android.annotation.TargetApi;
+import android.content.ComponentCallbacks2;
 import android.content.Context;
 import android.graphics.Bitmap;
+import android.graphics.Bitmap.CompressFormat;
 import android.graphics.Bitmap.Config;
 import android.graphics.BitmapFactory;
 import android.graphics.drawable.BitmapDrawable;
 import android.os.Build;
 import android.os.Build.VERSION_CODES;
 import android.os.StatFs;
+import android.os.SystemClock;
 import android.support.v4.util.LruCache;
 import android.util.Log;
 
 /**
  * This class handles disk and memory caching of bitmaps in conjunction with the
  * {@link ImageWorker} class and its subclasses. Use
- * {@link ImageCache#getInstance(android.support.v4.app.FragmentManager, ImageCacheParams)}
- * to get an instance of this class, although usually a cache should be added
- * directly to an {@link ImageWorker} by calling
- * {@link ImageWorker#addImageCache(android.support.v4.app.FragmentManager, ImageCacheParams)}
- * .
+ * {@link ImageCache#getInstance(String)} to get a named instance of this
+ * class, although usually a cache should be added directly to an
+ * {@link ImageWorker} by calling
+ * {@link ImageWorker#addImageCache(ImageCacheParams)}. Each named instance has
+ * its own memory budget and disk directory, so for example a full-screen
+ * viewer and a thumbnail grid do not evict each other's entries.
  */
 public class ImageCache {
 	private static final String TAG = "ImageCache";
 	private static final int DISK_CACHE_INDEX = 0;
 
-	private static ImageCache instance = null;
-	private DiskLruCache mDiskLruCache;
+	// Quality steps used to fit an encoded bitmap into its byte budget
+	private static final int COMPRESS_QUALITY_STEP = 15;
+	private static final int MIN_COMPRESS_QUALITY = 40;
+
+	private static final Map<String, ImageCache> sInstances = new HashMap<String, ImageCache>();
+	private ShardedDiskLruCache mDiskLruCache;
+	private SlabStore mSlabStore;
 	private LruCache<String, BitmapDrawable> mMemoryCache;
+	private EncodedMemoryCache mEncodedCache;
 	private ImageCacheParams mCacheParams;
 	private final Object mDiskCacheLock = new Object();
 	private boolean mDiskCacheStarting = true;
+	// Whether the disk cache may still hold entries under legacy keys
+	private boolean mDiskCacheHasLegacyKeys;
+
+	private BitmapPool mBitmapPool;
+	private final ImageCacheStats mStats = new ImageCacheStats();
+	private DiskWriteQueue mDiskWriteQueue;
+
+	// Expiry times of memory cache entries that have a time-to-live, in
+	// milliseconds since the epoch
+	private final Map<String, Long> mExpiryTimes = new ConcurrentHashMap<String, Long>();
 
-	private Set<SoftReference<Bitmap>> mReusableBitmaps;
+	// Memory cache entries persisted by the previous session, opened lazily
+	private HotSnapshot mHotSnapshot;
+	private boolean mHotSnapshotOpened;
+	private final Object mHotSnapshotLock = new Object();
+
+	// Keys dropped from the memory cache by the last trim, used to measure how
+	// long it takes to repopulate them from disk
+	private Set<String> mTrimmedKeys;
+	private long mTrimTime;
 
 	/**
-	 * Return an {@link ImageCache} instance. A {@link RetainFragment} is used
-	 * to retain the ImageCache object across configuration changes such as a
-	 * change in device orientation.
+	 * Return the default {@link ImageCache} instance.
 	 * 
-	 * @return An existing retained ImageCache object or a new one if one did
-	 *         not exist
+	 * @return An existing ImageCache object or a new one if one did not exist
 	 */
 	public static ImageCache getInstance() {
+		return getInstance(ImageCacheParams.DEFAULT_CACHE_NAME);
+	}
 
-		// No existing ImageCache, create one and store it
-		if (instance == null) {
-			instance = new ImageCache();
-		}
+	/**
+	 * Return the {@link ImageCache} instance registered under the given name.
+	 * 
+	 * @param name
+	 *            The unique name of the cache, usually
+	 *            {@link ImageCacheParams#uniqueName}
+	 * @return An existing ImageCache object or a new one if one did not exist
+	 */
+	public static ImageCache getInstance(String name) {
+		synchronized (sInstances) {
+			ImageCache instance = sInstances.get(name);
 
-		return instance;
+			// No existing ImageCache, create one and store it
+			if (instance == null) {
+				instance = new ImageCache();
+				sInstances.put(name, instance);
+			}
+
+			return instance;
+		}
 	}
 
 	/**
@@ -90,34 +134,34 @@ public class ImageCache {
 	 */
 	public void setupImageCacheParams(ImageCacheParams cacheParams) {
 		mCacheParams = cacheParams;
+		synchronized (mHotSnapshotLock) {
+			mHotSnapshot = null;
+			mHotSnapshotOpened = false;
+		}
 
 		// BEGIN_INCLUDE(init_memory_cache)
 		// Set up memory cache
 		if (mCacheParams.memoryCacheEnabled) {
 			Log.d(TAG, "Memory cache created (size = "
 					+ mCacheParams.memCacheSize + ")");
+			for (ImageSize imageSize : ImageSize.values()) {
+				Log.d(TAG, "Memory cache fits ~"
+						+ mCacheParams.estimateMemCacheEntries(imageSize)
+						+ " opaque " + imageSize + " entries as "
+						+ mCacheParams.getBitmapConfig(imageSize, false)
+						+ " (~"
+						+ mCacheParams.estimateMemCacheEntries(imageSize,
+								Config.ARGB_8888) + " as ARGB_8888)");
+			}
 
-			// If we're running on Honeycomb or newer, create a set of reusable
-			// bitmaps that can be
-			// populated into the inBitmap field of BitmapFactory.Options. Note
-			// that the set is
-			// of SoftReferences which will actually not be very effective due
-			// to the garbage
-			// collector being aggressive clearing Soft/WeakReferences. A better
-			// approach
-			// would be to use a strongly references bitmaps, however this would
-			// require some
-			// balancing of memory usage between this set and the bitmap
-			// LruCache. It would also
-			// require knowledge of the expected size of the bitmaps. From
-			// Honeycomb to JellyBean
-			// the size would need to be precise, from KitKat onward the size
-			// would just need to
-			// be the upper bound (due to changes in how inBitmap can re-use
-			// bitmaps).
+			// If we're running on Honeycomb or newer, use a pool of reusable
+			// bitmaps that can be populated into the inBitmap field of
+			// BitmapFactory.Options, either shared with the other named caches
+			// or private to this one.
 			if (Build.VERSION.SDK_INT >= VERSION_CODES.HONEYCOMB) {
-				mReusableBitmaps = Collections
-						.synchronizedSet(new HashSet<SoftReference<Bitmap>>());
+				mBitmapPool = mCacheParams.shareBitmapPool ? BitmapPool
+						.getSharedPool(mCacheParams.bitmapPoolSize)
+						: new BitmapPool(mCacheParams.bitmapPoolSize);
 			}
 
 			mMemoryCache = new LruCache<String, BitmapDrawable>(
@@ -129,10 +173,15 @@ public class ImageCache {
 				@Override
 				protected void entryRemoved(boolean evicted, String key,
 						BitmapDrawable oldValue, BitmapDrawable newValue) {
+					if (evicted) {
+						mStats.increment(ImageCacheStats.MEMORY_EVICTION);
+					}
+					mExpiryTimes.remove(key);
 					if (RecyclingBitmapDrawable.class.isInstance(oldValue)) {
 						// The removed entry is a recycling drawable, so notify
-						// it
-						// that it has been removed from the memory cache
+						// it that it has been removed from the memory cache.
+						// It returns its bitmap to the pool itself once it is
+						// no longer displayed either.
 						((RecyclingBitmapDrawable) oldValue).setIsCached(false);
 					} else {
 						// The removed entry is a standard BitmapDrawable
@@ -140,10 +189,9 @@ public class ImageCache {
 						if (Build.VERSION.SDK_INT >= VERSION_CODES.HONEYCOMB) {
 							// We're running on Honeycomb or later, so add the
 							// bitmap
-							// to a SoftReference set for possible use with
+							// to the bitmap pool for possible use with
 							// inBitmap later
-							mReusableBitmaps.add(new SoftReference<Bitmap>(
-									oldValue.getBitmap()));
+							mBitmapPool.put(oldValue.getBitmap());
 						}
 					}
 				}
@@ -161,6 +209,43 @@ public class ImageCache {
 		}
 		// END_INCLUDE(init_memory_cache)
 
+		// Set up the encoded memory cache that sits between the memory and
+		// disk caches
+		mEncodedCache = null;
+		if (mCacheParams.encodedCacheEnabled && mCacheParams.diskCacheEnabled) {
+			Log.d(TAG, "Encoded memory cache created (size = "
+					+ mCacheParams.encodedCacheSize + ")");
+
+			mEncodedCache = new EncodedMemoryCache(
+					mCacheParams.encodedCacheSize,
+					mCacheParams.encodedCacheDirect);
+		}
+
+		// Set up the write-behind queue for disk writes. This runs on the UI
+		// thread, e.g. when an activity is recreated and gets this cache
+		// again, so a previous queue is kept if it has the same settings and
+		// otherwise left to write its pending bitmaps on its own threads
+		final int diskWriteThreads = Math.max(1, mCacheParams.diskWriteThreads);
+		final boolean useDiskWriteQueue = mCacheParams.diskCacheEnabled
+				&& mCacheParams.diskWriteQueueSize > 0;
+		if (mDiskWriteQueue != null
+				&& !(useDiskWriteQueue && mDiskWriteQueue.hasSettings(
+						mCacheParams.diskWriteQueueSize, diskWriteThreads))) {
+			mDiskWriteQueue.drainAsync();
+			mDiskWriteQueue = null;
+		}
+		if (useDiskWriteQueue && mDiskWriteQueue == null) {
+			mDiskWriteQueue = new DiskWriteQueue(
+					mCacheParams.diskWriteQueueSize, diskWriteThreads,
+					new DiskWriteQueue.Writer() {
+						@Override
+						public void write(String key, ImageSize imageSize,
+								BitmapDrawable value, long expiresAt) {
+							writeToDiskCache(key, imageSize, value, expiresAt);
+						}
+					}, mStats);
+		}
+
 		// By default the disk cache is not initialized here as it should be
 		// initialized
 		// on a separate thread due to disk access.
@@ -187,8 +272,15 @@ public class ImageCache {
 					}
 					if (getUsableSpace(diskCacheDir) > mCacheParams.diskCacheSize) {
 						try {
-							mDiskLruCache = DiskLruCache.open(diskCacheDir, 1,
-									1, mCacheParams.diskCacheSize);
+							mDiskLruCache = ShardedDiskLruCache.open(
+									diskCacheDir, 1, 1,
+									mCacheParams.diskCacheSize,
+									mCacheParams.diskCacheShards,
+									mCacheParams.diskEvictionPolicy,
+									getDiskAdmissionPolicy());
+							mDiskLruCache
+									.setSyncWindow(mCacheParams.diskSyncWindowMillis);
+							mDiskCacheHasLegacyKeys = hasLegacyKeys(diskCacheDir);
 
 							Log.d(TAG, "Disk cache initialized");
 						} catch (final IOException e) {
@@ -198,13 +290,26 @@ public class ImageCache {
 					}
 				}
 			}
+			if (mSlabStore == null && mDiskLruCache != null
+					&& !mCacheParams.slabSizes.isEmpty()) {
+				try {
+					mSlabStore = SlabStore.open(getSlabStoreDir(),
+							mCacheParams.slabFileSize,
+							mCacheParams.slabStoreSize);
+
+					Log.d(TAG, "Slab store initialized");
+				} catch (final IOException e) {
+					Log.e(TAG, "initDiskCache - " + e);
+				}
+			}
 			mDiskCacheStarting = false;
 			mDiskCacheLock.notifyAll();
 		}
 	}
 
 	/**
-	 * Adds a bitmap to both memory and disk cache.
+	 * Adds a bitmap to both memory and disk cache, expiring after
+	 * {@link ImageCacheParams#defaultTtlMillis}.
 	 * 
 	 * @param data
 	 *            Unique identifier for the bitmap to store
@@ -214,11 +319,31 @@ public class ImageCache {
 	 */
 	public void addBitmapToCache(String data, ImageSize imageSize,
 			BitmapDrawable value) {
+		addBitmapToCache(data, imageSize, value, getDefaultTtlMillis());
+	}
+
+	/**
+	 * Adds a bitmap to both memory and disk cache.
+	 * 
+	 * @param data
+	 *            Unique identifier for the bitmap to store
+	 * @param imageSize
+	 * @param value
+	 *            The bitmap drawable to store
+	 * @param ttlMillis
+	 *            The time in milliseconds after which the entry expires, or 0
+	 *            if it never expires
+	 */
+	public void addBitmapToCache(String data, ImageSize imageSize,
+			BitmapDrawable value, long ttlMillis) {
 		// BEGIN_INCLUDE(add_bitmap_to_cache)
 		if (data == null || value == null) {
 			return;
 		}
 
+		final long startNanos = System.nanoTime();
+		final long expiresAt = getExpiryTime(ttlMillis);
+
 		// concat data + imageSize
 		data += imageSize.getSize();
 
@@ -230,44 +355,305 @@ public class ImageCache {
 				((RecyclingBitmapDrawable) value).setIsCached(true);
 			}
 			mMemoryCache.put(data, value);
+			if (expiresAt != 0) {
+				mExpiryTimes.put(data, expiresAt);
+			}
+			checkTrimRecovery(data);
 		}
 
-		synchronized (mDiskCacheLock) {
-			// Add to disk cache
-			if (mDiskLruCache != null) {
-				final String key = hashKeyForDisk(data);
-				OutputStream out = null;
+		// Add to disk cache, in the background if write-behind is enabled
+		if (mDiskWriteQueue != null) {
+			mDiskWriteQueue.enqueue(data, imageSize, value, expiresAt);
+		} else {
+			writeToDiskCache(data, imageSize, value, expiresAt);
+		}
+		mStats.recordLatency(ImageCacheStats.CACHE_ADD, startNanos);
+		// END_INCLUDE(add_bitmap_to_cache)
+	}
+
+	/**
+	 * Stores the original encoded bytes of an image in the disk cache, for
+	 * images that were decoded without downsampling. A later
+	 * {@link #addBitmapToCache} of the same image then finds the entry on disk
+	 * and skips the lossy re-encode. Originals taking more than
+	 * {@link ImageCacheParams#originalMaxBytesPerPixel} are left to be
+	 * re-encoded, as that is the smaller of the two. Note that this includes
+	 * disk access so this should not be executed on the main/UI thread.
+	 * 
+	 * @param data
+	 *            Unique identifier for the bitmap to store
+	 * @param imageSize
+	 * @param width
+	 *            The width of the original image
+	 * @param height
+	 *            The height of the original image
+	 * @param contentType
+	 *            The MIME type of the original image, or null if unknown
+	 * @param in
+	 *            The stream of the original bytes, it is not closed
+	 * @param length
+	 *            The number of bytes to copy
+	 * @return true if the original was stored
+	 */
+	public boolean addOriginalToDiskCache(String data, ImageSize imageSize,
+			int width, int height, String contentType, InputStream in,
+			long length) {
+		// Sizes stored as raw pixels are better off without a decode at all,
+		// and originals would bypass the slab store
+		if (data == null || mCacheParams.rawPixelSizes.contains(imageSize)
+				|| mCacheParams.slabSizes.contains(imageSize)
+				|| length > (long) width * height
+						* mCacheParams.originalMaxBytesPerPixel) {
+			return false;
+		}
+
+		final String key = hashKeyForDisk(data + imageSize.getSize());
+		final DiskLruCache.Editor editor = editDiskCache(key);
+		if (editor == null) {
+			return false;
+		}
+		OutputStream out = null;
+		boolean committed = false;
+		try {
+			out = editor.newOutputStream(DISK_CACHE_INDEX);
+			final byte[] buffer = new byte[8 * 1024];
+			long remaining = length;
+			while (remaining > 0) {
+				final int count = in.read(buffer, 0,
+						(int) Math.min(buffer.length, remaining));
+				if (count == -1) {
+					throw new IOException("unexpected end of stream");
+				}
+				out.write(buffer, 0, count);
+				remaining -= count;
+			}
+			out.close();
+			out = null;
+
+			editor.setExpiresAt(getExpiryTime(getDefaultTtlMillis()));
+			editor.setContentType(contentType);
+			editor.setDimensions(width, height);
+			// Not under mDiskCacheLock, see writeToDiskCache
+			editor.commit();
+			committed = true;
+			mStats.increment(ImageCacheStats.ORIGINAL_STORED);
+			mStats.add(ImageCacheStats.ORIGINAL_BYTES, length);
+			mStats.add(ImageCacheStats.BYTES_WRITTEN, length);
+		} catch (final IOException e) {
+			Log.e(TAG, "addOriginalToDiskCache - " + e);
+		} catch (IllegalStateException e) {
+			// The disk cache was closed or cleared during the edit
+		} catch (Exception e) {
+			Log.e(TAG, "addOriginalToDiskCache - " + e);
+		} finally {
+			try {
+				if (out != null) {
+					out.close();
+				}
+				if (!committed) {
+					editor.abort();
+				}
+			} catch (IOException e) {
+			} catch (IllegalStateException e) {
+				// The disk cache was closed or cleared during the edit
+			}
+		}
+		return committed;
+	}
+
+	/**
+	 * Encodes a bitmap and writes it to the disk cache, unless it is already
+	 * there. Image sizes listed in {@link ImageCacheParams#rawPixelSizes} are
+	 * written as raw pixels instead. Note that this includes disk access so
+	 * this should not be executed on the main/UI thread.
+	 * 
+	 * @param data
+	 *            The memory cache key of the bitmap
+	 * @param imageSize
+	 * @param value
+	 *            The bitmap drawable to store
+	 * @param expiresAt
+	 *            The expiry time in milliseconds since the epoch, or 0 if the
+	 *            entry never expires
+	 */
+	private void writeToDiskCache(String data, ImageSize imageSize,
+			BitmapDrawable value, long expiresAt) {
+		final String key = hashKeyForDisk(data);
+
+		// Small sizes are packed into the slab store when there is one
+		final SlabStore slabStore = mCacheParams.slabSizes
+				.contains(imageSize) ? mSlabStore : null;
+		if (slabStore != null && writeToSlabStore(slabStore, key, imageSize,
+				value, expiresAt)) {
+			return;
+		}
+
+		// mDiskCacheLock only covers the index lookup, the encode, the file
+		// write and the commit happen outside of it so they don't hold up disk reads on
+		// other threads.
+		final DiskLruCache.Editor editor = editDiskCache(key);
+		if (editor != null) {
+			OutputStream out = null;
+			boolean committed = false;
+			try {
+				final Bitmap bitmap = value.getBitmap();
+				final byte[] encoded = encodeBitmap(bitmap, imageSize)
+						.toByteArray();
+
+				out = editor.newOutputStream(DISK_CACHE_INDEX);
+				out.write(encoded);
+				out.close();
+				out = null;
+				mStats.add(ImageCacheStats.BYTES_WRITTEN, encoded.length);
+				if (mEncodedCache != null) {
+					// Keep the encoded bytes in the encoded memory cache as
+					// well as writing them to disk
+					mEncodedCache.put(key, encoded, 0, encoded.length,
+							expiresAt);
+				}
+
+				// Reads of the entry skip decoding the bounds with these
+				editor.setContentType(getContentType(encoded));
+				editor.setDimensions(bitmap.getWidth(), bitmap.getHeight());
+				editor.setExpiresAt(expiresAt);
+				// The disk cache is thread-safe, so the commit doesn't hold
+				// mDiskCacheLock. With group commit on it waits for the sync
+				// of its group, which must hold up neither reads nor the
+				// commits of other writers joining the group
+				editor.commit();
+				committed = true;
+			} catch (final IOException e) {
+				Log.e(TAG, "addBitmapToCache - " + e);
+			} catch (IllegalStateException e) {
+				// The disk cache was closed or cleared during the edit
+			} catch (Exception e) {
+				Log.e(TAG, "addBitmapToCache - " + e);
+			} finally {
 				try {
-					DiskLruCache.Snapshot snapshot = mDiskLruCache.get(key);
-					if (snapshot == null) {
-						final DiskLruCache.Editor editor = mDiskLruCache
-								.edit(key);
-						if (editor != null) {
-							out = editor.newOutputStream(DISK_CACHE_INDEX);
-							value.getBitmap().compress(
-									mCacheParams.compressFormat,
-									mCacheParams.compressQuality, out);
-							editor.commit();
-							out.close();
-						}
-					} else {
-						snapshot.getInputStream(DISK_CACHE_INDEX).close();
+					if (out != null) {
+						out.close();
 					}
-				} catch (final IOException e) {
-					Log.e(TAG, "addBitmapToCache - " + e);
-				} catch (Exception e) {
-					Log.e(TAG, "addBitmapToCache - " + e);
-				} finally {
-					try {
-						if (out != null) {
-							out.close();
-						}
-					} catch (IOException e) {
+					if (!committed) {
+						editor.abort();
 					}
+				} catch (IOException e) {
+				} catch (IllegalStateException e) {
+					// The disk cache was closed or cleared during the edit
 				}
 			}
 		}
-		// END_INCLUDE(add_bitmap_to_cache)
+	}
+
+	/**
+	 * Writes a bitmap to the slab store, unless it is already there.
+	 * 
+	 * @return true if the bitmap is in the store, false if it is too large and
+	 *         should go to the disk cache instead
+	 */
+	private boolean writeToSlabStore(SlabStore slabStore, String key,
+			ImageSize imageSize, BitmapDrawable value, long expiresAt) {
+		if (slabStore.contains(key)) {
+			return true;
+		}
+		try {
+			final ByteArrayOutputStream bytes = encodeBitmap(value.getBitmap(),
+					imageSize);
+			final byte[] encoded = bytes.toByteArray();
+			if (slabStore.put(key, encoded, 0, encoded.length, expiresAt)) {
+				mStats.add(ImageCacheStats.BYTES_WRITTEN, encoded.length);
+				return true;
+			}
+		} catch (final IOException e) {
+			Log.e(TAG, "writeToSlabStore - " + e);
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Encodes a bitmap in the disk format for its image size, raw pixels for
+	 * the sizes in {@link ImageCacheParams#rawPixelSizes} and the format
+	 * chosen by {@link #getCompressFormat(Bitmap)} otherwise. If the image size
+	 * has a byte budget in {@link ImageCacheParams#compressByteBudgets} the
+	 * quality is lowered step by step until the encoded bitmap fits.
+	 */
+	private ByteArrayOutputStream encodeBitmap(Bitmap bitmap,
+			ImageSize imageSize) throws IOException {
+		final long startNanos = System.nanoTime();
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		if (mCacheParams.rawPixelSizes.contains(imageSize)
+				&& bitmap.getConfig() != null) {
+			RawBitmapFormat.write(bitmap, bytes);
+			mStats.recordLatency(ImageCacheStats.ENCODE, startNanos);
+			mStats.add(ImageCacheStats.BYTES_WRITTEN_RAW, bytes.size());
+			return bytes;
+		}
+
+		final CompressFormat format = getCompressFormat(bitmap);
+		int quality = mCacheParams.compressQuality;
+		bitmap.compress(format, quality, bytes);
+		final Integer budget = mCacheParams.compressByteBudgets.get(imageSize);
+		while (budget != null && format != CompressFormat.PNG
+				&& bytes.size() > budget && quality > MIN_COMPRESS_QUALITY) {
+			quality = Math.max(MIN_COMPRESS_QUALITY, quality
+					- COMPRESS_QUALITY_STEP);
+			bytes.reset();
+			bitmap.compress(format, quality, bytes);
+		}
+		mStats.recordLatency(ImageCacheStats.ENCODE, startNanos);
+		// CompressFormat.WEBP doesn't resolve before ICS, so it isn't named here
+		mStats.add(format == CompressFormat.JPEG ? ImageCacheStats.BYTES_WRITTEN_JPEG
+				: format == CompressFormat.PNG ? ImageCacheStats.BYTES_WRITTEN_PNG
+						: ImageCacheStats.BYTES_WRITTEN_WEBP, bytes.size());
+		return bytes;
+	}
+
+	/**
+	 * @param encoded
+	 *            A bitmap encoded by {@link #encodeBitmap(Bitmap, ImageSize)}
+	 * @return The MIME type of the encoded bitmap, from its header
+	 */
+	private static String getContentType(byte[] encoded) {
+		final ByteBuffer header = ByteBuffer.wrap(encoded);
+		if (RawBitmapFormat.isRaw(header)) {
+			return RawBitmapFormat.CONTENT_TYPE;
+		}
+		if (encoded.length >= 12 && header.getInt(0) == 0x52494646 // "RIFF"
+				&& header.getInt(8) == 0x57454250) { // "WEBP"
+			return "image/webp";
+		}
+		if (encoded.length >= 4 && header.getInt(0) == 0x89504e47) { // "\x89PNG"
+			return "image/png";
+		}
+		if (encoded.length >= 2 && header.getShort(0) == (short) 0xffd8) {
+			return "image/jpeg";
+		}
+		return null;
+	}
+
+	/**
+	 * Picks the compress format for a bitmap. Bitmaps with alpha need PNG, or
+	 * WebP from Jelly Bean MR2 onward which is the first release to encode
+	 * WebP with alpha. Opaque bitmaps are written as WebP from Ice Cream
+	 * Sandwich onward, which is typically a quarter smaller than JPEG at the
+	 * same quality, and as JPEG before.
+	 * 
+	 * @param bitmap
+	 *            The bitmap to encode
+	 * @return The format to encode the bitmap with, always
+	 *         {@link ImageCacheParams#compressFormat} if
+	 *         {@link ImageCacheParams#autoCompressFormat} is off
+	 */
+	private CompressFormat getCompressFormat(Bitmap bitmap) {
+		if (!mCacheParams.autoCompressFormat) {
+			return mCacheParams.compressFormat;
+		}
+		if (bitmap.hasAlpha()) {
+			return Build.VERSION.SDK_INT >= VERSION_CODES.JELLY_BEAN_MR2 ? CompressFormat.WEBP
+					: CompressFormat.PNG;
+		}
+		return Build.VERSION.SDK_INT >= VERSION_CODES.ICE_CREAM_SANDWICH ? CompressFormat.WEBP
+				: CompressFormat.JPEG;
 	}
 
 	/**
@@ -289,8 +675,28 @@ public class ImageCache {
 			memValue = mMemoryCache.get(data);
 		}
 
+		// Lazily drop the entry if it has expired
+		if (memValue != null && isExpired(data, System.currentTimeMillis())) {
+			mMemoryCache.remove(data);
+			memValue = null;
+		}
+
 		if (memValue != null) {
 			Log.d(TAG, "Memory cache hit");
+			mStats.increment(ImageCacheStats.MEMORY_HIT);
+		} else {
+			mStats.increment(ImageCacheStats.MEMORY_MISS);
+
+			// Bitmaps evicted while still waiting to be written to disk are
+			// served from the write-behind queue
+			final DiskWriteQueue diskWriteQueue = mDiskWriteQueue;
+			if (diskWriteQueue != null) {
+				memValue = diskWriteQueue.get(data);
+				if (memValue != null) {
+					Log.d(TAG, "Pending disk write hit");
+					mStats.increment(ImageCacheStats.PENDING_HIT);
+				}
+			}
 		}
 
 		return memValue;
@@ -314,49 +720,384 @@ public class ImageCache {
 		final String key = hashKeyForDisk(data);
 		Bitmap bitmap = null;
 
+		// Entries restored from the hot snapshot of the previous session need
+		// neither a decode nor an initialized disk cache
+		bitmap = getBitmapFromHotSnapshot(data);
+		if (bitmap != null) {
+			Log.d(TAG, "Hot snapshot hit");
+			mStats.increment(ImageCacheStats.SNAPSHOT_HIT);
+			return bitmap;
+		}
+
+		// A hit in the encoded memory cache only costs the decode
+		final EncodedMemoryCache encodedCache = mEncodedCache;
+		if (encodedCache != null) {
+			final EncodedMemoryCache.Entry entry = encodedCache.get(key);
+			if (entry != null) {
+				Log.d(TAG, "Encoded memory cache hit");
+				mStats.increment(ImageCacheStats.ENCODED_HIT);
+				try {
+					return decodeFromBuffer(entry.getBuffer(), imageSize);
+				} finally {
+					entry.release();
+				}
+			}
+			mStats.increment(ImageCacheStats.ENCODED_MISS);
+		}
+
+		// Small sizes are looked up in the slab store first, a hit is a slice
+		// of a mapped file
+		if (mCacheParams.slabSizes.contains(imageSize)) {
+			final SlabStore slabStore = getSlabStore();
+			final ByteBuffer buffer = slabStore != null ? slabStore.get(key)
+					: null;
+			if (buffer != null) {
+				Log.d(TAG, "Slab store hit");
+				mStats.increment(ImageCacheStats.SLAB_HIT);
+				mStats.add(ImageCacheStats.BYTES_READ, buffer.remaining());
+				return decodeFromBuffer(buffer, imageSize);
+			}
+		}
+
+		// Only the index lookup holds mDiskCacheLock, the read and decode of
+		// the snapshot happen outside of it so reads of different keys proceed
+		// in parallel
+		final DiskLruCache.Snapshot snapshot = getDiskCacheSnapshot(data, key);
+		if (snapshot != null) {
+			Log.d(TAG, "Disk cache hit");
+			try {
+				final BitmapFactory.Options options = getDecodeOptions(snapshot);
+				final FileChannel channel = snapshot
+						.getChannel(DISK_CACHE_INDEX);
+				if (channel != null && encodedCache != null) {
+					// Read the encoded bytes into the encoded memory cache and
+					// decode from there
+					final int length = (int) channel.size();
+					final long startNanos = System.nanoTime();
+					final EncodedMemoryCache.Entry entry = encodedCache.put(
+							key, channel, length, snapshot.getExpiresAt());
+					mStats.recordLatency(ImageCacheStats.DISK_READ, startNanos);
+					mStats.add(ImageCacheStats.BYTES_READ, length);
+					try {
+						bitmap = decodeFromBuffer(entry.getBuffer(), imageSize,
+								options);
+					} finally {
+						entry.release();
+					}
+				} else if (channel != null) {
+					if (isRawEntry(snapshot, channel)) {
+						// Raw pixels are copied into a bitmap straight from the
+						// mapped file
+						final ByteBuffer buffer = snapshot.map(DISK_CACHE_INDEX);
+						mStats.add(ImageCacheStats.BYTES_READ, buffer.limit());
+						bitmap = decodeFromBuffer(buffer, imageSize);
+					} else {
+						FileDescriptor fd = snapshot
+								.getFileDescriptor(DISK_CACHE_INDEX);
+
+						// Decode bitmap, but we don't want to sample so give
+						// MAX_VALUE as the target dimensions
+						final long startNanos = System.nanoTime();
+						bitmap = ImageResizer.decodeSampledBitmapFromDescriptor(
+								fd, Integer.MAX_VALUE, Integer.MAX_VALUE,
+								imageSize, this, options);
+						mStats.recordLatency(ImageCacheStats.DECODE, startNanos);
+					}
+				}
+			} catch (final IOException e) {
+				Log.e(TAG, "getBitmapFromDiskCache - " + e);
+			} finally {
+				snapshot.close();
+			}
+		}
+		return bitmap;
+		// END_INCLUDE(get_bitmap_from_disk_cache)
+	}
+
+	/**
+	 * Decodes a disk cache entry held in memory, either by copying raw pixels
+	 * or with a full decode, without sampling.
+	 * 
+	 * @param buffer
+	 *            The entry bytes
+	 * @param imageSize
+	 * @return The bitmap, or null if the entry can't be decoded
+	 */
+	private Bitmap decodeFromBuffer(ByteBuffer buffer, ImageSize imageSize) {
+		return decodeFromBuffer(buffer, imageSize, new BitmapFactory.Options());
+	}
+
+	/**
+	 * @param options
+	 *            The options to decode with, which may already hold the
+	 *            bounds of the image
+	 * @see #decodeFromBuffer(ByteBuffer, ImageSize)
+	 */
+	private Bitmap decodeFromBuffer(ByteBuffer buffer, ImageSize imageSize,
+			BitmapFactory.Options options) {
+		final long startNanos = System.nanoTime();
+		if (RawBitmapFormat.isRaw(buffer)) {
+			try {
+				return RawBitmapFormat.read(buffer, mBitmapPool);
+			} catch (IOException e) {
+				Log.e(TAG, "decodeFromBuffer - " + e);
+				return null;
+			} finally {
+				mStats.recordLatency(ImageCacheStats.RAW_READ, startNanos);
+			}
+		}
+		try {
+			return ImageResizer.decodeSampledBitmapFromBuffer(buffer,
+					Integer.MAX_VALUE, Integer.MAX_VALUE, imageSize, this,
+					options);
+		} finally {
+			mStats.recordLatency(ImageCacheStats.DECODE, startNanos);
+		}
+	}
+
+	/**
+	 * @return Decode options holding the dimensions and MIME type stored with
+	 *         a disk cache entry, so its bounds needn't be decoded, or empty
+	 *         options if they weren't stored
+	 */
+	private static BitmapFactory.Options getDecodeOptions(
+			DiskLruCache.Snapshot snapshot) {
+		final BitmapFactory.Options options = new BitmapFactory.Options();
+		if (snapshot.getContentType() != null && snapshot.getWidth() > 0
+				&& snapshot.getHeight() > 0) {
+			options.outMimeType = snapshot.getContentType();
+			options.outWidth = snapshot.getWidth();
+			options.outHeight = snapshot.getHeight();
+		}
+		return options;
+	}
+
+	/**
+	 * @return true if a disk cache entry holds raw pixels, from its content
+	 *         type or, for entries written without one, from its header
+	 */
+	private static boolean isRawEntry(DiskLruCache.Snapshot snapshot,
+			FileChannel channel) throws IOException {
+		final String contentType = snapshot.getContentType();
+		if (contentType != null) {
+			return RawBitmapFormat.CONTENT_TYPE.equals(contentType);
+		}
+		final ByteBuffer header = ByteBuffer.allocate(4);
+		channel.read(header, 0);
+		header.flip();
+		return RawBitmapFormat.isRaw(header);
+	}
+
+	/**
+	 * Looks up a disk cache entry, waiting for the disk cache to be
+	 * initialized. Only the lookup itself holds mDiskCacheLock.
+	 * 
+	 * @param data
+	 *            The data the key was hashed from
+	 * @param key
+	 *            The disk cache key
+	 * @return The snapshot which the caller must close, or null on a miss or if
+	 *         there is no disk cache
+	 */
+	private DiskLruCache.Snapshot getDiskCacheSnapshot(String data, String key) {
+		final long startNanos = System.nanoTime();
 		synchronized (mDiskCacheLock) {
+			mStats.recordLatency(ImageCacheStats.DISK_LOCK_WAIT, startNanos);
 			while (mDiskCacheStarting) {
 				try {
 					mDiskCacheLock.wait();
 				} catch (InterruptedException e) {
 				}
 			}
-			if (mDiskLruCache != null) {
-				InputStream inputStream = null;
+			if (mDiskLruCache == null) {
+				return null;
+			}
+			try {
+				DiskLruCache.Snapshot snapshot = mDiskLruCache.get(key);
+				if (snapshot == null && mDiskCacheHasLegacyKeys
+						&& migrateLegacyKey(mDiskLruCache, data, key)) {
+					snapshot = mDiskLruCache.get(key);
+				}
+				mStats.increment(snapshot != null ? ImageCacheStats.DISK_HIT
+						: ImageCacheStats.DISK_MISS);
+				return snapshot;
+			} catch (final IOException e) {
+				Log.e(TAG, "getDiskCacheSnapshot - " + e);
+			}
+			return null;
+		}
+	}
+
+	/**
+	 * @return The admission policy for
+	 *         {@link ImageCacheParams#diskMaxEntryFraction}, or null if every
+	 *         entry is admitted
+	 */
+	private AdmissionPolicy getDiskAdmissionPolicy() {
+		final float fraction = mCacheParams.diskMaxEntryFraction;
+		return fraction > 0 && fraction < 1 ? new AdmissionPolicy.MaxEntryFraction(
+				fraction) : null;
+	}
+
+	/**
+	 * @return The slab store once the disk cache has been initialized, or null
+	 *         if there is none
+	 */
+	private SlabStore getSlabStore() {
+		synchronized (mDiskCacheLock) {
+			while (mDiskCacheStarting) {
 				try {
-					final DiskLruCache.Snapshot snapshot = mDiskLruCache
-							.get(key);
-					if (snapshot != null) {
-						Log.d(TAG, "Disk cache hit");
-
-						inputStream = snapshot.getInputStream(DISK_CACHE_INDEX);
-						if (inputStream != null) {
-							FileDescriptor fd = ((FileInputStream) inputStream)
-									.getFD();
-
-							// Decode bitmap, but we don't want to sample so
-							// give
-							// MAX_VALUE as the target dimensions
-							bitmap = ImageResizer
-									.decodeSampledBitmapFromDescriptor(fd,
-											Integer.MAX_VALUE,
-											Integer.MAX_VALUE, this);
-						}
-					}
-				} catch (final IOException e) {
-					Log.e(TAG, "getBitmapFromDiskCache - " + e);
-				} finally {
+					mDiskCacheLock.wait();
+				} catch (InterruptedException e) {
+				}
+			}
+			return mSlabStore;
+		}
+	}
+
+	/**
+	 * @return The slab store directory, kept next to the disk cache directory
+	 *         as the directory itself belongs to the {@link DiskLruCache}
+	 */
+	private File getSlabStoreDir() {
+		final File diskCacheDir = mCacheParams.diskCacheDir;
+		return new File(diskCacheDir.getParentFile(), diskCacheDir.getName()
+				+ ".slab");
+	}
+
+	/**
+	 * Starts a disk cache edit for a key that is not on disk yet. Only the
+	 * index operations hold mDiskCacheLock.
+	 * 
+	 * @param key
+	 *            The disk cache key
+	 * @return The editor which the caller must commit or abort, or null if the
+	 *         entry already exists, is being written by another thread or there
+	 *         is no disk cache
+	 */
+	private DiskLruCache.Editor editDiskCache(String key) {
+		final long startNanos = System.nanoTime();
+		synchronized (mDiskCacheLock) {
+			mStats.recordLatency(ImageCacheStats.DISK_LOCK_WAIT, startNanos);
+			if (mDiskLruCache == null) {
+				return null;
+			}
+			try {
+				final DiskLruCache.Snapshot snapshot = mDiskLruCache.get(key);
+				if (snapshot != null) {
+					snapshot.close();
+					return null;
+				}
+				return mDiskLruCache.edit(key);
+			} catch (final IOException e) {
+				Log.e(TAG, "editDiskCache - " + e);
+			}
+			return null;
+		}
+	}
+
+	/**
+	 * Restores an entry from the hot snapshot written when the cache was last
+	 * closed. The snapshot is mapped on first use.
+	 * 
+	 * @param data
+	 *            The memory cache key
+	 * @return The restored bitmap, or null if the key was not in the snapshot
+	 */
+	private Bitmap getBitmapFromHotSnapshot(String data) {
+		synchronized (mHotSnapshotLock) {
+			if (!mHotSnapshotOpened) {
+				mHotSnapshotOpened = true;
+				final File file = getHotSnapshotFile();
+				if (file != null) {
 					try {
-						if (inputStream != null) {
-							inputStream.close();
-						}
+						mHotSnapshot = HotSnapshot.open(file);
 					} catch (IOException e) {
+						Log.e(TAG, "getBitmapFromHotSnapshot - " + e);
+					} catch (IllegalArgumentException e) {
+						Log.e(TAG, "getBitmapFromHotSnapshot - " + e);
 					}
 				}
 			}
+			if (mHotSnapshot == null) {
+				return null;
+			}
+
+			final Bitmap bitmap = mHotSnapshot.get(data, mBitmapPool);
+			if (mHotSnapshot.isEmpty()) {
+				mHotSnapshot = null;
+			}
 			return bitmap;
 		}
-		// END_INCLUDE(get_bitmap_from_disk_cache)
+	}
+
+	/**
+	 * Writes the most recently used memory cache entries to the hot snapshot
+	 * so they can be restored without decoding after a restart.
+	 */
+	private void writeHotSnapshot() {
+		final File file = getHotSnapshotFile();
+		if (file == null || mMemoryCache == null) {
+			return;
+		}
+		try {
+			final int count = HotSnapshot.write(file, mMemoryCache.snapshot(),
+					mExpiryTimes, mCacheParams.hotSnapshotSize);
+
+			Log.d(TAG, "Hot snapshot written (" + count + " entries)");
+		} catch (IOException e) {
+			Log.e(TAG, "writeHotSnapshot - " + e);
+		}
+	}
+
+	/**
+	 * @return The hot snapshot file, kept next to the disk cache directory as
+	 *         the directory itself belongs to the {@link DiskLruCache}, or null
+	 *         if the snapshot is disabled
+	 */
+	private File getHotSnapshotFile() {
+		final File diskCacheDir = mCacheParams.diskCacheDir;
+		if (!mCacheParams.hotSnapshotEnabled || diskCacheDir == null) {
+			return null;
+		}
+		return new File(diskCacheDir.getParentFile(), diskCacheDir.getName()
+				+ ".hot");
+	}
+
+	/**
+	 * Removes expired entries from the memory cache. Expired disk cache
+	 * entries are swept by the {@link DiskLruCache} itself, and expired
+	 * encoded entries are dropped when they are next read.
+	 * 
+	 * @return The number of memory cache entries removed
+	 */
+	public int evictExpired() {
+		if (mMemoryCache == null || mExpiryTimes.isEmpty()) {
+			return 0;
+		}
+		final long now = System.currentTimeMillis();
+		int removed = 0;
+		for (String key : mExpiryTimes.keySet()) {
+			if (isExpired(key, now) && mMemoryCache.remove(key) != null) {
+				removed++;
+			}
+		}
+		return removed;
+	}
+
+	private boolean isExpired(String key, long now) {
+		final Long expiresAt = mExpiryTimes.get(key);
+		return expiresAt != null && expiresAt <= now;
+	}
+
+	/**
+	 * @param ttlMillis
+	 *            A time-to-live in milliseconds, or 0 for none
+	 * @return The expiry time in milliseconds since the epoch for an entry
+	 *         written now, or 0 if it never expires
+	 */
+	static long getExpiryTime(long ttlMillis) {
+		return ttlMillis > 0 ? System.currentTimeMillis() + ttlMillis : 0;
 	}
 
 	/**
@@ -365,39 +1106,46 @@ public class ImageCache {
 	 * @return Bitmap that case be used for inBitmap
 	 */
 	protected Bitmap getBitmapFromReusableSet(BitmapFactory.Options options) {
-		// BEGIN_INCLUDE(get_bitmap_from_reusable_set)
-		Bitmap bitmap = null;
+		return mBitmapPool != null ? mBitmapPool.get(options) : null;
+	}
 
-		if (mReusableBitmaps != null && !mReusableBitmaps.isEmpty()) {
-			synchronized (mReusableBitmaps) {
-				final Iterator<SoftReference<Bitmap>> iterator = mReusableBitmaps
-						.iterator();
-				Bitmap item;
+	/**
+	 * @return The pool of reusable bitmaps, or null before Honeycomb where
+	 *         bitmaps can't be re-used
+	 */
+	BitmapPool getBitmapPool() {
+		return mBitmapPool;
+	}
 
-				while (iterator.hasNext()) {
-					item = iterator.next().get();
+	/**
+	 * @return The statistics recorded by this cache, see
+	 *         {@link ImageCacheStats#snapshot()}
+	 */
+	public ImageCacheStats getStats() {
+		return mStats;
+	}
 
-					if (null != item && item.isMutable()) {
-						// Check to see it the item can be used for inBitmap
-						if (canUseForInBitmap(item, options)) {
-							bitmap = item;
+	/**
+	 * @return The time-to-live given to entries added without one, see
+	 *         {@link ImageCacheParams#defaultTtlMillis}
+	 */
+	public long getDefaultTtlMillis() {
+		return mCacheParams != null ? mCacheParams.defaultTtlMillis : 0;
+	}
 
-							// Remove from reusable set so it can't be used
-							// again
-							iterator.remove();
-							break;
-						}
-					} else {
-						// Remove from the set if the reference has been
-						// cleared.
-						iterator.remove();
-					}
-				}
-			}
+	/**
+	 * @param imageSize
+	 *            The requested image size
+	 * @param hasAlpha
+	 *            Whether the image may have an alpha channel
+	 * @return The config to decode the image with, as configured by
+	 *         {@link ImageCacheParams#bitmapConfigs}
+	 */
+	public Config getBitmapConfig(ImageSize imageSize, boolean hasAlpha) {
+		if (mCacheParams == null) {
+			return Config.ARGB_8888;
 		}
-
-		return bitmap;
-		// END_INCLUDE(get_bitmap_from_reusable_set)
+		return mCacheParams.getBitmapConfig(imageSize, hasAlpha);
 	}
 
 	/**
@@ -419,14 +1167,131 @@ public class ImageCache {
 
 			Log.d(TAG, "Memory cache cleared");
 		}
+
+		if (mEncodedCache != null) {
+			mEncodedCache.clear();
+
+			Log.d(TAG, "Encoded memory cache cleared");
+		}
+	}
+
+	/**
+	 * Releases memory cache and reusable bitmap space according to the
+	 * importance of the given trim level, as delivered to
+	 * {@link ComponentCallbacks2#onTrimMemory(int)}. The mild levels only
+	 * trim the least recently used entries so the visible working set stays
+	 * in memory; the memory cache is cleared completely once the process is
+	 * in the background LRU list.
+	 * 
+	 * @param level
+	 *            The trim level
+	 */
+	public void onTrimMemory(int level) {
+		final float keepFraction = getTrimKeepFraction(level);
+		if (keepFraction >= 1f) {
+			return;
+		}
+
+		if (mMemoryCache != null) {
+			final Set<String> keysBefore = mMemoryCache.snapshot().keySet();
+			if (keepFraction <= 0f) {
+				mMemoryCache.evictAll();
+			} else {
+				mMemoryCache.trimToSize((int) (mMemoryCache.size() * keepFraction));
+			}
+
+			final Set<String> trimmedKeys = new HashSet<String>(keysBefore);
+			trimmedKeys.removeAll(mMemoryCache.snapshot().keySet());
+			mTrimmedKeys = Collections.synchronizedSet(trimmedKeys);
+			mTrimTime = SystemClock.uptimeMillis();
+
+			Log.d(TAG, "onTrimMemory - level " + level + ", trimmed "
+					+ trimmedKeys.size() + " entries, memory cache size = "
+					+ mMemoryCache.size());
+		}
+
+		if (mBitmapPool != null) {
+			mBitmapPool.trim(keepFraction);
+		}
+
+		if (mEncodedCache != null) {
+			mEncodedCache.trim(keepFraction);
+		}
+
+		// Pending disk writes are best effort, drop them rather than hold on
+		// to their bitmaps
+		if (mDiskWriteQueue != null) {
+			mDiskWriteQueue.trim(keepFraction);
+		}
+	}
+
+	/**
+	 * @param level
+	 *            - The trim level
+	 * @return The fraction of the current memory cache size to keep for the
+	 *         given trim level
+	 */
+	private static float getTrimKeepFraction(int level) {
+		if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE) {
+			return 0f;
+		} else if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND) {
+			return 0.25f;
+		} else if (level >= ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN) {
+			return 0.5f;
+		} else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+			return 0.25f;
+		} else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+			return 0.5f;
+		} else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE) {
+			return 0.75f;
+		}
+		return 1f;
+	}
+
+	/**
+	 * Logs the time elapsed since the last trim whenever an entry dropped by
+	 * that trim is added back, which measures how long the visible grid takes
+	 * to be repopulated from disk.
+	 * 
+	 * @param key
+	 *            The memory cache key that has just been added
+	 */
+	private void checkTrimRecovery(String key) {
+		final Set<String> trimmedKeys = mTrimmedKeys;
+		if (trimmedKeys != null && trimmedKeys.remove(key)) {
+			Log.d(TAG, "Trim recovery - entry restored "
+					+ (SystemClock.uptimeMillis() - mTrimTime)
+					+ "ms after trim, " + trimmedKeys.size()
+					+ " trimmed entries outstanding");
+		}
 	}
 
 	/**
 	 * Clears DiskCache
 	 */
 	public void clearDiskCache() {
+		if (mDiskWriteQueue != null) {
+			mDiskWriteQueue.clear();
+		}
+
+		synchronized (mHotSnapshotLock) {
+			mHotSnapshot = null;
+			final File file = getHotSnapshotFile();
+			if (file != null) {
+				file.delete();
+			}
+		}
+
 		synchronized (mDiskCacheLock) {
 			mDiskCacheStarting = true;
+			if (mSlabStore != null) {
+				try {
+					mSlabStore.delete();
+				} catch (IOException e) {
+					Log.e(TAG, "clearCache - " + e);
+				}
+				mSlabStore = null;
+			}
 			if (mDiskLruCache != null && !mDiskLruCache.isClosed()) {
 				try {
 					mDiskLruCache.delete();
@@ -438,21 +1303,46 @@ public class ImageCache {
 				mDiskLruCache = null;
 				initDiskCache();
 			}
+
+			// The encoded memory cache holds disk cache entry bytes, which
+			// would otherwise keep serving hits for the deleted entries
+			if (mEncodedCache != null) {
+				mEncodedCache.clear();
+			}
 		}
 	}
 
 	/**
-	 * Flushes the disk cache associated with this ImageCache object. Note that
-	 * this includes disk access so this should not be executed on the main/UI
+	 * Writes any pending disk writes, flushes the disk cache associated with
+	 * this ImageCache object and removes expired entries. Note that this
+	 * includes disk access so this should not be executed on the main/UI
 	 * thread.
 	 */
 	public void flush() {
+		if (mDiskWriteQueue != null) {
+			mDiskWriteQueue.drain();
+		}
+
+		final int expired = evictExpired();
+		if (expired > 0) {
+			Log.d(TAG, "Memory cache expired " + expired + " entries");
+		}
+
 		synchronized (mDiskCacheLock) {
+			if (mSlabStore != null) {
+				try {
+					mSlabStore.evictExpired();
+					mSlabStore.flush();
+				} catch (IOException e) {
+					Log.e(TAG, "flush - " + e);
+				}
+			}
 			if (mDiskLruCache != null) {
 				try {
 					mDiskLruCache.flush();
 
 					Log.d(TAG, "Disk cache flushed");
+					Log.d(TAG, mStats.snapshot().toString());
 				} catch (IOException e) {
 					Log.e(TAG, "flush - " + e);
 				}
@@ -466,7 +1356,20 @@ public class ImageCache {
 	 * thread.
 	 */
 	public void close() {
+		writeHotSnapshot();
+		if (mDiskWriteQueue != null) {
+			mDiskWriteQueue.drain();
+		}
+
 		synchronized (mDiskCacheLock) {
+			if (mSlabStore != null) {
+				try {
+					mSlabStore.close();
+				} catch (IOException e) {
+					Log.e(TAG, "close - " + e);
+				}
+				mSlabStore = null;
+			}
 			if (mDiskLruCache != null) {
 				try {
 					if (!mDiskLruCache.isClosed()) {
@@ -482,57 +1385,6 @@ public class ImageCache {
 		}
 	}
 
-	/**
-	 * @param candidate
-	 *            - Bitmap to check
-	 * @param targetOptions
-	 *            - Options that have the out* value populated
-	 * @return true if <code>candidate</code> can be used for inBitmap re-use
-	 *         with <code>targetOptions</code>
-	 */
-	@TargetApi(VERSION_CODES.KITKAT)
-	private static boolean canUseForInBitmap(Bitmap candidate,
-			BitmapFactory.Options targetOptions) {
-		// BEGIN_INCLUDE(can_use_for_inbitmap)
-		if (Build.VERSION.SDK_INT < VERSION_CODES.KITKAT) {
-			// On earlier versions, the dimensions must match exactly and the
-			// inSampleSize must be 1
-			return candidate.getWidth() == targetOptions.outWidth
-					&& candidate.getHeight() == targetOptions.outHeight
-					&& targetOptions.inSampleSize == 1;
-		}
-
-		// From Android 4.4 (KitKat) onward we can re-use if the byte size of
-		// the new bitmap
-		// is smaller than the reusable bitmap candidate allocation byte count.
-		int width = targetOptions.outWidth / targetOptions.inSampleSize;
-		int height = targetOptions.outHeight / targetOptions.inSampleSize;
-		int byteCount = width * height
-				* getBytesPerPixel(candidate.getConfig());
-		return byteCount <= candidate.getAllocationByteCount();
-		// END_INCLUDE(can_use_for_inbitmap)
-	}
-
-	/**
-	 * Return the byte usage per pixel of a bitmap based on its configuration.
-	 * 
-	 * @param config
-	 *            The bitmap configuration.
-	 * @return The byte usage per pixel.
-	 */
-	private static int getBytesPerPixel(Config config) {
-		if (config == Config.ARGB_8888) {
-			return 4;
-		} else if (config == Config.RGB_565) {
-			return 2;
-		} else if (config == Config.ARGB_4444) {
-			return 2;
-		} else if (config == Config.ALPHA_8) {
-			return 1;
-		}
-		return 1;
-	}
-
 	/**
 	 * Get a usable cache directory (internal).
 	 * 
@@ -551,9 +1403,19 @@ public class ImageCache {
 
 	/**
 	 * A hashing method that changes a string (like a URL) into a hash suitable
-	 * for using as a disk filename.
+	 * for using as a disk filename. This is the 128-bit Murmur3 hash of the
+	 * string in base32, see {@link Murmur3}.
 	 */
 	public static String hashKeyForDisk(String key) {
+		return Murmur3.hash128Base32(key);
+	}
+
+	/**
+	 * The hashing method disk caches were written with before
+	 * {@link #hashKeyForDisk(String)}, the MD5 hash of the string in hex. Only
+	 * used to find entries that have not been migrated yet.
+	 */
+	static String legacyHashKeyForDisk(String key) {
 		String cacheKey;
 		try {
 			final MessageDigest mDigest = MessageDigest.getInstance("MD5");
@@ -565,6 +1427,47 @@ public class ImageCache {
 		return cacheKey;
 	}
 
+	/**
+	 * Checks whether a disk cache directory holds entries written with
+	 * {@link #legacyHashKeyForDisk(String)}. Legacy keys are 32 characters
+	 * long, the current ones {@link Murmur3#BASE32_LENGTH}. Note that this
+	 * lists the directory so this should not be executed on the main/UI
+	 * thread.
+	 * 
+	 * @param directory
+	 *            The disk cache directory
+	 * @return true if there is at least one entry with a legacy key
+	 */
+	static boolean hasLegacyKeys(File directory) {
+		final String[] names = directory.list();
+		if (names != null) {
+			for (String name : names) {
+				if (name.length() == 34 && name.endsWith(".0")) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Moves the entry stored under the legacy key of some data, if there is
+	 * one, to its current key. Entries are migrated this way when they are
+	 * first looked up, entries that never are simply age out of the cache.
+	 * 
+	 * @param cache
+	 *            The disk cache
+	 * @param data
+	 *            The data the keys were hashed from
+	 * @param key
+	 *            The current key, as returned by {@link #hashKeyForDisk(String)}
+	 * @return true if an entry was moved to the current key
+	 */
+	static boolean migrateLegacyKey(ShardedDiskLruCache cache, String data,
+			String key) throws IOException {
+		return cache.rename(legacyHashKeyForDisk(data), key);
+	}
+
 	private static String bytesToHexString(byte[] bytes) {
 		// http://stackoverflow.com/questions/332079
 		StringBuilder sb = new StringBuilder();
@@ -587,10 +1490,19 @@ public class ImageCache {
 	 * @param value
 	 * @return size in bytes
 	 */
-	@TargetApi(VERSION_CODES.KITKAT)
 	public static int getBitmapSize(BitmapDrawable value) {
-		Bitmap bitmap = value.getBitmap();
+		return getBitmapSize(value.getBitmap());
+	}
 
+	/**
+	 * Get the size in bytes of a bitmap, see
+	 * {@link #getBitmapSize(BitmapDrawable)}.
+	 * 
+	 * @param bitmap
+	 * @return size in bytes
+	 */
+	@TargetApi(VERSION_CODES.KITKAT)
+	public static int getBitmapSize(Bitmap bitmap) {
 		// From KitKat onward use getAllocationByteCount() as allocated bytes
 		// can potentially be
 		// larger than bitmap byte count.
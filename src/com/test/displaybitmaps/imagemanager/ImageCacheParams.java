@@ -1,16 +1,22 @@
 package com.test.displaybitmaps.imagemanager;
 
 import java.io.File;
+import java.util.EnumMap;
+import java.util.EnumSet;
 
 import android.content.Context;
 import android.graphics.Bitmap.CompressFormat;
+import android.graphics.Bitmap.Config;
 
 /**
  * A holder class that contains cache parameters.
  */
 public class ImageCacheParams {
 
-	private static final String DISK_CACHE_DIR = "images_cache";
+	/**
+	 * Name of the default cache, also used as its disk cache directory.
+	 */
+	public static final String DEFAULT_CACHE_NAME = "images_cache";
 
 	// Default memory cache size in kilobytes
 	private static final int DEFAULT_MEM_CACHE_SIZE = 1024 * 5; // 5MB
@@ -18,38 +24,211 @@ public class ImageCacheParams {
 	// Default disk cache size in bytes
 	private static final int DEFAULT_DISK_CACHE_SIZE = 1024 * 1024 * 10; // 10MB
 
-	// Compression settings when writing images to disk cache
+	// Default number of independent disk cache shards. A single shard keeps
+	// the unsharded directory layout, changing the count clears the cache
+	private static final int DEFAULT_DISK_CACHE_SHARDS = 1;
+
+	// Default order in which disk cache entries are evicted, and the largest
+	// share of the disk cache a single entry may take, 0 for no limit
+	private static final EvictionPolicy.Type DEFAULT_DISK_EVICTION_POLICY = EvictionPolicy.Type.LRU;
+	private static final float DEFAULT_DISK_MAX_ENTRY_FRACTION = 0f;
+
+	// Default group commit window of the disk cache in milliseconds. Disk
+	// writes happen in the background, so waiting for a sync costs no frame;
+	// DiskLruCache.SYNC_DISABLED leaves durability to the filesystem
+	private static final long DEFAULT_DISK_SYNC_WINDOW_MILLIS = DiskLruCache.SYNC_DISABLED;
+
+	// Default encoded memory cache size in bytes
+	private static final int DEFAULT_ENCODED_CACHE_SIZE = 1024 * 1024 * 2; // 2MB
+
+	// Default pixel bytes persisted by the hot snapshot on close
+	private static final int DEFAULT_HOT_SNAPSHOT_SIZE = 1024 * 1024 * 2; // 2MB
+
+	// Default size in bytes of released bitmaps kept for re-use
+	private static final int DEFAULT_BITMAP_POOL_SIZE = 1024 * 1024 * 2; // 2MB
+
+	// Default number of bitmaps waiting to be written to disk in the
+	// background, 0 writes synchronously
+	private static final int DEFAULT_DISK_WRITE_QUEUE_SIZE = 32;
+
+	// Default number of threads writing queued bitmaps. Commits only share a
+	// group commit sync when several writers commit within the window, with a
+	// single thread each group holds one entry
+	private static final int DEFAULT_DISK_WRITE_THREADS = 1;
+
+	// Downloaded images that need no downsampling are stored as-is when they
+	// take at most this many bytes per pixel, larger ones are re-encoded
+	private static final float DEFAULT_ORIGINAL_MAX_BYTES_PER_PIXEL = 1f;
+
+	// Image sizes stored on disk as raw pixels rather than compressed, their
+	// disk hits are a copy instead of a decode
+	private static final ImageSize DEFAULT_RAW_PIXEL_MAX_SIZE = ImageSize.small;
+
+	// Image sizes packed into the slab store rather than one file per entry,
+	// and the slab store sizes in bytes
+	private static final ImageSize DEFAULT_SLAB_MAX_SIZE = ImageSize.small;
+	private static final int DEFAULT_SLAB_STORE_SIZE = 1024 * 1024 * 4; // 4MB
+	private static final int DEFAULT_SLAB_FILE_SIZE = 1024 * 1024; // 1MB
+
+	// Default time-to-live of cache entries in milliseconds, 0 never expires
+	private static final long DEFAULT_TTL_MILLIS = 0;
+
+	// Compression settings when writing images to disk cache. With automatic
+	// selection the format is picked per bitmap and the default format is
+	// only used if that is turned off
 	private static final CompressFormat DEFAULT_COMPRESS_FORMAT = CompressFormat.JPEG;
 	private static final int DEFAULT_COMPRESS_QUALITY = 70;
+	private static final boolean DEFAULT_AUTO_COMPRESS_FORMAT = true;
+
+	// Decode config for opaque images up to this size, larger images and
+	// images that may have alpha are decoded as ARGB_8888
+	private static final Config DEFAULT_SMALL_OPAQUE_CONFIG = Config.RGB_565;
+	private static final ImageSize DEFAULT_SMALL_OPAQUE_MAX_SIZE = ImageSize.medium;
 
 	// Constants to easily toggle various caches
 	private static final boolean DEFAULT_MEM_CACHE_ENABLED = true;
 	private static final boolean DEFAULT_DISK_CACHE_ENABLED = true;
+	private static final boolean DEFAULT_ENCODED_CACHE_ENABLED = true;
+	private static final boolean DEFAULT_ENCODED_CACHE_DIRECT = false;
+	private static final boolean DEFAULT_HOT_SNAPSHOT_ENABLED = true;
 	private static final boolean DEFAULT_INIT_DISK_CACHE_ON_CREATE = false;
+	private static final boolean DEFAULT_SHARE_BITMAP_POOL = true;
 
+	public String uniqueName;
 	public int memCacheSize = DEFAULT_MEM_CACHE_SIZE;
 	public int diskCacheSize = DEFAULT_DISK_CACHE_SIZE;
+	public int diskCacheShards = DEFAULT_DISK_CACHE_SHARDS;
+	public EvictionPolicy.Type diskEvictionPolicy = DEFAULT_DISK_EVICTION_POLICY;
+	public float diskMaxEntryFraction = DEFAULT_DISK_MAX_ENTRY_FRACTION;
+	public long diskSyncWindowMillis = DEFAULT_DISK_SYNC_WINDOW_MILLIS;
+	public int encodedCacheSize = DEFAULT_ENCODED_CACHE_SIZE;
+	public int hotSnapshotSize = DEFAULT_HOT_SNAPSHOT_SIZE;
+	public int bitmapPoolSize = DEFAULT_BITMAP_POOL_SIZE;
+	public int diskWriteQueueSize = DEFAULT_DISK_WRITE_QUEUE_SIZE;
+	public int diskWriteThreads = DEFAULT_DISK_WRITE_THREADS;
+	public float originalMaxBytesPerPixel = DEFAULT_ORIGINAL_MAX_BYTES_PER_PIXEL;
+	public long defaultTtlMillis = DEFAULT_TTL_MILLIS;
 	public File diskCacheDir;
 	public CompressFormat compressFormat = DEFAULT_COMPRESS_FORMAT;
 	public int compressQuality = DEFAULT_COMPRESS_QUALITY;
+	public boolean autoCompressFormat = DEFAULT_AUTO_COMPRESS_FORMAT;
 	public boolean memoryCacheEnabled = DEFAULT_MEM_CACHE_ENABLED;
 	public boolean diskCacheEnabled = DEFAULT_DISK_CACHE_ENABLED;
+	public boolean encodedCacheEnabled = DEFAULT_ENCODED_CACHE_ENABLED;
+	public boolean encodedCacheDirect = DEFAULT_ENCODED_CACHE_DIRECT;
+	public boolean hotSnapshotEnabled = DEFAULT_HOT_SNAPSHOT_ENABLED;
 	public boolean initDiskCacheOnCreate = DEFAULT_INIT_DISK_CACHE_ON_CREATE;
+	public boolean shareBitmapPool = DEFAULT_SHARE_BITMAP_POOL;
+	public EnumMap<ImageSize, Config> bitmapConfigs = new EnumMap<ImageSize, Config>(
+			ImageSize.class);
+	public EnumMap<ImageSize, Integer> compressByteBudgets = new EnumMap<ImageSize, Integer>(
+			ImageSize.class);
+	public EnumSet<ImageSize> rawPixelSizes = EnumSet.noneOf(ImageSize.class);
+	public EnumSet<ImageSize> slabSizes = EnumSet.noneOf(ImageSize.class);
+	public int slabStoreSize = DEFAULT_SLAB_STORE_SIZE;
+	public int slabFileSize = DEFAULT_SLAB_FILE_SIZE;
 
 	/**
-	 * Create a set of image cache parameters that can be provided to
-	 * {@link ImageCache#getInstance(android.support.v4.app.FragmentManager, ImageCacheParams)}
-	 * or
-	 * {@link ImageWorker#addImageCache(android.support.v4.app.FragmentManager, ImageCacheParams)}
-	 * .
+	 * Create a set of image cache parameters for the default cache that can be
+	 * provided to {@link ImageWorker#addImageCache(ImageCacheParams)}.
 	 * 
 	 * @param context
-	 *            A context to use. A unique sub-directory name that will be
-	 *            appended to the application cache directory. Usually "cache"
-	 *            or "images" is sufficient.
+	 *            A context to use.
 	 */
 	public ImageCacheParams(Context context) {
-		diskCacheDir = ImageCache.getDiskCacheDir(context, DISK_CACHE_DIR);
+		this(context, DEFAULT_CACHE_NAME);
+	}
+
+	/**
+	 * Create a set of image cache parameters for a named cache that can be
+	 * provided to {@link ImageWorker#addImageCache(ImageCacheParams)}.
+	 * 
+	 * @param context
+	 *            A context to use.
+	 * @param uniqueName
+	 *            A unique name identifying the cache instance, also used as
+	 *            the sub-directory name that will be appended to the
+	 *            application cache directory.
+	 */
+	public ImageCacheParams(Context context, String uniqueName) {
+		this.uniqueName = uniqueName;
+		diskCacheDir = ImageCache.getDiskCacheDir(context, uniqueName);
+
+		for (ImageSize imageSize : ImageSize.values()) {
+			if (imageSize.getSize() <= DEFAULT_SMALL_OPAQUE_MAX_SIZE.getSize()) {
+				bitmapConfigs.put(imageSize, DEFAULT_SMALL_OPAQUE_CONFIG);
+			}
+			if (imageSize.getSize() <= DEFAULT_RAW_PIXEL_MAX_SIZE.getSize()) {
+				rawPixelSizes.add(imageSize);
+			}
+			if (imageSize.getSize() <= DEFAULT_SLAB_MAX_SIZE.getSize()) {
+				slabSizes.add(imageSize);
+			}
+		}
+	}
+
+	/**
+	 * Sets the config used to decode opaque images of the given size. Images
+	 * that may have an alpha channel are always decoded as
+	 * {@link Config#ARGB_8888}.
+	 * 
+	 * @param imageSize
+	 *            The size the config applies to
+	 * @param config
+	 *            The config to decode opaque images with, or null for
+	 *            {@link Config#ARGB_8888}
+	 */
+	public void setBitmapConfig(ImageSize imageSize, Config config) {
+		if (config == null) {
+			bitmapConfigs.remove(imageSize);
+		} else {
+			bitmapConfigs.put(imageSize, config);
+		}
+	}
+
+	/**
+	 * @param imageSize
+	 *            The requested image size
+	 * @param hasAlpha
+	 *            Whether the image may have an alpha channel
+	 * @return The config to decode the image with
+	 */
+	public Config getBitmapConfig(ImageSize imageSize, boolean hasAlpha) {
+		final Config config = imageSize != null ? bitmapConfigs.get(imageSize)
+				: null;
+		if (config == null || hasAlpha && config == Config.RGB_565) {
+			return Config.ARGB_8888;
+		}
+		return config;
+	}
+
+	/**
+	 * Estimates how many opaque images of the given size fit into
+	 * {@link #memCacheSize} with the configured bitmap config.
+	 * 
+	 * @param imageSize
+	 *            The image size to estimate for
+	 * @return The estimated number of memory cache entries
+	 */
+	public int estimateMemCacheEntries(ImageSize imageSize) {
+		return estimateMemCacheEntries(imageSize,
+				getBitmapConfig(imageSize, false));
+	}
+
+	/**
+	 * Estimates how many images of the given size and config fit into
+	 * {@link #memCacheSize}.
+	 * 
+	 * @param imageSize
+	 *            The image size to estimate for
+	 * @param config
+	 *            The bitmap config of the entries
+	 * @return The estimated number of memory cache entries
+	 */
+	public int estimateMemCacheEntries(ImageSize imageSize, Config config) {
+		final long entryBytes = (long) imageSize.getSize()
+				* imageSize.getSize() * BitmapPool.getBytesPerPixel(config);
+		return (int) (memCacheSize * 1024L / entryBytes);
 	}
 
 	/**
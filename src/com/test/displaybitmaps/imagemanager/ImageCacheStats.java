@@ -0,0 +1,255 @@
+package com.test.displaybitmaps.imagemanager;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Hit, miss, eviction and byte counters for each tier of an
+ * {@link ImageCache}, plus latency histograms for the expensive operations.
+ * Recording is a single atomic add so it can be left enabled on the hot path;
+ * {@link #snapshot()} returns an immutable copy that can be polled or dumped.
+ */
+public class ImageCacheStats {
+
+	// Counters
+	public static final int MEMORY_HIT = 0;
+	public static final int MEMORY_MISS = 1;
+	public static final int MEMORY_EVICTION = 2;
+	public static final int SNAPSHOT_HIT = 3;
+	public static final int ENCODED_HIT = 4;
+	public static final int ENCODED_MISS = 5;
+	public static final int DISK_HIT = 6;
+	public static final int DISK_MISS = 7;
+	public static final int HTTP_HIT = 8;
+	public static final int HTTP_MISS = 9;
+	public static final int BYTES_READ = 10;
+	public static final int BYTES_WRITTEN = 11;
+	public static final int BYTES_DOWNLOADED = 12;
+	public static final int PENDING_HIT = 13;
+	public static final int DISK_WRITE_QUEUED = 14;
+	public static final int DISK_WRITE_COALESCED = 15;
+	public static final int DISK_WRITE_DROPPED = 16;
+	public static final int ORIGINAL_STORED = 17;
+	public static final int ORIGINAL_BYTES = 18;
+	public static final int SLAB_HIT = 19;
+	public static final int BYTES_WRITTEN_JPEG = 20;
+	public static final int BYTES_WRITTEN_PNG = 21;
+	public static final int BYTES_WRITTEN_WEBP = 22;
+	public static final int BYTES_WRITTEN_RAW = 23;
+	private static final String[] COUNTER_NAMES = { "memoryHit", "memoryMiss",
+			"memoryEviction", "snapshotHit", "encodedHit", "encodedMiss",
+			"diskHit", "diskMiss", "httpHit", "httpMiss", "bytesRead",
+			"bytesWritten", "bytesDownloaded", "pendingHit", "diskWriteQueued",
+			"diskWriteCoalesced", "diskWriteDropped", "originalStored",
+			"originalBytes", "slabHit", "bytesWrittenJpeg", "bytesWrittenPng",
+			"bytesWrittenWebp", "bytesWrittenRaw" };
+
+	// Latency histograms
+	public static final int DISK_READ = 0;
+	public static final int DECODE = 1;
+	public static final int ENCODE = 2;
+	public static final int DOWNLOAD = 3;
+	public static final int DISK_LOCK_WAIT = 4;
+	public static final int CACHE_ADD = 5;
+	public static final int RAW_READ = 6;
+	private static final String[] HISTOGRAM_NAMES = { "diskRead", "decode",
+			"encode", "download", "diskLockWait", "cacheAdd", "rawRead" };
+
+	// Bucket i counts latencies in [2^i, 2^(i+1)) microseconds, the last
+	// bucket also holds everything slower
+	public static final int BUCKET_COUNT = 24;
+
+	private final AtomicLongArray mCounters = new AtomicLongArray(
+			COUNTER_NAMES.length);
+
+	// Per histogram: the bucket counts followed by the total nanoseconds
+	private final AtomicLongArray mHistograms = new AtomicLongArray(
+			HISTOGRAM_NAMES.length * (BUCKET_COUNT + 1));
+
+	/**
+	 * Increments a counter by one.
+	 * 
+	 * @param counter
+	 *            One of the counter constants, e.g. {@link #MEMORY_HIT}
+	 */
+	public void increment(int counter) {
+		mCounters.incrementAndGet(counter);
+	}
+
+	/**
+	 * Adds a value to a counter.
+	 * 
+	 * @param counter
+	 *            One of the counter constants, e.g. {@link #BYTES_READ}
+	 * @param delta
+	 *            The value to add
+	 */
+	public void add(int counter, long delta) {
+		mCounters.addAndGet(counter, delta);
+	}
+
+	/**
+	 * Records the latency of an operation started at the given time.
+	 * 
+	 * @param histogram
+	 *            One of the histogram constants, e.g. {@link #DECODE}
+	 * @param startNanos
+	 *            The {@link System#nanoTime()} at which the operation started
+	 */
+	public void recordLatency(int histogram, long startNanos) {
+		final long nanos = System.nanoTime() - startNanos;
+		final long micros = nanos / 1000;
+		int bucket = micros <= 0 ? 0 : 63 - Long.numberOfLeadingZeros(micros);
+		if (bucket >= BUCKET_COUNT) {
+			bucket = BUCKET_COUNT - 1;
+		}
+		final int base = histogram * (BUCKET_COUNT + 1);
+		mHistograms.incrementAndGet(base + bucket);
+		mHistograms.addAndGet(base + BUCKET_COUNT, nanos);
+	}
+
+	/**
+	 * @return An immutable copy of the current statistics
+	 */
+	public Snapshot snapshot() {
+		final long[] counters = new long[COUNTER_NAMES.length];
+		for (int i = 0; i < counters.length; i++) {
+			counters[i] = mCounters.get(i);
+		}
+		final Histogram[] histograms = new Histogram[HISTOGRAM_NAMES.length];
+		for (int i = 0; i < histograms.length; i++) {
+			final int base = i * (BUCKET_COUNT + 1);
+			final long[] buckets = new long[BUCKET_COUNT];
+			for (int b = 0; b < BUCKET_COUNT; b++) {
+				buckets[b] = mHistograms.get(base + b);
+			}
+			histograms[i] = new Histogram(buckets,
+					mHistograms.get(base + BUCKET_COUNT));
+		}
+		return new Snapshot(counters, histograms);
+	}
+
+	/**
+	 * An immutable copy of the statistics at a point in time.
+	 */
+	public static final class Snapshot {
+		private final long[] mCounters;
+		private final Histogram[] mHistograms;
+
+		private Snapshot(long[] counters, Histogram[] histograms) {
+			mCounters = counters;
+			mHistograms = histograms;
+		}
+
+		/**
+		 * @param counter
+		 *            One of the counter constants, e.g. {@link #MEMORY_HIT}
+		 * @return The value of the counter
+		 */
+		public long get(int counter) {
+			return mCounters[counter];
+		}
+
+		/**
+		 * @param histogram
+		 *            One of the histogram constants, e.g. {@link #DECODE}
+		 * @return The latency histogram
+		 */
+		public Histogram getHistogram(int histogram) {
+			return mHistograms[histogram];
+		}
+
+		/**
+		 * @param hitCounter
+		 *            The hit counter of a tier, e.g. {@link #DISK_HIT}
+		 * @param missCounter
+		 *            The miss counter of the same tier
+		 * @return The hit ratio of the tier between 0 and 1, or 0 if it was
+		 *         never accessed
+		 */
+		public float getHitRatio(int hitCounter, int missCounter) {
+			final long total = mCounters[hitCounter] + mCounters[missCounter];
+			return total == 0 ? 0f : (float) mCounters[hitCounter] / total;
+		}
+
+		@Override
+		public String toString() {
+			final StringBuilder sb = new StringBuilder("ImageCacheStats{");
+			for (int i = 0; i < mCounters.length; i++) {
+				sb.append(i == 0 ? "" : ", ").append(COUNTER_NAMES[i])
+						.append('=').append(mCounters[i]);
+			}
+			for (int i = 0; i < mHistograms.length; i++) {
+				sb.append(", ").append(HISTOGRAM_NAMES[i]).append('=')
+						.append(mHistograms[i]);
+			}
+			return sb.append('}').toString();
+		}
+	}
+
+	/**
+	 * An immutable latency histogram with power of two microsecond buckets.
+	 */
+	public static final class Histogram {
+		private final long[] mBuckets;
+		private final long mTotalNanos;
+		private final long mCount;
+
+		private Histogram(long[] buckets, long totalNanos) {
+			mBuckets = buckets;
+			mTotalNanos = totalNanos;
+			long count = 0;
+			for (long bucket : buckets) {
+				count += bucket;
+			}
+			mCount = count;
+		}
+
+		/**
+		 * @return The number of recorded operations
+		 */
+		public long getCount() {
+			return mCount;
+		}
+
+		/**
+		 * @return The mean latency in microseconds
+		 */
+		public long getMeanMicros() {
+			return mCount == 0 ? 0 : mTotalNanos / mCount / 1000;
+		}
+
+		/**
+		 * @param bucket
+		 *            The bucket index, from 0 to {@link #BUCKET_COUNT} - 1
+		 * @return The number of operations in the bucket
+		 */
+		public long getBucket(int bucket) {
+			return mBuckets[bucket];
+		}
+
+		/**
+		 * @param percentile
+		 *            The percentile between 0 and 100
+		 * @return The upper bound of the bucket holding the percentile, in
+		 *         microseconds
+		 */
+		public long getPercentileMicros(float percentile) {
+			final long target = (long) Math.ceil(mCount * percentile / 100f);
+			long seen = 0;
+			for (int i = 0; i < mBuckets.length; i++) {
+				seen += mBuckets[i];
+				if (seen >= target && seen > 0) {
+					return 1L << (i + 1);
+				}
+			}
+			return 0;
+		}
+
+		@Override
+		public String toString() {
+			return "{count=" + mCount + ", meanUs=" + getMeanMicros()
+					+ ", p50Us<" + getPercentileMicros(50) + ", p99Us<"
+					+ getPercentileMicros(99) + "}";
+		}
+	}
+}
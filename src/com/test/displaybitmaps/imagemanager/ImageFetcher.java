@@ -20,14 +20,15 @@ import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileDescriptor;
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.net.HttpURLConnection;
 import java.net.URL;
+import java.nio.channels.FileChannel;
 
 import android.content.Context;
 import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
 import android.net.ConnectivityManager;
 import android.net.NetworkInfo;
 import android.os.Build;
@@ -41,12 +42,15 @@ import android.widget.Toast;
 public class ImageFetcher extends ImageResizer {
 	private static final String TAG = "ImageFetcher";
 	private static final int HTTP_CACHE_SIZE = 10 * 1024 * 1024; // 10MB
+	private static final int HTTP_CACHE_SHARDS = 1;
 	private static final String HTTP_CACHE_DIR = "http";
 	private static final int IO_BUFFER_SIZE = 8 * 1024;
 
-	private DiskLruCache mHttpDiskCache;
+	private ShardedDiskLruCache mHttpDiskCache;
 	private File mHttpCacheDir;
 	private boolean mHttpDiskCacheStarting = true;
+	// Whether the HTTP cache may still hold entries under legacy keys
+	private boolean mHttpDiskCacheHasLegacyKeys;
 	private final Object mHttpDiskCacheLock = new Object();
 	private static final int DISK_CACHE_INDEX = 0;
 
@@ -79,8 +83,10 @@ public class ImageFetcher extends ImageResizer {
 		synchronized (mHttpDiskCacheLock) {
 			if (ImageCache.getUsableSpace(mHttpCacheDir) > HTTP_CACHE_SIZE) {
 				try {
-					mHttpDiskCache = DiskLruCache.open(mHttpCacheDir, 1, 1,
-							HTTP_CACHE_SIZE);
+					mHttpDiskCache = ShardedDiskLruCache.open(mHttpCacheDir, 1,
+							1, HTTP_CACHE_SIZE, HTTP_CACHE_SHARDS);
+					mHttpDiskCacheHasLegacyKeys = ImageCache
+							.hasLegacyKeys(mHttpCacheDir);
 
 					Log.d(TAG, "HTTP cache initialized");
 				} catch (IOException e) {
@@ -176,8 +182,7 @@ public class ImageFetcher extends ImageResizer {
 
 		final String key = ImageCache.hashKeyForDisk(data);
 		FileDescriptor fileDescriptor = null;
-		FileInputStream fileInputStream = null;
-		DiskLruCache.Snapshot snapshot;
+		DiskLruCache.Snapshot snapshot = null;
 		synchronized (mHttpDiskCacheLock) {
 			// Wait for disk cache to initialize
 			while (mHttpDiskCacheStarting) {
@@ -190,36 +195,48 @@ public class ImageFetcher extends ImageResizer {
 			if (mHttpDiskCache != null) {
 				try {
 					snapshot = mHttpDiskCache.get(key);
+					if (snapshot == null && mHttpDiskCacheHasLegacyKeys
+							&& ImageCache.migrateLegacyKey(mHttpDiskCache, data,
+									key)) {
+						snapshot = mHttpDiskCache.get(key);
+					}
 					if (snapshot == null) {
 						Log.d(TAG,
 								"processBitmap, not found in http cache, downloading...");
+						recordStat(ImageCacheStats.HTTP_MISS);
 
 						DiskLruCache.Editor editor = mHttpDiskCache.edit(key);
 						if (editor != null) {
+							final long startNanos = System.nanoTime();
 							if (downloadUrlToStream(data,
 									editor.newOutputStream(DISK_CACHE_INDEX))) {
+								editor.setExpiresAt(getExpiryTime());
 								editor.commit();
+								final ImageCacheStats stats = getStats();
+								if (stats != null) {
+									stats.recordLatency(
+											ImageCacheStats.DOWNLOAD,
+											startNanos);
+								}
 							} else {
 								editor.abort();
 							}
 						}
 						snapshot = mHttpDiskCache.get(key);
+					} else {
+						recordStat(ImageCacheStats.HTTP_HIT);
 					}
 					if (snapshot != null) {
-						fileInputStream = (FileInputStream) snapshot
-								.getInputStream(DISK_CACHE_INDEX);
-						fileDescriptor = fileInputStream.getFD();
+						fileDescriptor = snapshot
+								.getFileDescriptor(DISK_CACHE_INDEX);
 					}
 				} catch (IOException e) {
 					Log.e(TAG, "processBitmap - " + e);
 				} catch (IllegalStateException e) {
 					Log.e(TAG, "processBitmap - " + e);
 				} finally {
-					if (fileDescriptor == null && fileInputStream != null) {
-						try {
-							fileInputStream.close();
-						} catch (IOException e) {
-						}
+					if (fileDescriptor == null && snapshot != null) {
+						snapshot.close();
 					}
 				}
 			}
@@ -227,15 +244,38 @@ public class ImageFetcher extends ImageResizer {
 
 		Bitmap bitmap = null;
 		if (fileDescriptor != null) {
+			final long startNanos = System.nanoTime();
+			final BitmapFactory.Options options = new BitmapFactory.Options();
 			bitmap = decodeSampledBitmapFromDescriptor(fileDescriptor,
-					imageSize.getSize(), imageSize.getSize(), getImageCache());
-		}
-		if (fileInputStream != null) {
-			try {
-				fileInputStream.close();
-			} catch (IOException e) {
+					imageSize.getSize(), imageSize.getSize(), imageSize,
+					getImageCache(), options);
+			final ImageCacheStats stats = getStats();
+			if (stats != null) {
+				stats.recordLatency(ImageCacheStats.DECODE, startNanos);
+			}
+
+			// The image was not sampled down, so the image cache can hold the
+			// downloaded bytes instead of a lossy re-encode of the bitmap
+			final ImageCache imageCache = getImageCache();
+			if (bitmap != null && options.inSampleSize == 1
+					&& imageCache != null) {
+				try {
+					final FileChannel channel = snapshot
+							.getChannel(DISK_CACHE_INDEX);
+					channel.position(0);
+					imageCache.addOriginalToDiskCache(data, imageSize,
+							options.outWidth, options.outHeight,
+							options.outMimeType,
+							snapshot.getInputStream(DISK_CACHE_INDEX),
+							channel.size());
+				} catch (IOException e) {
+					Log.e(TAG, "processBitmap - " + e);
+				}
 			}
 		}
+		if (snapshot != null) {
+			snapshot.close();
+		}
 		return bitmap;
 	}
 
@@ -266,8 +306,14 @@ public class ImageFetcher extends ImageResizer {
 			out = new BufferedOutputStream(outputStream, IO_BUFFER_SIZE);
 
 			int b;
+			long count = 0;
 			while ((b = in.read()) != -1) {
 				out.write(b);
+				count++;
+			}
+			final ImageCacheStats stats = getStats();
+			if (stats != null) {
+				stats.add(ImageCacheStats.BYTES_DOWNLOADED, count);
 			}
 			return true;
 		} catch (final IOException e) {
@@ -289,6 +335,32 @@ public class ImageFetcher extends ImageResizer {
 		return false;
 	}
 
+	/**
+	 * @return The statistics of the image cache, or null if no cache has been
+	 *         added
+	 */
+	private ImageCacheStats getStats() {
+		final ImageCache imageCache = getImageCache();
+		return imageCache != null ? imageCache.getStats() : null;
+	}
+
+	/**
+	 * @return The expiry time of an HTTP cache entry downloaded now, which
+	 *         follows the default time-to-live of the image cache
+	 */
+	private long getExpiryTime() {
+		final ImageCache imageCache = getImageCache();
+		return imageCache != null ? ImageCache.getExpiryTime(imageCache
+				.getDefaultTtlMillis()) : 0;
+	}
+
+	private void recordStat(int counter) {
+		final ImageCacheStats stats = getStats();
+		if (stats != null) {
+			stats.increment(counter);
+		}
+	}
+
 	/**
 	 * Workaround for bug pre-Froyo, see here for more info:
 	 * http://android-developers.blogspot.com/2011/09/androids-http-clients.html
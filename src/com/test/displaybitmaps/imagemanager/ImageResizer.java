@@ -17,6 +17,9 @@
 package com.test.displaybitmaps.imagemanager;
 
 import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
 
 import android.annotation.TargetApi;
 import android.content.Context;
@@ -59,7 +62,8 @@ public class ImageResizer extends ImageWorker {
 	private Bitmap processBitmap(int resId, ImageSize imageSize) {
 		Log.d(TAG, "processBitmap - " + resId);
 		return decodeSampledBitmapFromResource(mResources, resId,
-				imageSize.getSize(), imageSize.getSize(), getImageCache());
+				imageSize.getSize(), imageSize.getSize(), imageSize,
+				getImageCache());
 	}
 
 	@Override
@@ -79,6 +83,8 @@ public class ImageResizer extends ImageWorker {
 	 *            The requested width of the resulting bitmap
 	 * @param reqHeight
 	 *            The requested height of the resulting bitmap
+	 * @param imageSize
+	 *            The image size used to select the bitmap config
 	 * @param cache
 	 *            The ImageCache used to find candidate bitmaps for use with
 	 *            inBitmap
@@ -87,7 +93,8 @@ public class ImageResizer extends ImageWorker {
 	 *         requested width and height
 	 */
 	public static Bitmap decodeSampledBitmapFromResource(Resources res,
-			int resId, int reqWidth, int reqHeight, ImageCache cache) {
+			int resId, int reqWidth, int reqHeight, ImageSize imageSize,
+			ImageCache cache) {
 
 		// BEGIN_INCLUDE (read_bitmap_dimensions)
 		// First decode with inJustDecodeBounds=true to check dimensions
@@ -100,6 +107,8 @@ public class ImageResizer extends ImageWorker {
 				reqHeight);
 		// END_INCLUDE (read_bitmap_dimensions)
 
+		addConfigOptions(options, imageSize, cache);
+
 		// If we're running on Honeycomb or newer, try to use inBitmap
 		if (Build.VERSION.SDK_INT >= VERSION_CODES.HONEYCOMB) {
 			addInBitmapOptions(options, cache);
@@ -120,6 +129,8 @@ public class ImageResizer extends ImageWorker {
 	 *            The requested width of the resulting bitmap
 	 * @param reqHeight
 	 *            The requested height of the resulting bitmap
+	 * @param imageSize
+	 *            The image size used to select the bitmap config
 	 * @param cache
 	 *            The ImageCache used to find candidate bitmaps for use with
 	 *            inBitmap
@@ -128,7 +139,7 @@ public class ImageResizer extends ImageWorker {
 	 *         requested width and height
 	 */
 	public static Bitmap decodeSampledBitmapFromFile(String filename,
-			int reqWidth, int reqHeight, ImageCache cache) {
+			int reqWidth, int reqHeight, ImageSize imageSize, ImageCache cache) {
 
 		// First decode with inJustDecodeBounds=true to check dimensions
 		final BitmapFactory.Options options = new BitmapFactory.Options();
@@ -139,6 +150,8 @@ public class ImageResizer extends ImageWorker {
 		options.inSampleSize = calculateInSampleSize(options, reqWidth,
 				reqHeight);
 
+		addConfigOptions(options, imageSize, cache);
+
 		// If we're running on Honeycomb or newer, try to use inBitmap
 		if (Build.VERSION.SDK_INT >= VERSION_CODES.HONEYCOMB) {
 			addInBitmapOptions(options, cache);
@@ -159,6 +172,8 @@ public class ImageResizer extends ImageWorker {
 	 *            The requested width of the resulting bitmap
 	 * @param reqHeight
 	 *            The requested height of the resulting bitmap
+	 * @param imageSize
+	 *            The image size used to select the bitmap config
 	 * @param cache
 	 *            The ImageCache used to find candidate bitmaps for use with
 	 *            inBitmap
@@ -168,12 +183,34 @@ public class ImageResizer extends ImageWorker {
 	 */
 	public static Bitmap decodeSampledBitmapFromDescriptor(
 			FileDescriptor fileDescriptor, int reqWidth, int reqHeight,
-			ImageCache cache) {
+			ImageSize imageSize, ImageCache cache) {
+		return decodeSampledBitmapFromDescriptor(fileDescriptor, reqWidth,
+				reqHeight, imageSize, cache, new BitmapFactory.Options());
+	}
+
+	/**
+	 * Decode and sample down a bitmap from a file input stream to the
+	 * requested width and height, see
+	 * {@link #decodeSampledBitmapFromDescriptor(FileDescriptor, int, int, ImageSize, ImageCache)}
+	 * .
+	 * 
+	 * @param options
+	 *            The options to decode with, on return they hold the
+	 *            dimensions of the original image and the inSampleSize used.
+	 *            If they already hold the dimensions and MIME type, see
+	 *            {@link #hasBounds(BitmapFactory.Options)}, the bounds aren't
+	 *            decoded
+	 */
+	static Bitmap decodeSampledBitmapFromDescriptor(
+			FileDescriptor fileDescriptor, int reqWidth, int reqHeight,
+			ImageSize imageSize, ImageCache cache,
+			BitmapFactory.Options options) {
 
 		// First decode with inJustDecodeBounds=true to check dimensions
-		final BitmapFactory.Options options = new BitmapFactory.Options();
-		options.inJustDecodeBounds = true;
-		BitmapFactory.decodeFileDescriptor(fileDescriptor, null, options);
+		if (!hasBounds(options)) {
+			options.inJustDecodeBounds = true;
+			BitmapFactory.decodeFileDescriptor(fileDescriptor, null, options);
+		}
 
 		// Calculate inSampleSize
 		options.inSampleSize = calculateInSampleSize(options, reqWidth,
@@ -182,6 +219,9 @@ public class ImageResizer extends ImageWorker {
 		// Decode bitmap with inSampleSize set
 		options.inJustDecodeBounds = false;
 
+		addConfigOptions(options, imageSize, cache,
+				isOpaqueWebp(fileDescriptor, options));
+
 		// If we're running on Honeycomb or newer, try to use inBitmap
 		if (Build.VERSION.SDK_INT >= VERSION_CODES.HONEYCOMB) {
 			addInBitmapOptions(options, cache);
@@ -191,6 +231,180 @@ public class ImageResizer extends ImageWorker {
 				.decodeFileDescriptor(fileDescriptor, null, options);
 	}
 
+	/**
+	 * @param options
+	 *            The options to decode with
+	 * @return true if the options already hold the dimensions and MIME type
+	 *         of the image, e.g. from the metadata of a disk cache entry, so
+	 *         the bounds needn't be decoded
+	 */
+	static boolean hasBounds(BitmapFactory.Options options) {
+		return options.outWidth > 0 && options.outHeight > 0
+				&& options.outMimeType != null;
+	}
+
+	/**
+	 * Sets the config to decode with, based on the requested image size and on
+	 * whether the image may have an alpha channel. Must be called after the
+	 * bounds have been decoded and before inBitmap is selected.
+	 * 
+	 * @param options
+	 *            - BitmapFactory.Options with out* options populated
+	 * @param imageSize
+	 *            The requested image size
+	 * @param cache
+	 *            The ImageCache holding the config policy
+	 */
+	private static void addConfigOptions(BitmapFactory.Options options,
+			ImageSize imageSize, ImageCache cache) {
+		addConfigOptions(options, imageSize, cache, false);
+	}
+
+	/**
+	 * @param knownOpaque
+	 *            Whether the image is known to be opaque from its header
+	 * @see #addConfigOptions(BitmapFactory.Options, ImageSize, ImageCache)
+	 */
+	private static void addConfigOptions(BitmapFactory.Options options,
+			ImageSize imageSize, ImageCache cache, boolean knownOpaque) {
+		if (cache != null) {
+			// Only JPEG, and WebP when its header says so, is known to be
+			// opaque without decoding the pixels
+			final boolean hasAlpha = !knownOpaque
+					&& !"image/jpeg".equals(options.outMimeType);
+			options.inPreferredConfig = cache.getBitmapConfig(imageSize,
+					hasAlpha);
+		}
+	}
+
+	/**
+	 * Decode and sample down a bitmap from encoded bytes held in a buffer to
+	 * the requested width and height.
+	 * 
+	 * @param buffer
+	 *            The buffer holding the encoded bytes between its position and
+	 *            limit
+	 * @param reqWidth
+	 *            The requested width of the resulting bitmap
+	 * @param reqHeight
+	 *            The requested height of the resulting bitmap
+	 * @param imageSize
+	 *            The image size used to select the bitmap config
+	 * @param cache
+	 *            The ImageCache used to find candidate bitmaps for use with
+	 *            inBitmap
+	 * @return A bitmap sampled down from the original with the same aspect
+	 *         ratio and dimensions that are equal to or greater than the
+	 *         requested width and height
+	 */
+	public static Bitmap decodeSampledBitmapFromBuffer(ByteBuffer buffer,
+			int reqWidth, int reqHeight, ImageSize imageSize, ImageCache cache) {
+		return decodeSampledBitmapFromBuffer(buffer, reqWidth, reqHeight,
+				imageSize, cache, new BitmapFactory.Options());
+	}
+
+	/**
+	 * Decode and sample down a bitmap from encoded bytes held in a buffer, see
+	 * {@link #decodeSampledBitmapFromBuffer(ByteBuffer, int, int, ImageSize, ImageCache)}
+	 * .
+	 * 
+	 * @param options
+	 *            The options to decode with. If they already hold the
+	 *            dimensions and MIME type, see
+	 *            {@link #hasBounds(BitmapFactory.Options)}, the bounds aren't
+	 *            decoded
+	 */
+	static Bitmap decodeSampledBitmapFromBuffer(ByteBuffer buffer,
+			int reqWidth, int reqHeight, ImageSize imageSize,
+			ImageCache cache, BitmapFactory.Options options) {
+
+		// First decode with inJustDecodeBounds=true to check dimensions
+		if (!hasBounds(options)) {
+			options.inJustDecodeBounds = true;
+			decodeBuffer(buffer, options);
+		}
+
+		// Calculate inSampleSize
+		options.inSampleSize = calculateInSampleSize(options, reqWidth,
+				reqHeight);
+
+		// Decode bitmap with inSampleSize set
+		options.inJustDecodeBounds = false;
+
+		addConfigOptions(options, imageSize, cache, isOpaqueWebp(buffer));
+
+		// If we're running on Honeycomb or newer, try to use inBitmap
+		if (Build.VERSION.SDK_INT >= VERSION_CODES.HONEYCOMB) {
+			addInBitmapOptions(options, cache);
+		}
+
+		return decodeBuffer(buffer, options);
+	}
+
+	/**
+	 * @param buffer
+	 *            The encoded image, its position is not changed
+	 * @return true if the buffer holds a WebP image whose header declares that
+	 *         it has no alpha channel
+	 */
+	static boolean isOpaqueWebp(ByteBuffer buffer) {
+		final int position = buffer.position();
+		if (buffer.remaining() < 21 || buffer.getInt(position) != 0x52494646 // "RIFF"
+				|| buffer.getInt(position + 8) != 0x57454250) { // "WEBP"
+			return false;
+		}
+		final int chunk = buffer.getInt(position + 12);
+		if (chunk == 0x56503820) { // "VP8 "
+			// The simple lossy format has no alpha channel
+			return true;
+		}
+		if (chunk == 0x56503858) { // "VP8X"
+			// The extended format has an alpha flag
+			return (buffer.get(position + 20) & 0x10) == 0;
+		}
+		return false;
+	}
+
+	/**
+	 * @param fileDescriptor
+	 *            The encoded image, read with a positional read so that its
+	 *            offset is not changed
+	 * @param options
+	 *            The options holding the MIME type of the image
+	 * @return true if the file holds a WebP image whose header declares that
+	 *         it has no alpha channel
+	 */
+	private static boolean isOpaqueWebp(FileDescriptor fileDescriptor,
+			BitmapFactory.Options options) {
+		if (!"image/webp".equals(options.outMimeType)) {
+			return false;
+		}
+		final ByteBuffer header = ByteBuffer.allocate(21);
+		try {
+			// The stream doesn't own the descriptor, so it isn't closed
+			new FileInputStream(fileDescriptor).getChannel().read(header, 0);
+		} catch (IOException e) {
+			Log.e(TAG, "isOpaqueWebp - " + e);
+			return false;
+		}
+		header.flip();
+		return isOpaqueWebp(header);
+	}
+
+	private static Bitmap decodeBuffer(ByteBuffer buffer,
+			BitmapFactory.Options options) {
+		if (buffer.hasArray()) {
+			return BitmapFactory.decodeByteArray(buffer.array(),
+					buffer.arrayOffset() + buffer.position(),
+					buffer.remaining(), options);
+		}
+		// Direct buffers have no backing array, so stream from a duplicate to
+		// leave the position of the original untouched
+		return BitmapFactory.decodeStream(
+				EncodedMemoryCache.newInputStream(buffer.duplicate()), null,
+				options);
+	}
+
 	@TargetApi(Build.VERSION_CODES.HONEYCOMB)
 	private static void addInBitmapOptions(BitmapFactory.Options options,
 			ImageCache cache) {
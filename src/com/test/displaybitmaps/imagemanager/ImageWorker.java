@@ -26,8 +26,6 @@ import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.ColorDrawable;
 import android.graphics.drawable.Drawable;
 import android.graphics.drawable.TransitionDrawable;
-import android.os.Build;
-import android.os.Build.VERSION_CODES;
 import android.util.Log;
 import android.widget.ImageView;
 
@@ -131,14 +129,16 @@ public abstract class ImageWorker {
 
 	/**
 	 * Adds an {@link ImageCache} to this {@link ImageWorker} to handle disk and
-	 * memory bitmap caching.
+	 * memory bitmap caching. The cache instance is selected by
+	 * {@link ImageCacheParams#uniqueName}, so workers using differently named
+	 * params keep independent budgets.
 	 * 
 	 * @param cacheParams
 	 *            The cache parameters to use for the image cache.
 	 */
 	public void addImageCache(ImageCacheParams cacheParams) {
 		mImageCacheParams = cacheParams;
-		mImageCache = ImageCache.getInstance();
+		mImageCache = ImageCache.getInstance(cacheParams.uniqueName);
 		mImageCache.setupImageCacheParams(mImageCacheParams);
 		new CacheAsyncTask().execute(MESSAGE_INIT_DISK_CACHE);
 	}
@@ -305,16 +305,13 @@ public abstract class ImageWorker {
 			// add the processed
 			// bitmap to our cache as it might be used again in the future
 			if (bitmap != null) {
-				if (Build.VERSION.SDK_INT >= VERSION_CODES.HONEYCOMB) {
-					// Running on Honeycomb or newer, so wrap in a standard
-					// BitmapDrawable
-					drawable = new BitmapDrawable(mResources, bitmap);
-				} else {
-					// Running on Gingerbread or older, so wrap in a
-					// RecyclingBitmapDrawable
-					// which will recycle automagically
-					drawable = new RecyclingBitmapDrawable(mResources, bitmap);
-				}
+				// Wrap in a RecyclingBitmapDrawable which counts the cache and
+				// display references. On Honeycomb or newer the bitmap goes
+				// back to the pool for inBitmap re-use once both are released,
+				// on Gingerbread or older it is recycled automagically.
+				drawable = new RecyclingBitmapDrawable(mResources, bitmap,
+						mImageCache != null ? mImageCache.getBitmapPool()
+								: null);
 
 				if (mImageCache != null) {
 					mImageCache.addBitmapToCache(dataString, mImageSize,
@@ -0,0 +1,139 @@
+package com.test.displaybitmaps.imagemanager;
+
+/**
+ * The 128-bit x64 variant of MurmurHash3, used to turn cache keys into disk
+ * file names. It is not a cryptographic hash, but its 128 bits make
+ * collisions between the keys of a cache as unlikely as with MD5 at a fraction
+ * of the cost.
+ * <p>
+ * The characters of the key are hashed as their UTF-16LE encoding and read
+ * straight from the string, so hashing a key allocates nothing but the
+ * resulting base32 string.
+ */
+public class Murmur3 {
+	private static final long C1 = 0x87c37b91114253d5L;
+	private static final long C2 = 0x4cf5ad432745937fL;
+
+	// Lower case and digits only, so keys stay valid file names on case
+	// insensitive file systems
+	private static final char[] BASE32 = "abcdefghijklmnopqrstuvwxyz234567"
+			.toCharArray();
+
+	/**
+	 * The length of the strings returned by {@link #hash128Base32(String)},
+	 * 128 bits at 5 bits per character.
+	 */
+	public static final int BASE32_LENGTH = 26;
+
+	/**
+	 * @param key
+	 *            The string to hash
+	 * @return The 128-bit hash of the string in base32, always
+	 *         {@link #BASE32_LENGTH} characters
+	 */
+	public static String hash128Base32(String key) {
+		final int length = key.length();
+		final int blocks = length >>> 3; // 16 bytes are 8 chars
+		long h1 = 0;
+		long h2 = 0;
+
+		for (int i = 0; i < blocks; i++) {
+			final int offset = i << 3;
+			long k1 = getLong(key, offset);
+			long k2 = getLong(key, offset + 4);
+
+			k1 *= C1;
+			k1 = Long.rotateLeft(k1, 31);
+			k1 *= C2;
+			h1 ^= k1;
+			h1 = Long.rotateLeft(h1, 27);
+			h1 += h2;
+			h1 = h1 * 5 + 0x52dce729;
+
+			k2 *= C2;
+			k2 = Long.rotateLeft(k2, 33);
+			k2 *= C1;
+			h2 ^= k2;
+			h2 = Long.rotateLeft(h2, 31);
+			h2 += h1;
+			h2 = h2 * 5 + 0x38495ab5;
+		}
+
+		final int tail = blocks << 3;
+		final int remaining = length - tail;
+		if (remaining > 4) {
+			long k2 = 0;
+			for (int i = remaining - 1; i >= 4; i--) {
+				k2 = (k2 << 16) | key.charAt(tail + i);
+			}
+			k2 *= C2;
+			k2 = Long.rotateLeft(k2, 33);
+			k2 *= C1;
+			h2 ^= k2;
+		}
+		if (remaining > 0) {
+			long k1 = 0;
+			for (int i = Math.min(remaining, 4) - 1; i >= 0; i--) {
+				k1 = (k1 << 16) | key.charAt(tail + i);
+			}
+			k1 *= C1;
+			k1 = Long.rotateLeft(k1, 31);
+			k1 *= C2;
+			h1 ^= k1;
+		}
+
+		final long byteLength = (long) length << 1;
+		h1 ^= byteLength;
+		h2 ^= byteLength;
+		h1 += h2;
+		h2 += h1;
+		h1 = fmix(h1);
+		h2 = fmix(h2);
+		h1 += h2;
+		h2 += h1;
+
+		return toBase32(h1, h2);
+	}
+
+	/**
+	 * @return Four chars of the string as a little endian long
+	 */
+	private static long getLong(String key, int offset) {
+		return key.charAt(offset) | (long) key.charAt(offset + 1) << 16
+				| (long) key.charAt(offset + 2) << 32
+				| (long) key.charAt(offset + 3) << 48;
+	}
+
+	private static long fmix(long k) {
+		k ^= k >>> 33;
+		k *= 0xff51afd7ed558ccdL;
+		k ^= k >>> 33;
+		k *= 0xc4ceb9fe1a85ec53L;
+		k ^= k >>> 33;
+		return k;
+	}
+
+	/**
+	 * Encodes a 128-bit value, most significant bits first and padded with two
+	 * zero bits at the end.
+	 */
+	private static String toBase32(long high, long low) {
+		final char[] chars = new char[BASE32_LENGTH];
+		for (int i = 0; i < BASE32_LENGTH; i++) {
+			final int bit = i * 5;
+			final long value;
+			if (bit + 5 <= 64) {
+				value = high >>> (59 - bit);
+			} else if (bit < 64) {
+				// Straddles both halves
+				value = high << (bit - 59) | low >>> (123 - bit);
+			} else if (bit + 5 <= 128) {
+				value = low >>> (123 - bit);
+			} else {
+				value = low << (bit - 123);
+			}
+			chars[i] = BASE32[(int) value & 31];
+		}
+		return new String(chars);
+	}
+}
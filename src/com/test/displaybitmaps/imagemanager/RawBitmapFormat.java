@@ -0,0 +1,149 @@
+package com.test.displaybitmaps.imagemanager;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+import android.annotation.TargetApi;
+import android.graphics.Bitmap;
+import android.graphics.Bitmap.Config;
+import android.graphics.BitmapFactory;
+import android.os.Build.VERSION_CODES;
+
+/**
+ * An uncompressed disk format holding the raw pixels of a bitmap behind a
+ * small header, so a disk hit is a copy into a (pooled) bitmap instead of a
+ * {@link BitmapFactory} decode. Only worth it for small images, where the
+ * pixels of an RGB_565 thumbnail take no more than a few times the size of
+ * the equivalent JPEG.
+ * <p>
+ * The header is a magic number, the width and height, the config name and the
+ * pixel data length, followed by the rows of pixels as written by
+ * {@link Bitmap#copyPixelsToBuffer(java.nio.Buffer)}. The magic number can't
+ * start a JPEG, PNG or WebP file, so entries in this format can live next to
+ * compressed entries in the same cache.
+ */
+public class RawBitmapFormat {
+	private static final int MAGIC = 0x52415731; // "RAW1"
+
+	/**
+	 * The content type disk cache entries in this format are stored with.
+	 */
+	public static final String CONTENT_TYPE = "application/x-raw-bitmap";
+
+	/**
+	 * Writes a bitmap in the raw format.
+	 * 
+	 * @param bitmap
+	 *            The bitmap to write, it must have a config
+	 * @param out
+	 *            The stream to write to, it is not closed
+	 * @throws IOException
+	 *             If the stream can't be written
+	 */
+	public static void write(Bitmap bitmap, OutputStream out)
+			throws IOException {
+		final DataOutputStream dataOut = new DataOutputStream(out);
+		dataOut.writeInt(MAGIC);
+		dataOut.writeInt(bitmap.getWidth());
+		dataOut.writeInt(bitmap.getHeight());
+		dataOut.writeUTF(bitmap.getConfig().name());
+		final int length = bitmap.getRowBytes() * bitmap.getHeight();
+		dataOut.writeInt(length);
+		dataOut.flush();
+
+		final ByteBuffer pixels = ByteBuffer.allocate(length);
+		bitmap.copyPixelsToBuffer(pixels);
+		out.write(pixels.array(), 0, pixels.position());
+	}
+
+	/**
+	 * @param buffer
+	 *            The buffer holding a cache entry, its position is not changed
+	 * @return true if the entry is in the raw format
+	 */
+	public static boolean isRaw(ByteBuffer buffer) {
+		return buffer.remaining() >= 4
+				&& buffer.getInt(buffer.position()) == MAGIC;
+	}
+
+	/**
+	 * Reads a bitmap written by {@link #write(Bitmap, OutputStream)}.
+	 * 
+	 * @param buffer
+	 *            The buffer holding the entry, its position is advanced past
+	 *            it
+	 * @param pool
+	 *            The pool to take a bitmap to copy the pixels into from, or
+	 *            null
+	 * @return The bitmap
+	 * @throws IOException
+	 *             If the entry is corrupt or truncated
+	 */
+	public static Bitmap read(ByteBuffer buffer, BitmapPool pool)
+			throws IOException {
+		final DataInputStream in = new DataInputStream(
+				EncodedMemoryCache.newInputStream(buffer));
+		if (in.readInt() != MAGIC) {
+			throw new IOException("unexpected raw bitmap header");
+		}
+		final int width = in.readInt();
+		final int height = in.readInt();
+		final Config config;
+		try {
+			config = Config.valueOf(in.readUTF());
+		} catch (IllegalArgumentException e) {
+			throw new IOException("unexpected raw bitmap config");
+		}
+		final int length = in.readInt();
+		if (length < 0 || buffer.remaining() < length) {
+			throw new IOException("truncated raw bitmap");
+		}
+
+		final Bitmap bitmap = obtainBitmap(width, height, config, pool);
+		final ByteBuffer pixels = buffer.slice();
+		pixels.limit(length);
+		bitmap.copyPixelsFromBuffer(pixels);
+		buffer.position(buffer.position() + length);
+		return bitmap;
+	}
+
+	/**
+	 * @param width
+	 *            The width of the bitmap
+	 * @param height
+	 *            The height of the bitmap
+	 * @param config
+	 *            The config of the bitmap
+	 * @param pool
+	 *            The pool to take the bitmap from, or null
+	 * @return A mutable bitmap with the given dimensions and config, taken
+	 *         from the pool if a suitable one is available
+	 */
+	@TargetApi(VERSION_CODES.KITKAT)
+	static Bitmap obtainBitmap(int width, int height, Config config,
+			BitmapPool pool) {
+		if (pool != null) {
+			final BitmapFactory.Options options = new BitmapFactory.Options();
+			options.outWidth = width;
+			options.outHeight = height;
+			options.inSampleSize = 1;
+			options.inPreferredConfig = config;
+
+			final Bitmap candidate = pool.get(options);
+			if (candidate != null) {
+				if (candidate.getWidth() != width
+						|| candidate.getHeight() != height
+						|| candidate.getConfig() != config) {
+					// Only possible from KitKat onward, where the pool hands
+					// out any bitmap with a large enough allocation
+					candidate.reconfigure(width, height, config);
+				}
+				return candidate;
+			}
+		}
+		return Bitmap.createBitmap(width, height, config);
+	}
+}
@@ -23,9 +23,10 @@ import android.util.Log;
 
 /**
  * A BitmapDrawable that keeps track of whether it is being displayed or cached.
- * When the drawable is no longer being displayed or cached,
- * {@link android.graphics.Bitmap#recycle() recycle()} will be called on this
- * drawable's bitmap.
+ * When the drawable is no longer being displayed or cached, this drawable's
+ * bitmap is released to its {@link BitmapPool} for inBitmap re-use, or
+ * {@link android.graphics.Bitmap#recycle() recycle()} is called on it if the
+ * drawable has no pool (before Honeycomb).
  */
 public class RecyclingBitmapDrawable extends BitmapDrawable {
 
@@ -35,9 +36,25 @@ public class RecyclingBitmapDrawable extends BitmapDrawable {
 	private int mDisplayRefCount = 0;
 
 	private boolean mHasBeenDisplayed;
+	private boolean mReleased;
+
+	private final BitmapPool mBitmapPool;
 
 	public RecyclingBitmapDrawable(Resources res, Bitmap bitmap) {
+		this(res, bitmap, null);
+	}
+
+	/**
+	 * @param res
+	 * @param bitmap
+	 * @param pool
+	 *            The pool to release the bitmap to once it is no longer used,
+	 *            or null to recycle it instead
+	 */
+	public RecyclingBitmapDrawable(Resources res, Bitmap bitmap,
+			BitmapPool pool) {
 		super(res, bitmap);
+		mBitmapPool = pool;
 	}
 
 	/**
@@ -89,13 +106,23 @@ public class RecyclingBitmapDrawable extends BitmapDrawable {
 	private synchronized void checkState() {
 		// BEGIN_INCLUDE(check_state)
 		// If the drawable cache and display ref counts = 0, and this drawable
-		// has been displayed, then recycle
+		// has been displayed, then release or recycle. A drawable that was
+		// never displayed may still be on its way to a view, so it is left to
+		// the garbage collector.
 		if (mCacheRefCount <= 0 && mDisplayRefCount <= 0 && mHasBeenDisplayed
-				&& hasValidBitmap()) {
-			Log.d(TAG, "No longer being used or cached so recycling. "
-					+ toString());
+				&& !mReleased && hasValidBitmap()) {
+			mReleased = true;
+			if (mBitmapPool != null) {
+				Log.d(TAG, "No longer being used or cached so releasing. "
+						+ toString());
+
+				mBitmapPool.release(getBitmap());
+			} else {
+				Log.d(TAG, "No longer being used or cached so recycling. "
+						+ toString());
 
-			getBitmap().recycle();
+				getBitmap().recycle();
+			}
 		}
 		// END_INCLUDE(check_state)
 	}
@@ -0,0 +1,424 @@
+package com.test.displaybitmaps.imagemanager;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A disk cache split into independent {@link DiskLruCache} shards, each in its
+ * own directory with its own journal, index and lock. Keys are routed to a
+ * shard by their hash, so operations on different shards never contend, each
+ * journal only holds a fraction of the entries and the shards are opened in
+ * parallel.
+ * <p>
+ * Every shard starts with an equal share of the maximum size. As hashing
+ * doesn't spread bytes perfectly evenly, the shares are rebalanced every few
+ * edits and on {@link #flush()}: the space a shard doesn't use is lent to the
+ * shards that are full, and taken back as the shard grows again. The total
+ * size may exceed the maximum by what the shards grew between two
+ * rebalances.
+ * <p>
+ * A single shard is stored directly in the cache directory, with the same
+ * layout as a plain {@link DiskLruCache}. Several shards are stored in
+ * subdirectories, and anything else in the directory, such as the entries of
+ * a cache opened with another shard count, is deleted on open.
+ */
+public class ShardedDiskLruCache implements Closeable {
+	private static final String SHARD_DIR_PREFIX = "shard-";
+
+	// Shard sizes are rebalanced after this many edits
+	private static final int REBALANCE_INTERVAL = 64;
+
+	private static final int IO_BUFFER_SIZE = 8 * 1024;
+
+	private final File mDirectory;
+	private final int mValueCount;
+	private final long mMaxSize;
+	private final DiskLruCache[] mShards;
+	private final AtomicInteger mEditsSinceRebalance = new AtomicInteger();
+
+	private ShardedDiskLruCache(File directory, int valueCount, long maxSize,
+			DiskLruCache[] shards) {
+		mDirectory = directory;
+		mValueCount = valueCount;
+		mMaxSize = maxSize;
+		mShards = shards;
+	}
+
+	/**
+	 * Opens the cache in a directory, creating it if none exists there. The
+	 * shards are opened in parallel.
+	 *
+	 * @param directory
+	 *            A writable directory exclusive to the cache
+	 * @param appVersion
+	 *            The application version, see {@link DiskLruCache#open}
+	 * @param valueCount
+	 *            The number of values per cache entry
+	 * @param maxSize
+	 *            The maximum number of bytes to store across all shards
+	 * @param shardCount
+	 *            The number of shards
+	 * @return The opened cache
+	 * @throws IOException
+	 *             If reading or writing the cache directory fails
+	 */
+	public static ShardedDiskLruCache open(File directory, int appVersion,
+			int valueCount, long maxSize, int shardCount) throws IOException {
+		return open(directory, appVersion, valueCount, maxSize, shardCount,
+				EvictionPolicy.Type.LRU, null);
+	}
+
+	/**
+	 * Opens the cache with custom eviction and admission policies, see
+	 * {@link DiskLruCache#open(File, int, int, long, EvictionPolicy, AdmissionPolicy)}
+	 * . Each shard gets its own eviction policy, and the admission policy
+	 * judges entries against the size of their shard.
+	 *
+	 * @param evictionPolicy
+	 *            The type of eviction policy of the shards
+	 * @param admissionPolicy
+	 *            The entries that may be stored, or null to store all of them
+	 * @see #open(File, int, int, long, int)
+	 */
+	public static ShardedDiskLruCache open(File directory,
+			final int appVersion, final int valueCount, long maxSize,
+			int shardCount, final EvictionPolicy.Type evictionPolicy,
+			final AdmissionPolicy admissionPolicy) throws IOException {
+		if (shardCount <= 0) {
+			throw new IllegalArgumentException("shardCount <= 0");
+		}
+		if (maxSize < shardCount) {
+			throw new IllegalArgumentException("maxSize < shardCount");
+		}
+
+		deleteShardDirectories(directory, shardCount);
+		final DiskLruCache[] shards = new DiskLruCache[shardCount];
+		if (shardCount == 1) {
+			shards[0] = DiskLruCache.open(directory, appVersion, valueCount,
+					maxSize, evictionPolicy.newPolicy(), admissionPolicy);
+			return new ShardedDiskLruCache(directory, valueCount, maxSize,
+					shards);
+		}
+
+		final long shardSize = maxSize / shardCount;
+		final ExecutorService executor = Executors
+				.newFixedThreadPool(shardCount);
+		try {
+			final List<Future<DiskLruCache>> futures = new ArrayList<Future<DiskLruCache>>(
+					shardCount);
+			for (int i = 0; i < shardCount; i++) {
+				final File shardDir = new File(directory, getShardDirName(i,
+						shardCount));
+				futures.add(executor.submit(new Callable<DiskLruCache>() {
+					@Override
+					public DiskLruCache call() throws IOException {
+						return DiskLruCache.open(shardDir, appVersion,
+								valueCount, shardSize, evictionPolicy.newPolicy(),
+								admissionPolicy);
+					}
+				}));
+			}
+
+			IOException failure = null;
+			for (int i = 0; i < shardCount; i++) {
+				try {
+					shards[i] = futures.get(i).get();
+				} catch (ExecutionException e) {
+					failure = e.getCause() instanceof IOException ? (IOException) e
+							.getCause() : new IOException(e.getCause()
+							.toString());
+				} catch (InterruptedException e) {
+					failure = new IOException("interrupted opening " + directory);
+				}
+			}
+			if (failure != null) {
+				for (DiskLruCache shard : shards) {
+					DiskLruCache.closeQuietly(shard);
+				}
+				throw failure;
+			}
+		} finally {
+			executor.shutdown();
+		}
+
+		final ShardedDiskLruCache cache = new ShardedDiskLruCache(directory,
+				valueCount, maxSize, shards);
+		cache.rebalance();
+		return cache;
+	}
+
+	private static String getShardDirName(int shard, int shardCount) {
+		return SHARD_DIR_PREFIX + shard + "-of-" + shardCount;
+	}
+
+	/**
+	 * Deletes what doesn't belong to the layout of the given shard count: the
+	 * shard directories of other counts, and for several shards everything
+	 * else in the directory too.
+	 */
+	private static void deleteShardDirectories(File directory, int shardCount)
+			throws IOException {
+		final File[] files = directory.listFiles();
+		if (files == null) {
+			return;
+		}
+		final String suffix = "-of-" + shardCount;
+		for (File file : files) {
+			final String name = file.getName();
+			final boolean isShardDir = file.isDirectory()
+					&& name.startsWith(SHARD_DIR_PREFIX);
+			if (isShardDir && name.endsWith(suffix)) {
+				continue;
+			}
+			if (isShardDir || shardCount > 1) {
+				if (file.isDirectory()) {
+					DiskLruCache.deleteContents(file);
+				}
+				if (!file.delete()) {
+					throw new IOException("failed to delete " + file);
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return The shard a key is stored in
+	 */
+	private DiskLruCache getShard(String key) {
+		if (mShards.length == 1) {
+			return mShards[0];
+		}
+		int hash = key.hashCode();
+		hash ^= hash >>> 16;
+		return mShards[(hash & 0x7fffffff) % mShards.length];
+	}
+
+	/**
+	 * @see DiskLruCache#get(String)
+	 */
+	public DiskLruCache.Snapshot get(String key) throws IOException {
+		return getShard(key).get(key);
+	}
+
+	/**
+	 * @see DiskLruCache#edit(String)
+	 */
+	public DiskLruCache.Editor edit(String key) throws IOException {
+		if (mShards.length > 1
+				&& mEditsSinceRebalance.incrementAndGet() >= REBALANCE_INTERVAL) {
+			mEditsSinceRebalance.set(0);
+			rebalance();
+		}
+		return getShard(key).edit(key);
+	}
+
+	/**
+	 * @see DiskLruCache#remove(String)
+	 */
+	public boolean remove(String key) throws IOException {
+		return getShard(key).remove(key);
+	}
+
+	/**
+	 * Moves an entry to another key, see {@link DiskLruCache#rename}. An
+	 * entry moving to another shard is copied there and removed from its old
+	 * shard.
+	 */
+	public boolean rename(String key, String newKey) throws IOException {
+		final DiskLruCache from = getShard(key);
+		final DiskLruCache to = getShard(newKey);
+		if (from == to) {
+			return from.rename(key, newKey);
+		}
+
+		final DiskLruCache.Snapshot snapshot = from.get(key);
+		if (snapshot == null) {
+			return false;
+		}
+		try {
+			final DiskLruCache.Snapshot existing = to.get(newKey);
+			if (existing != null) {
+				existing.close();
+				return false;
+			}
+			final DiskLruCache.Editor editor = to.edit(newKey);
+			if (editor == null) {
+				return false;
+			}
+			boolean committed = false;
+			try {
+				for (int i = 0; i < mValueCount; i++) {
+					final InputStream in = snapshot.getInputStream(i);
+					if (in == null) {
+						return false; // changed since the lookup
+					}
+					copy(in, editor.newOutputStream(i));
+				}
+				editor.setExpiresAt(snapshot.getExpiresAt());
+				editor.setContentType(snapshot.getContentType());
+				editor.setDimensions(snapshot.getWidth(), snapshot.getHeight());
+				editor.setTag(snapshot.getTag());
+				editor.commit();
+				committed = true;
+			} finally {
+				if (!committed) {
+					editor.abort();
+				}
+			}
+		} finally {
+			snapshot.close();
+		}
+		from.remove(key);
+		return true;
+	}
+
+	private static void copy(InputStream in, OutputStream out)
+			throws IOException {
+		try {
+			final byte[] buffer = new byte[IO_BUFFER_SIZE];
+			int count;
+			while ((count = in.read(buffer)) != -1) {
+				out.write(buffer, 0, count);
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Sets the group commit window of every shard. Each shard syncs its own
+	 * groups.
+	 *
+	 * @see DiskLruCache#setSyncWindow(long)
+	 */
+	public void setSyncWindow(long windowMillis) {
+		for (DiskLruCache shard : mShards) {
+			shard.setSyncWindow(windowMillis);
+		}
+	}
+
+	/**
+	 * @see DiskLruCache#evictExpired()
+	 */
+	public int evictExpired() throws IOException {
+		int removed = 0;
+		for (DiskLruCache shard : mShards) {
+			removed += shard.evictExpired();
+		}
+		return removed;
+	}
+
+	/**
+	 * Redistributes the maximum size between the shards. Each shard is
+	 * entitled to an equal share; the part of its share an under-filled shard
+	 * doesn't use is split between the shards that use all of theirs.
+	 */
+	private synchronized void rebalance() {
+		if (mShards.length == 1 || isClosed()) {
+			return;
+		}
+		final long share = mMaxSize / mShards.length;
+		long unused = 0;
+		int fullShards = 0;
+		for (DiskLruCache shard : mShards) {
+			final long size = shard.size();
+			if (size < share) {
+				unused += share - size;
+			} else {
+				fullShards++;
+			}
+		}
+		final long extra = fullShards > 0 ? unused / fullShards : 0;
+		for (DiskLruCache shard : mShards) {
+			shard.setMaxSize(shard.size() < share ? share : share + extra);
+		}
+	}
+
+	/**
+	 * @return The cache directory
+	 */
+	public File getDirectory() {
+		return mDirectory;
+	}
+
+	/**
+	 * @return The maximum number of bytes to store across all shards
+	 */
+	public long maxSize() {
+		return mMaxSize;
+	}
+
+	/**
+	 * @return The number of bytes stored across all shards
+	 */
+	public long size() {
+		long size = 0;
+		for (DiskLruCache shard : mShards) {
+			size += shard.size();
+		}
+		return size;
+	}
+
+	/**
+	 * @return The number of shards
+	 */
+	public int getShardCount() {
+		return mShards.length;
+	}
+
+	/**
+	 * @return true if the cache has been closed
+	 */
+	public boolean isClosed() {
+		return mShards[0].isClosed();
+	}
+
+	/**
+	 * Rebalances the shards and flushes each of them.
+	 *
+	 * @see DiskLruCache#flush()
+	 */
+	public void flush() throws IOException {
+		rebalance();
+		for (DiskLruCache shard : mShards) {
+			shard.flush();
+		}
+	}
+
+	/**
+	 * Closes every shard, even if closing one of them fails.
+	 */
+	@Override
+	public void close() throws IOException {
+		IOException failure = null;
+		for (DiskLruCache shard : mShards) {
+			try {
+				shard.close();
+			} catch (IOException e) {
+				failure = e;
+			}
+		}
+		if (failure != null) {
+			throw failure;
+		}
+	}
+
+	/**
+	 * Closes the cache and deletes everything in its directory.
+	 */
+	public void delete() throws IOException {
+		close();
+		DiskLruCache.deleteContents(mDirectory);
+	}
+}
@@ -0,0 +1,540 @@
+package com.test.displaybitmaps.imagemanager;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import android.util.Log;
+import android.util.SparseArray;
+
+/**
+ * A disk store for many small entries, packed into a few large pre-sized slab
+ * files instead of one file per entry. A hit is a lookup in an in-memory
+ * offset table and a slice of a memory-mapped slab, with no file to open or
+ * close.
+ * <p>
+ * Entries are appended to the active slab; once it is full a new slab is
+ * started. Removed and evicted entries leave dead space behind, and a slab
+ * that is less than half live is compacted in the background by moving its
+ * live entries to the active slab. Its file is deleted by the next flush, once
+ * the index no longer lists it. Entries are evicted least
+ * recently used first once the live bytes exceed the maximum size.
+ * <p>
+ * The offset table is written to an index file by {@link #flush()} and
+ * {@link #close()}. Entries added since the last flush are lost if the process
+ * dies, which is harmless for a cache.
+ */
+public class SlabStore implements Closeable {
+	private static final String TAG = "SlabStore";
+	private static final String INDEX_FILE = "index";
+	private static final String INDEX_FILE_TMP = "index.tmp";
+	private static final String SLAB_FILE_PREFIX = "slab-";
+	private static final int MAGIC = 0x534c4231; // "SLB1"
+
+	private final File mDirectory;
+	private final int mSlabSize;
+	private final long mMaxSize;
+
+	// Entries in access order, least recently used first
+	private final LinkedHashMap<String, Entry> mEntries = new LinkedHashMap<String, Entry>(
+			0, 0.75f, true);
+	private final SparseArray<Slab> mSlabs = new SparseArray<Slab>();
+	private Slab mActiveSlab;
+	private int mNextSlabId;
+	private long mSize;
+	private boolean mClosed;
+
+	// Files of compacted slabs, kept until the index no longer lists them
+	private final ArrayList<File> mObsoleteSlabFiles = new ArrayList<File>();
+
+	private final ExecutorService mExecutor = new ThreadPoolExecutor(0, 1,
+			60L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+	private boolean mCompactionScheduled;
+	private final Runnable mCompactionRunnable = new Runnable() {
+		@Override
+		public void run() {
+			synchronized (SlabStore.this) {
+				mCompactionScheduled = false;
+				if (!mClosed) {
+					compact();
+				}
+			}
+		}
+	};
+
+	private SlabStore(File directory, int slabSize, long maxSize) {
+		mDirectory = directory;
+		mSlabSize = slabSize;
+		mMaxSize = maxSize;
+	}
+
+	/**
+	 * Opens the store in a directory, creating it if needed. A store that
+	 * can't be read is deleted and started afresh.
+	 * 
+	 * @param directory
+	 *            A directory exclusive to the store
+	 * @param slabSize
+	 *            The size of each slab file in bytes, which is also the largest
+	 *            entry the store accepts
+	 * @param maxSize
+	 *            The maximum number of live bytes to store
+	 * @return The opened store
+	 * @throws IOException
+	 *             If the directory can't be created or written
+	 */
+	public static SlabStore open(File directory, int slabSize, long maxSize)
+			throws IOException {
+		final SlabStore store = new SlabStore(directory, slabSize, maxSize);
+		if (!directory.exists() && !directory.mkdirs()) {
+			throw new IOException("failed to create " + directory);
+		}
+		try {
+			store.readIndex();
+			store.deleteUnlistedSlabs();
+		} catch (IOException e) {
+			Log.e(TAG, "open - " + e);
+			store.deleteContents();
+		}
+		return store;
+	}
+
+	/**
+	 * @param key
+	 *            The entry key
+	 * @return A read-only view of the entry bytes, or null if the key is not
+	 *         stored or has expired
+	 */
+	public synchronized ByteBuffer get(String key) {
+		if (mClosed) {
+			return null;
+		}
+		final Entry entry = mEntries.get(key);
+		if (entry == null) {
+			return null;
+		}
+		if (entry.isExpired(System.currentTimeMillis())) {
+			remove(key);
+			return null;
+		}
+
+		final ByteBuffer buffer = mSlabs.get(entry.slabId).buffer
+				.asReadOnlyBuffer();
+		buffer.position(entry.offset);
+		buffer.limit(entry.offset + entry.length);
+		return buffer.slice();
+	}
+
+	/**
+	 * @param key
+	 *            The entry key
+	 * @return true if the key is stored, without counting as an access
+	 */
+	public synchronized boolean contains(String key) {
+		return !mClosed && mEntries.containsKey(key);
+	}
+
+	/**
+	 * Appends an entry, replacing any entry with the same key.
+	 * 
+	 * @param key
+	 *            The entry key
+	 * @param data
+	 *            The entry bytes
+	 * @param offset
+	 *            The offset of the first byte in data
+	 * @param length
+	 *            The number of bytes
+	 * @param expiresAt
+	 *            The expiry time in milliseconds since the epoch, or 0 if the
+	 *            entry never expires
+	 * @return false if the entry is larger than a slab and was not stored
+	 * @throws IOException
+	 *             If a new slab can't be created
+	 */
+	public synchronized boolean put(String key, byte[] data, int offset,
+			int length, long expiresAt) throws IOException {
+		if (mClosed || length > mSlabSize) {
+			return false;
+		}
+		remove(key);
+
+		if (mActiveSlab == null
+				|| mActiveSlab.writePosition + length > mSlabSize) {
+			mActiveSlab = newSlab();
+		}
+		final Entry entry = append(data, offset, length);
+		entry.expiresAt = expiresAt;
+		mEntries.put(key, entry);
+		trimToSize();
+		return true;
+	}
+
+	/**
+	 * Removes an entry.
+	 * 
+	 * @param key
+	 *            The entry key
+	 */
+	public synchronized void remove(String key) {
+		final Entry entry = mEntries.remove(key);
+		if (entry != null) {
+			releaseEntry(entry);
+		}
+	}
+
+	/**
+	 * Removes every entry whose expiry time has passed.
+	 * 
+	 * @return The number of entries removed
+	 */
+	public synchronized int evictExpired() {
+		final long now = System.currentTimeMillis();
+		int removed = 0;
+		final Iterator<Entry> iterator = mEntries.values().iterator();
+		while (iterator.hasNext()) {
+			final Entry entry = iterator.next();
+			if (entry.isExpired(now)) {
+				iterator.remove();
+				releaseEntry(entry);
+				removed++;
+			}
+		}
+		return removed;
+	}
+
+	/**
+	 * @return The number of live bytes stored
+	 */
+	public synchronized long size() {
+		return mSize;
+	}
+
+	/**
+	 * Forces the slabs to disk, writes the index and then deletes the files of
+	 * compacted slabs. Note that this includes disk access so this should not
+	 * be executed on the main/UI thread.
+	 * 
+	 * @throws IOException
+	 *             If the index can't be written
+	 */
+	public synchronized void flush() throws IOException {
+		if (mClosed) {
+			return;
+		}
+		for (int i = 0; i < mSlabs.size(); i++) {
+			mSlabs.valueAt(i).buffer.force();
+		}
+		writeIndex();
+
+		for (File file : mObsoleteSlabFiles) {
+			if (!file.delete()) {
+				Log.e(TAG, "flush - failed to delete " + file);
+			}
+		}
+		mObsoleteSlabFiles.clear();
+	}
+
+	/**
+	 * Flushes and closes the store.
+	 */
+	@Override
+	public synchronized void close() throws IOException {
+		if (mClosed) {
+			return;
+		}
+		flush();
+		mClosed = true;
+		mExecutor.shutdown();
+	}
+
+	/**
+	 * Closes the store and deletes all of its files.
+	 * 
+	 * @throws IOException
+	 *             If a file can't be deleted
+	 */
+	public synchronized void delete() throws IOException {
+		mClosed = true;
+		mExecutor.shutdown();
+		deleteContents();
+	}
+
+	private Slab newSlab() throws IOException {
+		final Slab slab = mapSlab(mNextSlabId++, true);
+		mSlabs.put(slab.id, slab);
+		return slab;
+	}
+
+	private Slab mapSlab(int id, boolean create) throws IOException {
+		final File file = new File(mDirectory, SLAB_FILE_PREFIX + id);
+		if (!create && !file.exists()) {
+			throw new IOException("missing " + file);
+		}
+		final RandomAccessFile randomAccessFile = new RandomAccessFile(file,
+				"rw");
+		try {
+			// Pre-size the slab so appends never grow the file
+			if (randomAccessFile.length() != mSlabSize) {
+				randomAccessFile.setLength(mSlabSize);
+			}
+			final MappedByteBuffer buffer = randomAccessFile.getChannel().map(
+					FileChannel.MapMode.READ_WRITE, 0, mSlabSize);
+			return new Slab(id, file, buffer);
+		} finally {
+			randomAccessFile.close();
+		}
+	}
+
+	private Entry append(byte[] data, int offset, int length) {
+		final ByteBuffer buffer = mActiveSlab.buffer.duplicate();
+		buffer.position(mActiveSlab.writePosition);
+		buffer.put(data, offset, length);
+		return appended(length);
+	}
+
+	private Entry appended(int length) {
+		final Entry entry = new Entry(mActiveSlab.id,
+				mActiveSlab.writePosition, length);
+		mActiveSlab.writePosition += length;
+		mActiveSlab.liveBytes += length;
+		mSize += length;
+		return entry;
+	}
+
+	private void releaseEntry(Entry entry) {
+		final Slab slab = mSlabs.get(entry.slabId);
+		slab.liveBytes -= entry.length;
+		mSize -= entry.length;
+		if (slab != mActiveSlab && slab.liveBytes * 2 < slab.writePosition
+				&& !mCompactionScheduled && !mClosed) {
+			mCompactionScheduled = true;
+			mExecutor.execute(mCompactionRunnable);
+		}
+	}
+
+	private void trimToSize() {
+		final Iterator<Entry> iterator = mEntries.values().iterator();
+		while (mSize > mMaxSize && iterator.hasNext()) {
+			final Entry entry = iterator.next();
+			iterator.remove();
+			releaseEntry(entry);
+		}
+	}
+
+	/**
+	 * Moves the live entries of every slab that is less than half live to the
+	 * active slab, and drops the emptied slabs. Each slab holds at most half a
+	 * slab of live data, so the store is only blocked for short copies.
+	 * <p>
+	 * The index on disk still points into the emptied slabs until the next
+	 * flush, so their files are left for the flush to delete.
+	 */
+	private void compact() {
+		for (int i = mSlabs.size() - 1; i >= 0; i--) {
+			final Slab slab = mSlabs.valueAt(i);
+			if (slab == mActiveSlab || slab.liveBytes * 2 >= slab.writePosition) {
+				continue;
+			}
+			try {
+				// Entries are updated in place to keep the access order
+				for (Entry entry : mEntries.values()) {
+					if (entry.slabId != slab.id) {
+						continue;
+					}
+					if (mActiveSlab == null
+							|| mActiveSlab.writePosition + entry.length > mSlabSize) {
+						mActiveSlab = newSlab();
+					}
+					final ByteBuffer source = slab.buffer.duplicate();
+					source.position(entry.offset);
+					source.limit(entry.offset + entry.length);
+					final ByteBuffer target = mActiveSlab.buffer.duplicate();
+					target.position(mActiveSlab.writePosition);
+					target.put(source);
+
+					slab.liveBytes -= entry.length;
+					mSize -= entry.length;
+					final Entry moved = appended(entry.length);
+					entry.slabId = moved.slabId;
+					entry.offset = moved.offset;
+				}
+			} catch (IOException e) {
+				Log.e(TAG, "compact - " + e);
+				return;
+			}
+
+			// Readers still holding slices keep the mapping alive
+			mSlabs.remove(slab.id);
+			mObsoleteSlabFiles.add(slab.file);
+			Log.d(TAG, "Compacted slab " + slab.id);
+		}
+	}
+
+	private void readIndex() throws IOException {
+		final File indexFile = new File(mDirectory, INDEX_FILE);
+		if (!indexFile.exists()) {
+			return;
+		}
+		final DataInputStream in = new DataInputStream(new BufferedInputStream(
+				new FileInputStream(indexFile)));
+		try {
+			if (in.readInt() != MAGIC || in.readInt() != mSlabSize) {
+				throw new IOException("unexpected index header");
+			}
+			mNextSlabId = in.readInt();
+			final int activeSlabId = in.readInt();
+			final int slabCount = in.readInt();
+			for (int i = 0; i < slabCount; i++) {
+				final Slab slab = mapSlab(in.readInt(), false);
+				slab.writePosition = in.readInt();
+				mSlabs.put(slab.id, slab);
+			}
+			mActiveSlab = mSlabs.get(activeSlabId);
+
+			final int entryCount = in.readInt();
+			for (int i = 0; i < entryCount; i++) {
+				final String key = in.readUTF();
+				final Entry entry = new Entry(in.readInt(), in.readInt(),
+						in.readInt());
+				entry.expiresAt = in.readLong();
+				final Slab slab = mSlabs.get(entry.slabId);
+				if (slab == null
+						|| entry.offset + entry.length > slab.writePosition) {
+					throw new IOException("unexpected index entry");
+				}
+				slab.liveBytes += entry.length;
+				mSize += entry.length;
+				mEntries.put(key, entry);
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	private void writeIndex() throws IOException {
+		final File tmpFile = new File(mDirectory, INDEX_FILE_TMP);
+		final DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream(new FileOutputStream(tmpFile)));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(mSlabSize);
+			out.writeInt(mNextSlabId);
+			out.writeInt(mActiveSlab != null ? mActiveSlab.id : -1);
+			out.writeInt(mSlabs.size());
+			for (int i = 0; i < mSlabs.size(); i++) {
+				final Slab slab = mSlabs.valueAt(i);
+				out.writeInt(slab.id);
+				out.writeInt(slab.writePosition);
+			}
+
+			// Least recently used first, so reading restores the order
+			out.writeInt(mEntries.size());
+			for (Map.Entry<String, Entry> e : mEntries.entrySet()) {
+				final Entry entry = e.getValue();
+				out.writeUTF(e.getKey());
+				out.writeInt(entry.slabId);
+				out.writeInt(entry.offset);
+				out.writeInt(entry.length);
+				out.writeLong(entry.expiresAt);
+			}
+		} finally {
+			out.close();
+		}
+		if (!tmpFile.renameTo(new File(mDirectory, INDEX_FILE))) {
+			throw new IOException("failed to rename " + tmpFile);
+		}
+	}
+
+	/**
+	 * Deletes the slab files the index doesn't list: slabs compacted or
+	 * created after the last flush of a process that didn't close the store.
+	 */
+	private void deleteUnlistedSlabs() {
+		final File[] files = mDirectory.listFiles();
+		if (files == null) {
+			return;
+		}
+		for (File file : files) {
+			final String name = file.getName();
+			if (!name.startsWith(SLAB_FILE_PREFIX)) {
+				continue;
+			}
+			int id;
+			try {
+				id = Integer.parseInt(name.substring(SLAB_FILE_PREFIX.length()));
+			} catch (NumberFormatException e) {
+				id = -1;
+			}
+			if (mSlabs.get(id) == null && !file.delete()) {
+				Log.e(TAG, "deleteUnlistedSlabs - failed to delete " + file);
+			}
+		}
+	}
+
+	private void deleteContents() throws IOException {
+		mObsoleteSlabFiles.clear();
+		mEntries.clear();
+		mSlabs.clear();
+		mActiveSlab = null;
+		mNextSlabId = 0;
+		mSize = 0;
+		final File[] files = mDirectory.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				if (!file.delete()) {
+					throw new IOException("failed to delete " + file);
+				}
+			}
+		}
+	}
+
+	private static class Slab {
+		private final int id;
+		private final File file;
+		private final MappedByteBuffer buffer;
+		private int writePosition;
+		private int liveBytes;
+
+		private Slab(int id, File file, MappedByteBuffer buffer) {
+			this.id = id;
+			this.file = file;
+			this.buffer = buffer;
+		}
+	}
+
+	private static class Entry {
+		private int slabId;
+		private int offset;
+		private final int length;
+		private long expiresAt;
+
+		private Entry(int slabId, int offset, int length) {
+			this.slabId = slabId;
+			this.offset = offset;
+			this.length = length;
+		}
+
+		private boolean isExpired(long now) {
+			return expiresAt != 0 && expiresAt <= now;
+		}
+	}
+}
@@ -0,0 +1,99 @@
+package com.test.displaybitmaps.imagemanager;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import android.graphics.Bitmap;
+import android.graphics.Bitmap.CompressFormat;
+import android.graphics.Bitmap.Config;
+import android.graphics.BitmapFactory;
+import android.os.Build;
+import android.os.Build.VERSION_CODES;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.test.displaybitmaps.R;
+
+/**
+ * Compares the disk compress formats on a small image corpus: the encode
+ * time, decode time and encoded bytes of each format the device can write,
+ * for opaque images and for images with alpha. The figures are logged under
+ * the "CompressFormatTest" tag.
+ */
+public class CompressFormatTest extends AndroidTestCase {
+	private static final String TAG = "CompressFormatTest";
+
+	// Each image is encoded and decoded this many times, after one warm-up
+	private static final int RUNS = 5;
+
+	public void testCompareFormats() {
+		final List<Bitmap> opaque = new ArrayList<Bitmap>();
+		opaque.add(TestBitmaps.createPhoto(ImageSize.xlarge.getSize(), 1));
+		opaque.add(TestBitmaps.createPhoto(ImageSize.large.getSize(), 2));
+		opaque.add(TestBitmaps.createPhoto(ImageSize.thumbnail.getSize(), 3));
+		opaque.add(TestBitmaps.createGraphic(ImageSize.large.getSize()));
+
+		final List<Bitmap> alpha = new ArrayList<Bitmap>();
+		alpha.add(TestBitmaps.createIcon(ImageSize.medium.getSize()));
+		alpha.add(BitmapFactory.decodeResource(getContext().getResources(),
+				R.drawable.ic_launcher));
+
+		final int quality = new ImageCacheParams(getContext()).compressQuality;
+		for (CompressFormat format : getFormats()) {
+			report(format, "opaque", opaque, quality);
+			report(format, "alpha", alpha, quality);
+		}
+	}
+
+	private static List<CompressFormat> getFormats() {
+		final List<CompressFormat> formats = new ArrayList<CompressFormat>();
+		formats.add(CompressFormat.JPEG);
+		formats.add(CompressFormat.PNG);
+		if (Build.VERSION.SDK_INT >= VERSION_CODES.ICE_CREAM_SANDWICH) {
+			formats.add(CompressFormat.WEBP);
+		}
+		return formats;
+	}
+
+	private static void report(CompressFormat format, String name,
+			List<Bitmap> corpus, int quality) {
+		long encodeNanos = 0;
+		long decodeNanos = 0;
+		long bytes = 0;
+		for (Bitmap bitmap : corpus) {
+			final ByteArrayOutputStream out = new ByteArrayOutputStream();
+			for (int run = 0; run <= RUNS; run++) {
+				out.reset();
+				final long startNanos = System.nanoTime();
+				assertTrue(bitmap.compress(format, quality, out));
+				if (run > 0) {
+					encodeNanos += System.nanoTime() - startNanos;
+				}
+			}
+			final byte[] encoded = out.toByteArray();
+			bytes += encoded.length;
+
+			final BitmapFactory.Options options = new BitmapFactory.Options();
+			options.inPreferredConfig = Config.ARGB_8888;
+			for (int run = 0; run <= RUNS; run++) {
+				final long startNanos = System.nanoTime();
+				final Bitmap decoded = BitmapFactory.decodeByteArray(encoded,
+						0, encoded.length, options);
+				if (run > 0) {
+					decodeNanos += System.nanoTime() - startNanos;
+				}
+				assertNotNull(format + " decode failed", decoded);
+				assertEquals(bitmap.getWidth(), decoded.getWidth());
+				assertEquals(bitmap.getHeight(), decoded.getHeight());
+				decoded.recycle();
+			}
+		}
+
+		final int count = corpus.size() * RUNS;
+		Log.i(TAG, format + " " + name + ": encode "
+				+ (encodeNanos / count / 1000) + "us, decode "
+				+ (decodeNanos / count / 1000) + "us, " + bytes + " bytes for "
+				+ corpus.size() + " images");
+	}
+}
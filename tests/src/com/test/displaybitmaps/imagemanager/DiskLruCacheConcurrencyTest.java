@@ -0,0 +1,223 @@
+package com.test.displaybitmaps.imagemanager;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+/**
+ * Drives a {@link DiskLruCache} from several threads at once. The stress test
+ * mixes gets, edits, removes and renames of a small set of keys, so that
+ * threads keep meeting on the same entries under the entry locks and on the
+ * index lock, and checks the index against the files on disk afterwards. The
+ * throughput test prints gets per second for one and for several reader
+ * threads, and with a writer committing alongside the readers.
+ */
+public class DiskLruCacheConcurrencyTest extends TestCase {
+	private static final int THREADS = 8;
+
+	private File mDirectory;
+	private ExecutorService mExecutor;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		mDirectory = TempDirectory.create("DiskLruCacheConcurrencyTest");
+		mExecutor = Executors.newFixedThreadPool(THREADS);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		mExecutor.shutdownNow();
+		TempDirectory.delete(mDirectory);
+		super.tearDown();
+	}
+
+	public void testMixedOperations() throws Exception {
+		final long maxSize = 200 * 1000;
+		final DiskLruCache cache = DiskLruCache.open(mDirectory, 1, 1, maxSize);
+		final AtomicInteger errors = new AtomicInteger();
+
+		final List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+		for (int t = 0; t < THREADS; t++) {
+			final Random random = new Random(t);
+			tasks.add(new Callable<Void>() {
+				@Override
+				public Void call() throws Exception {
+					for (int i = 0; i < 5000; i++) {
+						// Hashed keys are packed in the journal, the others
+						// aren't
+						final int n = random.nextInt(500);
+						final String key = n % 2 == 0 ? "k" + n : Murmur3
+								.hash128Base32("u" + n);
+						final int op = random.nextInt(20);
+						if (op < 12) {
+							final DiskLruCache.Snapshot snapshot = cache
+									.get(key);
+							if (snapshot != null) {
+								// Null if the entry changed before the value
+								// was opened
+								final String value = snapshot.getString(0);
+								snapshot.close();
+								if (value != null && !value.startsWith(key + ":")) {
+									errors.incrementAndGet();
+								}
+							}
+						} else if (op < 18) {
+							final DiskLruCache.Editor editor = cache.edit(key);
+							if (editor != null) {
+								editor.set(0, key + ":"
+										+ padding(random.nextInt(2000)));
+								editor.commit();
+							}
+						} else if (op < 19) {
+							cache.remove(key);
+						} else {
+							cache.rename(key, "r" + key);
+						}
+					}
+					return null;
+				}
+			});
+		}
+		for (Future<Void> future : mExecutor.invokeAll(tasks)) {
+			future.get();
+		}
+		assertEquals("values read under the wrong key", 0, errors.get());
+
+		cache.flush();
+		final long size = cache.size();
+		assertTrue("size " + size, size <= maxSize);
+		cache.close();
+
+		final DiskLruCache reopened = DiskLruCache.open(mDirectory, 1, 1,
+				maxSize);
+		try {
+			assertEquals(size, reopened.size());
+			assertEquals(size, valueBytesOnDisk());
+		} finally {
+			reopened.close();
+		}
+	}
+
+	public void testThroughput() throws Exception {
+		final int keyCount = 1000;
+		final DiskLruCache cache = DiskLruCache.open(mDirectory, 1, 1,
+				Long.MAX_VALUE / 2);
+		try {
+			final String value = padding(4096);
+			for (int i = 0; i < keyCount; i++) {
+				final DiskLruCache.Editor editor = cache.edit(key(i));
+				editor.set(0, value);
+				editor.commit();
+			}
+
+			final int gets = 20000;
+			// Warm up, so the single-threaded run isn't the one paying for it
+			readThroughput(cache, keyCount, gets, THREADS, false);
+			final double single = readThroughput(cache, keyCount, gets, 1,
+					false);
+			final double parallel = readThroughput(cache, keyCount, gets,
+					THREADS, false);
+			final double withWriter = readThroughput(cache, keyCount, gets,
+					THREADS - 1, true);
+			System.out.println("DiskLruCacheConcurrencyTest: "
+					+ Runtime.getRuntime().availableProcessors() + " cpus, "
+					+ Math.round(single) + " gets/s on 1 thread, "
+					+ Math.round(parallel) + " gets/s on " + THREADS
+					+ " threads, " + Math.round(withWriter) + " gets/s on "
+					+ (THREADS - 1) + " threads alongside a writer");
+		} finally {
+			cache.close();
+		}
+	}
+
+	/**
+	 * @return The gets per second of the reader threads, each reading its own
+	 *         share of the keys
+	 */
+	private double readThroughput(final DiskLruCache cache,
+			final int keyCount, final int gets, final int readers,
+			boolean writer) throws Exception {
+		final List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+		for (int t = 0; t < readers; t++) {
+			final int first = t;
+			tasks.add(new Callable<Void>() {
+				@Override
+				public Void call() throws Exception {
+					for (int i = 0; i < gets / readers; i++) {
+						final int n = (first + i * readers) % keyCount;
+						final DiskLruCache.Snapshot snapshot = cache.get(key(n));
+						assertNotNull(key(n), snapshot);
+						snapshot.getString(0);
+						snapshot.close();
+					}
+					return null;
+				}
+			});
+		}
+
+		final AtomicBoolean readersDone = new AtomicBoolean();
+		Future<?> writerFuture = null;
+		if (writer) {
+			writerFuture = mExecutor.submit(new Callable<Void>() {
+				@Override
+				public Void call() throws Exception {
+					final String value = padding(4096);
+					for (int i = 0; !readersDone.get(); i++) {
+						final DiskLruCache.Editor editor = cache.edit("w"
+								+ (i % 100));
+						editor.set(0, value);
+						editor.commit();
+					}
+					return null;
+				}
+			});
+		}
+
+		final long startNanos = System.nanoTime();
+		try {
+			for (Future<Void> future : mExecutor.invokeAll(tasks)) {
+				future.get();
+			}
+		} finally {
+			readersDone.set(true);
+		}
+		final long elapsedNanos = System.nanoTime() - startNanos;
+		if (writerFuture != null) {
+			writerFuture.get();
+		}
+		return (gets / readers * readers) * 1e9 / elapsedNanos;
+	}
+
+	private long valueBytesOnDisk() {
+		long bytes = 0;
+		for (File file : mDirectory.listFiles()) {
+			if (file.getName().endsWith(".0")) {
+				bytes += file.length();
+			}
+		}
+		return bytes;
+	}
+
+	private static String key(int n) {
+		return Murmur3.hash128Base32("http://example.com/" + n);
+	}
+
+	private static String padding(int length) {
+		final char[] chars = new char[length];
+		for (int i = 0; i < length; i++) {
+			chars[i] = (char) ('a' + i % 26);
+		}
+		return new String(chars);
+	}
+
+}
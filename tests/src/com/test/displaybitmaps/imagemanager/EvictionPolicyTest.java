@@ -0,0 +1,148 @@
+package com.test.displaybitmaps.imagemanager;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/**
+ * Replays one synthetic trace against a {@link DiskLruCache} with each
+ * eviction and admission policy and compares their hit ratios. The trace
+ * requests many small entries with a Zipf-like popularity, a few huge ones,
+ * and one-off scans that are never requested again. The object and byte hit
+ * ratios of each policy are printed.
+ */
+public class EvictionPolicyTest extends TestCase {
+	private static final long MAX_SIZE = 1000 * 1000;
+	private static final int SMALL_SIZE = 2000;
+	private static final int LARGE_SIZE = 100 * 1000;
+	private static final int KEY_COUNT = 3000;
+	private static final int REQUESTS = 30000;
+	private static final int FLUSH_INTERVAL = 500;
+
+	private File mDirectory;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		mDirectory = TempDirectory.create("EvictionPolicyTest");
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		TempDirectory.delete(mDirectory);
+		super.tearDown();
+	}
+
+	public void testReplay() throws IOException {
+		final HitRatio lru = replay("LRU", null, null);
+		final HitRatio segmentedLru = replay("SLRU",
+				EvictionPolicy.Type.SEGMENTED_LRU.newPolicy(), null);
+		final HitRatio gdsf = replay("GDSF",
+				EvictionPolicy.Type.GDSF.newPolicy(), null);
+		final HitRatio maxEntryFraction = replay("LRU, 2% cap", null,
+				new AdmissionPolicy.MaxEntryFraction(0.02f));
+
+		// Keeping huge entries out, or evicting them first, leaves room for
+		// many more small ones
+		assertTrue(gdsf + " vs " + lru, gdsf.objectRatio() > lru.objectRatio());
+		assertTrue(maxEntryFraction + " vs " + lru,
+				maxEntryFraction.objectRatio() > lru.objectRatio());
+		// The protected segment keeps popular entries through scans
+		assertTrue(segmentedLru + " vs " + lru,
+				segmentedLru.objectRatio() > lru.objectRatio());
+	}
+
+	private HitRatio replay(String name, EvictionPolicy evictionPolicy,
+			AdmissionPolicy admissionPolicy) throws IOException {
+		final File directory = new File(mDirectory, name.replace(' ', '_'));
+		final DiskLruCache cache = DiskLruCache.open(directory, 1, 1,
+				MAX_SIZE, evictionPolicy, admissionPolicy);
+		final HitRatio ratio = new HitRatio(name);
+		final byte[] small = new byte[SMALL_SIZE];
+		final byte[] large = new byte[LARGE_SIZE];
+		final Random random = new Random(7);
+		try {
+			for (int i = 0; i < REQUESTS; i++) {
+				int key = (int) Math.pow(KEY_COUNT, random.nextDouble()) - 1;
+				// One key in 20 is a huge original
+				boolean isLarge = key * 2654435761L % 20 == 0;
+				if (random.nextInt(10) == 0) {
+					// A one-off scan
+					key = KEY_COUNT + i;
+					isLarge = random.nextInt(4) == 0;
+				}
+				final byte[] value = isLarge ? large : small;
+
+				final DiskLruCache.Snapshot snapshot = cache.get("k" + key);
+				if (snapshot != null) {
+					snapshot.close();
+					ratio.record(value.length, true);
+				} else {
+					ratio.record(value.length, false);
+					final DiskLruCache.Editor editor = cache.edit("k" + key);
+					if (editor != null) {
+						final OutputStream out = editor.newOutputStream(0);
+						out.write(value);
+						out.close();
+						editor.commit();
+					}
+				}
+
+				// Eviction runs in the background, flush waits for it
+				if (i % FLUSH_INTERVAL == 0) {
+					cache.flush();
+					assertTrue(name + " size " + cache.size(),
+							cache.size() <= MAX_SIZE);
+				}
+			}
+			cache.flush();
+			assertTrue(name + " size " + cache.size(), cache.size() <= MAX_SIZE);
+		} finally {
+			cache.close();
+		}
+		System.out.println("EvictionPolicyTest: " + ratio);
+		return ratio;
+	}
+
+	private static class HitRatio {
+		private final String name;
+		private long requests;
+		private long hits;
+		private long requestedBytes;
+		private long hitBytes;
+
+		private HitRatio(String name) {
+			this.name = name;
+		}
+
+		private void record(int size, boolean hit) {
+			requests++;
+			requestedBytes += size;
+			if (hit) {
+				hits++;
+				hitBytes += size;
+			}
+		}
+
+		private double objectRatio() {
+			return (double) hits / requests;
+		}
+
+		private double byteRatio() {
+			return (double) hitBytes / requestedBytes;
+		}
+
+		@Override
+		public String toString() {
+			return name + ": object hit ratio " + format(objectRatio())
+					+ ", byte hit ratio " + format(byteRatio());
+		}
+
+		private static String format(double ratio) {
+			return String.valueOf(Math.round(ratio * 1000) / 1000.0);
+		}
+	}
+}
@@ -0,0 +1,116 @@
+package com.test.displaybitmaps.imagemanager;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import junit.framework.TestCase;
+
+/**
+ * Measures {@link DiskLruCache#setSyncWindow(long)}: several writer threads
+ * commit entries with group commit off and with windows of 0, 2 and 10ms,
+ * and the commits per second and mean commit latency of each are printed.
+ * Every commit must be readable after reopening, and with a window the
+ * commits of different threads must share syncs.
+ */
+public class GroupCommitTest extends TestCase {
+	private static final int WRITERS = 8;
+	private static final int COMMITS_PER_WRITER = 150;
+	private static final int VALUE_LENGTH = 4000;
+
+	private File mDirectory;
+	private ExecutorService mExecutor;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		mDirectory = TempDirectory.create("GroupCommitTest");
+		mExecutor = Executors.newFixedThreadPool(WRITERS);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		mExecutor.shutdownNow();
+		TempDirectory.delete(mDirectory);
+		super.tearDown();
+	}
+
+	public void testSyncWindows() throws Exception {
+		commit(DiskLruCache.SYNC_DISABLED);
+		commit(0);
+		commit(2);
+		final double commitsPerSecond = commit(10);
+
+		// One commit per group would allow at most one group, and so one
+		// commit, per window: 100 per second
+		assertTrue(commitsPerSecond + " commits/s", commitsPerSecond > 200);
+	}
+
+	/**
+	 * @return The commits per second with the given sync window
+	 */
+	private double commit(long windowMillis) throws Exception {
+		final File directory = new File(mDirectory, "window" + windowMillis);
+		final DiskLruCache cache = DiskLruCache.open(directory, 1, 1,
+				Long.MAX_VALUE / 2);
+		cache.setSyncWindow(windowMillis);
+		final String value = padding(VALUE_LENGTH);
+
+		final List<Callable<Long>> tasks = new ArrayList<Callable<Long>>();
+		for (int w = 0; w < WRITERS; w++) {
+			final int writer = w;
+			tasks.add(new Callable<Long>() {
+				@Override
+				public Long call() throws Exception {
+					long latencyNanos = 0;
+					for (int i = 0; i < COMMITS_PER_WRITER; i++) {
+						final DiskLruCache.Editor editor = cache.edit("k"
+								+ writer + "_" + i);
+						editor.set(0, value);
+						final long startNanos = System.nanoTime();
+						editor.commit();
+						latencyNanos += System.nanoTime() - startNanos;
+					}
+					return latencyNanos;
+				}
+			});
+		}
+
+		final long startNanos = System.nanoTime();
+		long latencyNanos = 0;
+		for (Future<Long> future : mExecutor.invokeAll(tasks)) {
+			latencyNanos += future.get();
+		}
+		final long elapsedNanos = System.nanoTime() - startNanos;
+		cache.close();
+
+		final int commits = WRITERS * COMMITS_PER_WRITER;
+		final DiskLruCache reopened = DiskLruCache.open(directory, 1, 1,
+				Long.MAX_VALUE / 2);
+		try {
+			assertEquals((long) commits * VALUE_LENGTH, reopened.size());
+		} finally {
+			reopened.close();
+		}
+
+		final double commitsPerSecond = commits * 1e9 / elapsedNanos;
+		System.out.println("GroupCommitTest: window "
+				+ (windowMillis == DiskLruCache.SYNC_DISABLED ? "off"
+						: windowMillis + "ms") + ", "
+				+ Math.round(commitsPerSecond) + " commits/s, "
+				+ latencyNanos / commits / 1000 + "us per commit");
+		return commitsPerSecond;
+	}
+
+	private static String padding(int length) {
+		final char[] chars = new char[length];
+		for (int i = 0; i < length; i++) {
+			chars[i] = (char) ('a' + i % 26);
+		}
+		return new String(chars);
+	}
+}
@@ -0,0 +1,152 @@
+package com.test.displaybitmaps.imagemanager;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import android.graphics.Bitmap;
+import android.graphics.drawable.BitmapDrawable;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+/**
+ * Measures how much disk cache reads of the {@link ImageCache} slow down while
+ * other threads encode and write bitmaps to it. Readers decode entries of
+ * their own, first alone and then alongside writers; with only the index
+ * lookups under the disk cache lock, a read no longer waits for a whole
+ * encode. The read latencies and the time spent waiting for the disk cache
+ * lock are logged under the "ImageCacheContentionTest" tag.
+ */
+public class ImageCacheContentionTest extends AndroidTestCase {
+	private static final String TAG = "ImageCacheContentionTest";
+	private static final String CACHE_NAME = "contention_test";
+	private static final ImageSize IMAGE_SIZE = ImageSize.xlarge;
+	private static final int READERS = 4;
+	private static final int WRITERS = 2;
+	private static final int READS_PER_READER = 20;
+
+	private ImageCache mCache;
+	private ExecutorService mExecutor;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		final ImageCacheParams params = new ImageCacheParams(getContext(),
+				CACHE_NAME);
+		// Every read goes to the disk cache and every write is encoded on the
+		// calling thread
+		params.memoryCacheEnabled = false;
+		params.encodedCacheEnabled = false;
+		params.hotSnapshotEnabled = false;
+		params.diskWriteQueueSize = 0;
+		params.rawPixelSizes.clear();
+		params.slabSizes.clear();
+		params.diskCacheSize = 1024 * 1024 * 50; // 50MB
+		params.initDiskCacheOnCreate = true;
+		mCache = ImageCache.getInstance(CACHE_NAME);
+		mCache.setupImageCacheParams(params);
+		mCache.clearDiskCache();
+		mExecutor = Executors.newFixedThreadPool(READERS + WRITERS);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		mExecutor.shutdownNow();
+		mCache.clearDiskCache();
+		mCache.close();
+		super.tearDown();
+	}
+
+	public void testReadsAlongsideEncodes() throws Exception {
+		for (int i = 0; i < READERS; i++) {
+			mCache.addBitmapToCache("read/" + i, IMAGE_SIZE, newDrawable(i));
+		}
+		final BitmapDrawable written = newDrawable(READERS);
+
+		// Warm up, then read alone and alongside the writers
+		read(false, null);
+		final long[] alone = read(false, null);
+		final long[] contended = read(true, written);
+
+		final ImageCacheStats.Histogram lockWait = mCache.getStats()
+				.snapshot().getHistogram(ImageCacheStats.DISK_LOCK_WAIT);
+		Log.i(TAG, READERS + " readers alone: mean " + alone[0] / 1000
+				+ "us, max " + alone[1] / 1000 + "us; alongside " + WRITERS
+				+ " writers: mean " + contended[0] / 1000 + "us, max "
+				+ contended[1] / 1000 + "us; disk cache lock wait: mean "
+				+ lockWait.getMeanMicros() + "us, p99 "
+				+ lockWait.getPercentileMicros(99) + "us");
+	}
+
+	/**
+	 * @return The mean and maximum read latency in nanoseconds
+	 */
+	private long[] read(boolean withWriters, final BitmapDrawable written)
+			throws Exception {
+		final AtomicBoolean readersDone = new AtomicBoolean();
+		final List<Future<Void>> writers = new ArrayList<Future<Void>>();
+		for (int w = 0; withWriters && w < WRITERS; w++) {
+			final int writer = w;
+			writers.add(mExecutor.submit(new Callable<Void>() {
+				@Override
+				public Void call() {
+					// Existing entries aren't written again, so each write
+					// has a key of its own
+					for (int i = 0; !readersDone.get(); i++) {
+						mCache.addBitmapToCache("write/" + writer + "/" + i,
+								IMAGE_SIZE, written);
+					}
+					return null;
+				}
+			}));
+		}
+
+		final List<Callable<long[]>> readers = new ArrayList<Callable<long[]>>();
+		for (int r = 0; r < READERS; r++) {
+			final String data = "read/" + r;
+			readers.add(new Callable<long[]>() {
+				@Override
+				public long[] call() {
+					long total = 0;
+					long max = 0;
+					for (int i = 0; i < READS_PER_READER; i++) {
+						final long startNanos = System.nanoTime();
+						final Bitmap bitmap = mCache.getBitmapFromDiskCache(
+								data, IMAGE_SIZE);
+						final long latency = System.nanoTime() - startNanos;
+						assertNotNull(data, bitmap);
+						bitmap.recycle();
+						total += latency;
+						max = Math.max(max, latency);
+					}
+					return new long[] { total, max };
+				}
+			});
+		}
+
+		long total = 0;
+		long max = 0;
+		try {
+			for (Future<long[]> future : mExecutor.invokeAll(readers)) {
+				final long[] latency = future.get();
+				total += latency[0];
+				max = Math.max(max, latency[1]);
+			}
+		} finally {
+			readersDone.set(true);
+		}
+		for (Future<Void> writer : writers) {
+			writer.get();
+		}
+		return new long[] { total / (READERS * READS_PER_READER), max };
+	}
+
+	private BitmapDrawable newDrawable(int seed) {
+		return new BitmapDrawable(getContext().getResources(),
+				TestBitmaps.createPhoto(IMAGE_SIZE.getSize(), seed));
+	}
+}
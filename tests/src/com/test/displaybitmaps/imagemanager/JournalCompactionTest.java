@@ -0,0 +1,189 @@
+package com.test.displaybitmaps.imagemanager;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+/**
+ * Keeps a {@link DiskLruCache} busy with reads and overwrites while its
+ * journal is compacted in the background, several times over. The records
+ * appended while a compaction runs go through its tail buffer, so the test
+ * reopens the cache and checks that every entry has its last committed value.
+ * It prints the 99th percentile and the longest get and commit seen during
+ * the run, to compare with the stall of a locked rewrite of a journal that
+ * size.
+ */
+public class JournalCompactionTest extends TestCase {
+	private static final int KEY_COUNT = 10000;
+	private static final int WRITERS = 2;
+	private static final int READERS = 2;
+	private static final int MIN_COMPACTIONS = 3;
+	private static final long TIMEOUT_MILLIS = 60 * 1000;
+
+	private File mDirectory;
+	private ExecutorService mExecutor;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		mDirectory = TempDirectory.create("JournalCompactionTest");
+		mExecutor = Executors.newFixedThreadPool(WRITERS + READERS);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		mExecutor.shutdownNow();
+		TempDirectory.delete(mDirectory);
+		super.tearDown();
+	}
+
+	public void testCompactionUnderLoad() throws Exception {
+		final DiskLruCache cache = DiskLruCache.open(mDirectory, 1, 1,
+				Long.MAX_VALUE / 2);
+		// The last value committed for each key, each key has one writer
+		final int[] generations = new int[KEY_COUNT];
+		for (int i = 0; i < KEY_COUNT; i++) {
+			final DiskLruCache.Editor editor = cache.edit(key(i));
+			editor.set(0, value(i, 0));
+			editor.commit();
+		}
+		cache.flush();
+
+		final File journal = new File(mDirectory, "journal");
+		final AtomicInteger compactions = new AtomicInteger();
+		final AtomicBoolean done = new AtomicBoolean();
+		final long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+
+		final List<Callable<long[]>> tasks = new ArrayList<Callable<long[]>>();
+		for (int w = 0; w < WRITERS; w++) {
+			final int writer = w;
+			tasks.add(new Callable<long[]>() {
+				@Override
+				public long[] call() throws Exception {
+					final Random random = new Random(writer);
+					final long[] latencies = new long[1 << 16];
+					int count = 0;
+					long journalLength = journal.length();
+					while (!done.get()) {
+						final int n = random.nextInt(KEY_COUNT / WRITERS)
+								* WRITERS + writer;
+						final DiskLruCache.Editor editor = cache.edit(key(n));
+						editor.set(0, value(n, generations[n] + 1));
+						final long startNanos = System.nanoTime();
+						editor.commit();
+						latencies[count++ & latencies.length - 1] = System
+								.nanoTime() - startNanos;
+						generations[n]++;
+
+						// A compaction shows as the journal getting shorter
+						if (writer == 0) {
+							final long length = journal.length();
+							if (length < journalLength
+									&& compactions.incrementAndGet() >= MIN_COMPACTIONS) {
+								done.set(true);
+							}
+							journalLength = length;
+						}
+						if (System.currentTimeMillis() > deadline) {
+							done.set(true);
+						}
+					}
+					return truncate(latencies, count);
+				}
+			});
+		}
+		for (int r = 0; r < READERS; r++) {
+			final int reader = r;
+			tasks.add(new Callable<long[]>() {
+				@Override
+				public long[] call() throws Exception {
+					final Random random = new Random(100 + reader);
+					final long[] latencies = new long[1 << 16];
+					int count = 0;
+					while (!done.get()) {
+						final long startNanos = System.nanoTime();
+						final DiskLruCache.Snapshot snapshot = cache
+								.get(key(random.nextInt(KEY_COUNT)));
+						latencies[count++ & latencies.length - 1] = System
+								.nanoTime() - startNanos;
+						assertNotNull(snapshot);
+						snapshot.close();
+					}
+					return truncate(latencies, count);
+				}
+			});
+		}
+
+		final List<Future<long[]>> futures = mExecutor.invokeAll(tasks);
+		final List<long[]> commits = new ArrayList<long[]>();
+		final List<long[]> gets = new ArrayList<long[]>();
+		for (int i = 0; i < futures.size(); i++) {
+			(i < WRITERS ? commits : gets).add(futures.get(i).get());
+		}
+		assertTrue("no compaction within the timeout", compactions.get() > 0);
+		final long journalLength = journal.length();
+		cache.close();
+
+		final DiskLruCache reopened = DiskLruCache.open(mDirectory, 1, 1,
+				Long.MAX_VALUE / 2);
+		try {
+			for (int i = 0; i < KEY_COUNT; i++) {
+				final DiskLruCache.Snapshot snapshot = reopened.get(key(i));
+				assertNotNull(key(i), snapshot);
+				assertEquals(value(i, generations[i]), snapshot.getString(0));
+				snapshot.close();
+			}
+		} finally {
+			reopened.close();
+		}
+
+		System.out.println("JournalCompactionTest: "
+				+ compactions.get() + " compactions of a "
+				+ journalLength + " byte journal, get " + summary(gets)
+				+ ", commit " + summary(commits));
+	}
+
+	/**
+	 * @return The 99th percentile and maximum of the latencies of the most
+	 *         recent operations of each thread
+	 */
+	private static String summary(List<long[]> latencies) {
+		int count = 0;
+		for (long[] thread : latencies) {
+			count += thread.length;
+		}
+		final long[] all = new long[count];
+		int offset = 0;
+		for (long[] thread : latencies) {
+			System.arraycopy(thread, 0, all, offset, thread.length);
+			offset += thread.length;
+		}
+		Arrays.sort(all);
+		return "p99 " + all[count * 99 / 100] / 1000 + "us, max "
+				+ all[count - 1] / 1000 + "us";
+	}
+
+	private static long[] truncate(long[] latencies, int count) {
+		final long[] truncated = new long[Math.min(count, latencies.length)];
+		System.arraycopy(latencies, 0, truncated, 0, truncated.length);
+		return truncated;
+	}
+
+	private static String key(int n) {
+		return Murmur3.hash128Base32("http://example.com/" + n);
+	}
+
+	private static String value(int n, int generation) {
+		return n + "/" + generation;
+	}
+}
@@ -0,0 +1,120 @@
+package com.test.displaybitmaps.imagemanager;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+
+import android.graphics.Bitmap;
+import android.graphics.Bitmap.CompressFormat;
+import android.graphics.Bitmap.Config;
+import android.graphics.drawable.BitmapDrawable;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+/**
+ * Fills the memory cache of an {@link ImageCache} with decoded photos of each
+ * size, once with every size decoded as {@link Config#ARGB_8888} and once
+ * with the per-size configs of {@link ImageCacheParams#bitmapConfigs}, and
+ * counts the entries the memory cache still holds. Both runs use the same
+ * {@link ImageCacheParams#memCacheSize}. The counts are logged under the
+ * "MemCacheOccupancyTest" tag next to
+ * {@link ImageCacheParams#estimateMemCacheEntries(ImageSize, Config)}.
+ */
+public class MemCacheOccupancyTest extends AndroidTestCase {
+	private static final String TAG = "MemCacheOccupancyTest";
+	private static final String CACHE_NAME = "occupancy_test";
+
+	private ImageCache mCache;
+
+	@Override
+	protected void tearDown() throws Exception {
+		if (mCache != null) {
+			mCache.clearMemoryCache();
+		}
+		super.tearDown();
+	}
+
+	public void testPerSizeConfigs() {
+		for (ImageSize imageSize : ImageSize.values()) {
+			final ImageCacheParams perSize = newParams();
+			final Config config = perSize.getBitmapConfig(imageSize, false);
+			final int perSizeHeld = fill(perSize, imageSize, config);
+
+			final ImageCacheParams argb = newParams();
+			argb.setBitmapConfig(imageSize, Config.ARGB_8888);
+			final int argbHeld = fill(argb, imageSize, Config.ARGB_8888);
+
+			Log.i(TAG, imageSize + ": " + perSizeHeld + " entries held as "
+					+ config + " (estimate "
+					+ perSize.estimateMemCacheEntries(imageSize, config)
+					+ "), " + argbHeld + " as ARGB_8888 (estimate "
+					+ perSize.estimateMemCacheEntries(imageSize,
+							Config.ARGB_8888) + ") in "
+					+ perSize.memCacheSize + "KB");
+
+			if (config == Config.RGB_565) {
+				// Half the bytes per entry, so close to twice the entries
+				assertTrue(imageSize + ": " + perSizeHeld + " vs " + argbHeld,
+						perSizeHeld * 2 >= argbHeld * 3);
+			} else {
+				assertEquals(argbHeld, perSizeHeld);
+			}
+		}
+	}
+
+	private ImageCacheParams newParams() {
+		final ImageCacheParams params = new ImageCacheParams(getContext(),
+				CACHE_NAME);
+		// Only the memory cache is measured
+		params.diskCacheEnabled = false;
+		params.encodedCacheEnabled = false;
+		params.hotSnapshotEnabled = false;
+		params.diskWriteQueueSize = 0;
+		params.shareBitmapPool = false;
+		return params;
+	}
+
+	/**
+	 * Adds decoded photos of the given size to a memory cache set up with the
+	 * given params until it must have evicted some.
+	 * 
+	 * @return The number of entries the memory cache holds afterwards
+	 */
+	private int fill(ImageCacheParams params, ImageSize imageSize,
+			Config config) {
+		if (mCache != null) {
+			mCache.clearMemoryCache();
+		}
+		mCache = ImageCache.getInstance(CACHE_NAME);
+		mCache.setupImageCacheParams(params);
+
+		final int size = imageSize.getSize();
+		final Bitmap photo = TestBitmaps.createPhoto(size, size);
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		assertTrue(photo.compress(CompressFormat.JPEG, params.compressQuality,
+				out));
+		photo.recycle();
+		final byte[] jpeg = out.toByteArray();
+
+		// The photos are shorter than they are wide, so more fit than the
+		// estimate for square images
+		final int count = params.estimateMemCacheEntries(imageSize,
+				Config.RGB_565) * 2 + 2;
+		for (int i = 0; i < count; i++) {
+			final Bitmap bitmap = ImageResizer.decodeSampledBitmapFromBuffer(
+					ByteBuffer.wrap(jpeg), size, size, imageSize, mCache);
+			assertNotNull(bitmap);
+			assertEquals(config, bitmap.getConfig());
+			mCache.addBitmapToCache("photo/" + i, imageSize,
+					new BitmapDrawable(getContext().getResources(), bitmap));
+		}
+
+		int held = 0;
+		for (int i = 0; i < count; i++) {
+			if (mCache.getBitmapFromMemCache("photo/" + i, imageSize) != null) {
+				held++;
+			}
+		}
+		assertTrue("nothing was evicted", held < count);
+		return held;
+	}
+}
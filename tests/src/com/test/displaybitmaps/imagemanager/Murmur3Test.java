@@ -0,0 +1,88 @@
+package com.test.displaybitmaps.imagemanager;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks {@link Murmur3#hash128Base32(String)} against reference vectors and
+ * times it against the MD5 keys it replaced.
+ * <p>
+ * The vectors were computed with a byte-oriented MurmurHash3_x64_128, seed 0,
+ * over the UTF-16LE encoding of each key, which passes the SMHasher
+ * verification value 0x6384BA69. The hash names every disk cache file, so a
+ * change to any of them makes existing caches unreadable.
+ */
+public class Murmur3Test extends TestCase {
+
+	// Key lengths cover no tail, a 1 to 4 char tail hashed into k1 only, a 5
+	// to 7 char tail that also fills k2, a full block, and a block with a
+	// tail. The last keys check that chars are hashed as 16-bit units.
+	private static final String[][] VECTORS = {
+			{ "", "aaaaaaaaaaaaaaaaaaaaaaaaaa" },
+			{ "a", "s2tjqualj2ml3mtyzg74ovdhpu" },
+			{ "abcd", "ksgpywa2lbhuqb3piloexprq34" },
+			{ "abcde", "56cgjqqgzmyoztecpq7jgtp2jm" },
+			{ "abcdefg", "uddukgkzu4v6tixclcq2yjduui" },
+			{ "abcdefgh", "fab2lpdjnwxlfivr5n2ubvwr7i" },
+			{ "abcdefghijklm", "yd4gw6woqdb2sqwxrkvdgdaety" },
+			{ "http://example.com/images/1.jpg150",
+					"qyh2y3h2fzvmxpnj4cesekqjqe" },
+			{ "\u00e9t\u00e9", "svsgjro3ggsvyrjkcpz6etsntm" },
+			{ "\ud83d\ude00 smile", "2pngt2qtv7hnqdvkg6jlbw4dey" } };
+
+	private static final int KEYS = 10000;
+	private static final int RUNS = 10;
+
+	public void testReferenceVectors() {
+		for (String[] vector : VECTORS) {
+			assertEquals("key \"" + vector[0] + "\"", vector[1],
+					Murmur3.hash128Base32(vector[0]));
+		}
+	}
+
+	public void testBase32Alphabet() {
+		final String hash = Murmur3.hash128Base32("http://example.com/a.png");
+		assertEquals(Murmur3.BASE32_LENGTH, hash.length());
+		assertTrue(hash, hash.matches("[a-z2-7]+"));
+	}
+
+	/**
+	 * Times hashing URL-like keys with Murmur3 and with the MD5 and hex
+	 * encoding of {@link ImageCache#legacyHashKeyForDisk(String)}, after a
+	 * warm-up, and prints the time per key.
+	 */
+	public void testSpeedAgainstMd5() {
+		final String[] keys = new String[KEYS];
+		for (int i = 0; i < KEYS; i++) {
+			keys[i] = "http://example.com/images/" + i + ".jpg" + 150;
+		}
+
+		// Warm up both, then take the best of the timed runs
+		long murmurNanos = Long.MAX_VALUE;
+		long md5Nanos = Long.MAX_VALUE;
+		int checksum = 0;
+		for (int run = 0; run <= RUNS; run++) {
+			long startNanos = System.nanoTime();
+			for (String key : keys) {
+				checksum += Murmur3.hash128Base32(key).charAt(0);
+			}
+			final long murmur = System.nanoTime() - startNanos;
+
+			startNanos = System.nanoTime();
+			for (String key : keys) {
+				checksum += ImageCache.legacyHashKeyForDisk(key).charAt(0);
+			}
+			final long md5 = System.nanoTime() - startNanos;
+
+			if (run > 0) {
+				murmurNanos = Math.min(murmurNanos, murmur);
+				md5Nanos = Math.min(md5Nanos, md5);
+			}
+		}
+
+		System.out.println("Murmur3Test: murmur3 " + murmurNanos / KEYS
+				+ "ns per key, md5 " + md5Nanos / KEYS + "ns per key ("
+				+ checksum + ")");
+		assertTrue("murmur3 " + murmurNanos + "ns, md5 " + md5Nanos + "ns",
+				murmurNanos < md5Nanos);
+	}
+}
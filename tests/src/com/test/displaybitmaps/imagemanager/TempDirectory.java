@@ -0,0 +1,49 @@
+package com.test.displaybitmaps.imagemanager;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Creates and deletes the scratch directories of the tests that need no
+ * Android context.
+ */
+final class TempDirectory {
+
+	private TempDirectory() {
+	}
+
+	/**
+	 * @param prefix
+	 *            The directory name prefix
+	 * @return A new empty directory in the temporary directory
+	 */
+	static File create(String prefix) throws IOException {
+		final File directory = File.createTempFile(prefix, null);
+		if (!directory.delete() || !directory.mkdir()) {
+			throw new IOException("failed to create " + directory);
+		}
+		return directory;
+	}
+
+	/**
+	 * Deletes a directory created by {@link #create(String)} with everything
+	 * in it.
+	 */
+	static void delete(File directory) throws IOException {
+		if (directory != null && directory.exists()) {
+			final File[] files = directory.listFiles();
+			if (files != null) {
+				for (File file : files) {
+					if (file.isDirectory()) {
+						delete(file);
+					} else if (!file.delete()) {
+						throw new IOException("failed to delete " + file);
+					}
+				}
+			}
+			if (!directory.delete()) {
+				throw new IOException("failed to delete " + directory);
+			}
+		}
+	}
+}
@@ -0,0 +1,78 @@
+package com.test.displaybitmaps.imagemanager;
+
+import java.util.Random;
+
+import android.graphics.Bitmap;
+import android.graphics.Bitmap.Config;
+
+/**
+ * Generates the images the tests encode, decode and cache, so that they need
+ * no image files.
+ */
+final class TestBitmaps {
+
+	private TestBitmaps() {
+	}
+
+	/**
+	 * A photo-like opaque image: smooth shading with sensor-like noise, which
+	 * is what lossy formats are made for.
+	 */
+	static Bitmap createPhoto(int width, long seed) {
+		final int height = width * 3 / 4;
+		final Random random = new Random(seed);
+		final int[] pixels = new int[width * height];
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++) {
+				final double shade = Math.sin(x / 37.0) * Math.cos(y / 53.0);
+				final int noise = random.nextInt(25) - 12;
+				final int r = clamp(128 + (int) (100 * shade) + noise);
+				final int g = clamp(96 + y * 128 / height + noise);
+				final int b = clamp(160 - x * 96 / width + noise);
+				pixels[y * width + x] = 0xff000000 | r << 16 | g << 8 | b;
+			}
+		}
+		return Bitmap.createBitmap(pixels, width, height, Config.ARGB_8888);
+	}
+
+	/**
+	 * An opaque graphic: flat colour blocks with hard edges, like a logo or a
+	 * screenshot.
+	 */
+	static Bitmap createGraphic(int size) {
+		final int[] palette = { 0xff2196f3, 0xffffffff, 0xfff44336, 0xff212121 };
+		final int[] pixels = new int[size * size];
+		for (int y = 0; y < size; y++) {
+			for (int x = 0; x < size; x++) {
+				pixels[y * size + x] = x % 50 == 0 || y % 50 == 0 ? palette[3]
+						: palette[(x / 50 + y / 50) % 3];
+			}
+		}
+		return Bitmap.createBitmap(pixels, size, size, Config.ARGB_8888);
+	}
+
+	/**
+	 * An icon with alpha: a shaded disc with a soft edge on a transparent
+	 * background.
+	 */
+	static Bitmap createIcon(int size) {
+		final int[] pixels = new int[size * size];
+		final float radius = size / 2f;
+		for (int y = 0; y < size; y++) {
+			for (int x = 0; x < size; x++) {
+				final float dx = x + 0.5f - radius;
+				final float dy = y + 0.5f - radius;
+				final float distance = (float) Math.sqrt(dx * dx + dy * dy);
+				final int alpha = clamp((int) ((radius - distance) * 64));
+				final int shade = clamp(255 - (int) (distance * 255 / radius));
+				pixels[y * size + x] = alpha << 24 | shade << 16 | 0x80 << 8
+						| 0x40;
+			}
+		}
+		return Bitmap.createBitmap(pixels, size, size, Config.ARGB_8888);
+	}
+
+	private static int clamp(int value) {
+		return value < 0 ? 0 : value > 255 ? 255 : value;
+	}
+}